@@ -12,7 +12,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.*;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Client API for Java HTTP client applets or apps.
@@ -31,6 +34,11 @@ import java.util.Map;
  * @see com.mustr.pushlet.test.PushletPingApplication
  */
 public class PushletClient implements Protocol {
+	/**
+	 * Acknowledge at least every this many events, within the server's window.
+	 */
+	private static final int ACK_BATCH = 64;
+
 	/**
 	 * Pushlet URL.
 	 */
@@ -51,6 +59,37 @@ public class PushletClient implements Protocol {
 	 */
 	protected DataEventListener dataEventListener;
 
+	/**
+	 * Last seen sequence number (p_sseq) per subject, for replay on (re)listen.
+	 */
+	private final Map<String, Long> lastSeqs = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Request data events as deltas on listen, see setDelta().
+	 */
+	private boolean delta;
+
+	/**
+	 * Request durable mode on listen, see setDurable().
+	 */
+	private boolean durable;
+
+	/**
+	 * Request acknowledged delivery on listen and subscribe, see setAcked().
+	 */
+	private boolean acked;
+
+	/**
+	 * Highest p_aseq received and the last one acknowledged to the server.
+	 */
+	private volatile long ackSeq;
+	private volatile long ackSentSeq;
+
+	/**
+	 * Data fields of the last event per subject, base for the next delta.
+	 */
+	private final Map<String, Map<String, String>> deltaFields = new ConcurrentHashMap<String, Map<String, String>>();
+
 	/**
 	 * Constructor with full pushlet URL.
 	 */
@@ -117,6 +156,15 @@ public class PushletClient implements Protocol {
 
 		// Join Ack received
 		id = response.getField(P_ID);
+		ackSeq = 0;
+		ackSentSeq = 0;
+	}
+
+	/**
+	 * Session id, null if not joined.
+	 */
+	public String getId() {
+		return id;
 	}
 
 	/**
@@ -159,7 +207,16 @@ public class PushletClient implements Protocol {
 				+ "&" + P_ID + "=" + id
 				+ "&" + P_MODE + "=" + aMode;
 		if (aSubject != null) {
-			listenURL = listenURL + "&" + P_SUBJECT + "=" + aSubject;
+			listenURL = listenURL + "&" + P_SUBJECT + "=" + aSubject + getLastSeqsQuery();
+		}
+		if (delta) {
+			listenURL = listenURL + "&" + P_DELTA + "=true";
+		}
+		if (durable) {
+			listenURL = listenURL + "&" + P_DURABLE + "=true";
+		}
+		if (acked) {
+			listenURL = listenURL + "&" + P_ACKED + "=true";
 		}
 
 		// Start listener thread (sync call).
@@ -171,12 +228,23 @@ public class PushletClient implements Protocol {
 	 */
 	public void joinListen(PushletClientListener aListener, String aMode, String aSubject) throws PushletException {
 		stopListen();
+		ackSeq = 0;
+		ackSentSeq = 0;
 
 		String listenURL = pushletURL
 				+ "?" + P_EVENT + "=" + E_JOIN_LISTEN
 				+ "&" + P_FORMAT + "=" + FORMAT_XML
 				+ "&" + P_MODE + "=" + aMode
-				+ "&" + P_SUBJECT + "=" + aSubject;
+				+ "&" + P_SUBJECT + "=" + aSubject + getLastSeqsQuery();
+		if (delta) {
+			listenURL = listenURL + "&" + P_DELTA + "=true";
+		}
+		if (durable) {
+			listenURL = listenURL + "&" + P_DURABLE + "=true";
+		}
+		if (acked) {
+			listenURL = listenURL + "&" + P_ACKED + "=true";
+		}
 
 		// Start listener thread (sync call).
 		startDataEventListener(aListener, listenURL);
@@ -194,6 +262,52 @@ public class PushletClient implements Protocol {
 		throwOnNack(response);
 	}
 
+	/**
+	 * Query journaled events for subject prefix with p_time (seconds) in [from, to].
+	 * <p/>
+	 * Events are passed to the listener's onData() as they are read.
+	 *
+	 * @param aLimit max events, 0 for the server's maximum
+	 * @return number of events received
+	 */
+	public int query(String aSubject, long aFromTime, long aToTime, int aLimit, PushletClientListener aListener) throws PushletException {
+		throwOnInvalidSession();
+		Event event = new Event(E_QUERY);
+		event.setField(P_ID, id);
+		event.setField(P_SUBJECT, aSubject);
+		event.setField(P_QUERY_FROM, aFromTime);
+		event.setField(P_QUERY_TO, aToTime);
+		if (aLimit > 0) {
+			event.setField(P_QUERY_LIMIT, aLimit);
+		}
+
+		String queryURL = pushletURL + "?" + event.toQueryString();
+		p("query to " + queryURL);
+		Reader reader = openURL(queryURL);
+		try {
+			int count = 0;
+			while (true) {
+				Event response = EventParser.parse(reader);
+				throwOnNack(response);
+				if (response.getEventType().equals(E_QUERY_ACK)) {
+					return count;
+				}
+				count++;
+				aListener.onData(response);
+			}
+		} catch (PushletException e) {
+			throw e;
+		} catch (Throwable t) {
+			warn("query() exception", t);
+			throw new PushletException(" error parsing response from " + queryURL, t);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
 	/**
 	 * Subscribes, returning subscription id.
 	 */
@@ -202,11 +316,18 @@ public class PushletClient implements Protocol {
 		Event event = new Event(E_SUBSCRIBE);
 		event.setField(P_ID, id);
 		event.setField(P_SUBJECT, aSubject);
+		String last = getLastSeqs();
+		if (last != null) {
+			event.setField(P_LAST_SEQ, last);
+		}
 
 		// Optional label, is returned in data events
 		if (aLabel != null) {
 			event.setField(P_SUBSCRIPTION_LABEL, aLabel);
 		}
+		if (acked) {
+			event.setField(P_ACKED, "true");
+		}
 
 		// Send request
 		Event response = doControl(event);
@@ -215,6 +336,153 @@ public class PushletClient implements Protocol {
 		return response.getField(P_SUBSCRIPTION_ID);
 	}
 
+	/**
+	 * Last seen sequence numbers as "subject:seq,..." or null if none.
+	 */
+	protected String getLastSeqs() {
+		if (lastSeqs.isEmpty()) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : lastSeqs.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(entry.getKey()).append(':').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	private String getLastSeqsQuery() throws PushletException {
+		String last = getLastSeqs();
+		if (last == null) {
+			return "";
+		}
+		try {
+			return "&" + P_LAST_SEQ + "=" + URLEncoder.encode(last, "UTF-8");
+		} catch (IOException e) {
+			throw new PushletException("Cannot encode " + P_LAST_SEQ, e);
+		}
+	}
+
+	/**
+	 * Track sequence number of data event.
+	 *
+	 * @return false if already seen (duplicate after replay)
+	 */
+	protected boolean updateLastSeq(Event anEvent) {
+		String seq = anEvent.getField(P_SUBJECT_SEQ);
+		String subject = anEvent.getSubject();
+		if (seq == null || subject == null) {
+			return true;
+		}
+		long value = Long.parseLong(seq);
+		Long last = lastSeqs.get(subject);
+		if (last != null && value <= last) {
+			return false;
+		}
+		lastSeqs.put(subject, value);
+		return true;
+	}
+
+	/**
+	 * Receive data events as deltas (changed fields only) from the next listen.
+	 * Events passed to the listener are always complete.
+	 */
+	public void setDelta(boolean aDelta) {
+		delta = aDelta;
+	}
+
+	/**
+	 * Ask for durable mode from the next listen: events that do not fit in the
+	 * server queue are spilled to disk rather than ending the session.
+	 */
+	public void setDurable(boolean aDurable) {
+		durable = aDurable;
+	}
+
+	/**
+	 * Ask for acknowledged delivery on the next listen and subscribe: the
+	 * server sends events again until they are acknowledged. Events are
+	 * acknowledged after the listener's onData() returned: every 64 events,
+	 * on refresh in pull mode and on heartbeats in stream mode, or at any
+	 * time with ack().
+	 */
+	public void setAcked(boolean anAcked) {
+		acked = anAcked;
+	}
+
+	/**
+	 * Acknowledge all events received so far.
+	 */
+	public void ack() throws PushletException {
+		throwOnInvalidSession();
+		long seq = ackSeq;
+		if (seq <= ackSentSeq) {
+			return;
+		}
+		Event event = new Event(E_ACK);
+		event.setField(P_ID, id);
+		event.setField(P_ACK, seq);
+		Event response = doControl(event);
+		throwOnNack(response);
+		ackSentSeq = Math.max(ackSentSeq, seq);
+	}
+
+	/**
+	 * Track delivery number of acknowledged event.
+	 *
+	 * @return false if already received (sent again after a reconnect)
+	 */
+	protected boolean updateAckSeq(Event anEvent) {
+		String seq = anEvent.getField(P_ACK_SEQ);
+		if (seq == null) {
+			return true;
+		}
+		long value = Long.parseLong(seq);
+		if (value <= ackSeq) {
+			return false;
+		}
+		ackSeq = value;
+		return true;
+	}
+
+	/**
+	 * Rebuild complete data event from a delta (p_delta) and remember its fields.
+	 */
+	protected Event applyDelta(Event anEvent) {
+		String subject = anEvent.getSubject();
+		if (subject == null) {
+			return anEvent;
+		}
+
+		Map<String, String> attributes = new HashMap<String, String>();
+		Map<String, String> previous = deltaFields.get(subject);
+		if ("true".equals(anEvent.getField(P_DELTA)) && previous != null) {
+			attributes.putAll(previous);
+			String removed = anEvent.getField(P_REMOVED);
+			if (removed != null) {
+				String[] names = removed.split(",");
+				for (int i = 0; i < names.length; i++) {
+					attributes.remove(names[i]);
+				}
+			}
+		}
+		for (Iterator<String> iter = anEvent.getFieldNames(); iter.hasNext();) {
+			String name = iter.next();
+			attributes.put(name, anEvent.getField(name));
+		}
+
+		Map<String, String> fields = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			if (!Event.isProtocolField(entry.getKey())) {
+				fields.put(entry.getKey(), entry.getValue());
+			}
+		}
+		deltaFields.put(subject, fields);
+		return new Event(attributes);
+	}
+
 	/**
 	 * Subscribes, returning subscription id.
 	 */
@@ -456,12 +724,32 @@ public class PushletClient implements Protocol {
 							String eventType = event.getEventType();
 							if (eventType.equals(E_HEARTBEAT)) {
 								listener.onHeartbeat(event);
+
+								// Stream mode: acknowledge what was received before
+								if (ackSeq > ackSentSeq) {
+									sendAck();
+								}
 							} else if (eventType.equals(E_DATA)) {
+								// Duplicates after a reconnect are acknowledged, not passed on
+								if (updateAckSeq(event) && updateLastSeq(event)) {
+									listener.onData(delta ? applyDelta(event) : event);
+								}
+								if (ackSeq - ackSentSeq >= ACK_BATCH) {
+									sendAck();
+								}
+							} else if (eventType.equals(E_RESYNC)) {
+								// Missed events are gone, check getEventType()
+								lastSeqs.remove(event.getSubject());
+								listener.onData(event);
+							} else if (eventType.equals(E_SNAPSHOT_END)) {
+								// State snapshot complete, check getEventType()
 								listener.onData(event);
 							} else if (eventType.equals(E_JOIN_LISTEN_ACK)) {
 								id = event.getField(P_ID);
+								deltaFields.clear();
 							} else if (eventType.equals(E_LISTEN_ACK)) {
 								p("Listen ack ok");
+								deltaFields.clear();
 							} else if (eventType.equals(E_REFRESH_ACK)) {
 								// ignore
 							} else if (eventType.equals(E_ABORT)) {
@@ -551,6 +839,17 @@ public class PushletClient implements Protocol {
 			disconnect();
 		}
 
+		/**
+		 * Acknowledge received events, a failed ack is covered by the next one.
+		 */
+		protected void sendAck() {
+			try {
+				ack();
+			} catch (PushletException e) {
+				warn("ack failed", e);
+			}
+		}
+
 		/**
 		 * Handle refresh, by pausing.
 		 */
@@ -575,6 +874,13 @@ public class PushletClient implements Protocol {
 					+ "&" + P_EVENT + "=" + E_REFRESH
 					;
 
+			// Acknowledge events received in the previous round
+			long seq = ackSeq;
+			if (seq > ackSentSeq) {
+				refreshURL = refreshURL + "&" + P_ACK + "=" + seq;
+				ackSentSeq = seq;
+			}
+
 			if (reader != null) {
 				try {
 					reader.close();
@@ -0,0 +1,100 @@
+package com.mustr.pushlet.cluster;
+
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.util.PushletException;
+
+/**
+ * Transport of published Events between the Dispatchers of cluster nodes.
+ * <p/>
+ * The Dispatcher hands each locally published multicast Event to publish()
+ * and fans out Events received from other nodes to its local sessions only,
+ * so an Event crosses the bus once. Configured with cluster.bus.class.
+ * <p/>
+ * The Dispatcher also reports the subject prefixes of local subscriptions,
+ * so a bus may skip nodes without interest in an Event.
+ * <p/>
+ * Besides multicast Events the bus carries messages addressed to nodes,
+ * e.g. unicasts and session directory updates. Messages are Events with
+ * their type in p_message and are never fanned out to sessions as such.
+ */
+public interface ClusterBus {
+	/**
+	 * Message type field.
+	 */
+	public static final String P_MESSAGE = "p_message";
+
+	/**
+	 * Message target(s), e.g. comma-separated session ids of a unicast.
+	 */
+	public static final String P_MESSAGE_TO = "p_message_to";
+
+	/**
+	 * Connect to the cluster, received Events go to the Receiver.
+	 */
+	public void start(Receiver aReceiver) throws PushletException;
+
+	/**
+	 * Leave the cluster.
+	 */
+	public void stop();
+
+	/**
+	 * Unique id of this node in the cluster.
+	 */
+	public String getNodeId();
+
+	/**
+	 * Forward Event to the other nodes.
+	 * <p/>
+	 * Called with the Dispatcher lock held, so must not block. The Event is
+	 * owned by the bus and not modified by the caller afterwards.
+	 */
+	public void publish(Event anEvent);
+
+	/**
+	 * Send message to one node, must not block.
+	 *
+	 * @return false if the node is unknown or the message was dropped
+	 */
+	public boolean send(String aNodeId, Event aMessage);
+
+	/**
+	 * Send message to all other nodes, must not block.
+	 */
+	public void sendAll(Event aMessage);
+
+	/**
+	 * Subscription with subject prefix added on this node.
+	 */
+	public void addInterest(String aPrefix);
+
+	/**
+	 * Subscription with subject prefix removed on this node.
+	 */
+	public void removeInterest(String aPrefix);
+
+	/**
+	 * Callback for Events from other nodes.
+	 */
+	public interface Receiver {
+		/**
+		 * Event multicast on another node.
+		 */
+		public void onEvent(Event anEvent, String aNodeId);
+
+		/**
+		 * Message sent by another node.
+		 */
+		public void onMessage(Event aMessage, String aNodeId);
+
+		/**
+		 * Connected to node, messages can be sent to it.
+		 */
+		public void onNodeJoined(String aNodeId);
+
+		/**
+		 * Node disconnected, e.g. stopped or crashed.
+		 */
+		public void onNodeLeft(String aNodeId);
+	}
+}
@@ -0,0 +1,210 @@
+package com.mustr.pushlet.cluster;
+
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.core.Protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of Events and frames for the cluster bus.
+ * <p/>
+ * A frame is a 4-byte length, a type byte and the payload. An events or
+ * messages frame is a varint count and the Events. An Event is a
+ * varint field count followed by name/value pairs. Strings are a varint
+ * UTF-8 byte length and the bytes; common field names are sent as a single
+ * byte index into a fixed table instead (length 0 is followed by the index).
+ * An interest frame is a reset flag (1: all prefixes follow, replacing the
+ * previous ones), a varint count and per prefix an add (1) or remove (0)
+ * byte and the prefix.
+ */
+public class EventCodec implements Protocol {
+	public static final int MAGIC = 0x50534C54;
+	public static final int VERSION = 2;
+	public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Frame types.
+	 */
+	public static final byte FRAME_HELLO = 1;
+	public static final byte FRAME_EVENTS = 2;
+	public static final byte FRAME_INTEREST = 3;
+	public static final byte FRAME_MESSAGES = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Field names sent by index, append only (part of the protocol): adding
+	 * names needs a new VERSION, such that older peers fail the hello.
+	 */
+	private static final String[] NAMES = {P_EVENT, P_SUBJECT, P_TIME, P_FROM, P_ID, P_TO,
+			P_SEQ, P_SUBJECT_SEQ, P_TOMBSTONE, P_URGENT, P_FORMAT, P_MODE,
+			ClusterBus.P_MESSAGE, ClusterBus.P_MESSAGE_TO};
+	private static final Map<String, Integer> NAME_INDEX = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < NAMES.length; i++) {
+			NAME_INDEX.put(NAMES[i], i);
+		}
+	}
+
+	private EventCodec() {
+	}
+
+	public static void writeHello(DataOutput out, String aNodeId) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		writeString(out, aNodeId);
+	}
+
+	/**
+	 * Read hello payload.
+	 *
+	 * @return node id of the sender
+	 * @throws IOException if not a cluster bus peer of this version
+	 */
+	public static String readHello(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a cluster bus peer");
+		}
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported cluster bus version " + version);
+		}
+		return readString(in);
+	}
+
+	/**
+	 * Write interest changes: "+prefix" adds, "-prefix" removes.
+	 */
+	public static void writeInterest(DataOutput out, boolean aReset, List<String> theChanges) throws IOException {
+		out.writeByte(aReset ? 1 : 0);
+		writeVarInt(out, theChanges.size());
+		for (int i = 0; i < theChanges.size(); i++) {
+			String change = theChanges.get(i);
+			boolean remove = change.startsWith("-");
+			out.writeByte(remove ? 0 : 1);
+			writeString(out, change.substring(1));
+		}
+	}
+
+	/**
+	 * Read interest changes as written by writeInterest().
+	 *
+	 * @return true if the changes replace all previous prefixes
+	 */
+	public static boolean readInterest(DataInput in, List<String> theChanges) throws IOException {
+		boolean reset = in.readUnsignedByte() == 1;
+		int count = readVarInt(in);
+		for (int i = 0; i < count; i++) {
+			boolean add = in.readUnsignedByte() == 1;
+			theChanges.add((add ? "+" : "-") + readString(in));
+		}
+		return reset;
+	}
+
+	public static void writeEvents(DataOutput out, List<Event> theEvents) throws IOException {
+		writeVarInt(out, theEvents.size());
+		for (int i = 0; i < theEvents.size(); i++) {
+			writeEvent(out, theEvents.get(i));
+		}
+	}
+
+	public static Event[] readEvents(DataInput in) throws IOException {
+		Event[] events = new Event[readVarInt(in)];
+		for (int i = 0; i < events.length; i++) {
+			events[i] = readEvent(in);
+		}
+		return events;
+	}
+
+	public static void writeEvent(DataOutput out, Event anEvent) throws IOException {
+		int count = 0;
+		for (Iterator<String> iter = anEvent.getFieldNames(); iter.hasNext(); iter.next()) {
+			count++;
+		}
+		writeVarInt(out, count);
+		for (Iterator<String> iter = anEvent.getFieldNames(); iter.hasNext();) {
+			String name = iter.next();
+			Integer index = NAME_INDEX.get(name);
+			if (index != null) {
+				out.writeByte(0);
+				out.writeByte(index);
+			} else {
+				writeString(out, name);
+			}
+			writeString(out, anEvent.getField(name, ""));
+		}
+	}
+
+	public static Event readEvent(DataInput in) throws IOException {
+		int count = readVarInt(in);
+		Map<String, String> attributes = new HashMap<String, String>(count * 2);
+		for (int i = 0; i < count; i++) {
+			String name;
+			int length = readVarInt(in);
+			if (length == 0) {
+				int index = in.readUnsignedByte();
+				if (index >= NAMES.length) {
+					throw new IOException("Unknown field name index " + index);
+				}
+				name = NAMES[index];
+			} else {
+				name = readString(in, length);
+			}
+			attributes.put(name, readString(in));
+		}
+		if (!attributes.containsKey(P_EVENT)) {
+			throw new IOException("Event without " + P_EVENT);
+		}
+		return new Event(attributes);
+	}
+
+	public static void writeString(DataOutput out, String aString) throws IOException {
+		byte[] bytes = aString.getBytes(UTF8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		return readString(in, readVarInt(in));
+	}
+
+	private static String readString(DataInput in, int aLength) throws IOException {
+		if (aLength < 0 || aLength > MAX_FRAME_BYTES) {
+			throw new IOException("Invalid string length " + aLength);
+		}
+		byte[] bytes = new byte[aLength];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Unsigned LEB128: 7 bits per byte, high bit set if more follow.
+	 */
+	public static void writeVarInt(DataOutput out, int aValue) throws IOException {
+		while ((aValue & ~0x7F) != 0) {
+			out.writeByte((aValue & 0x7F) | 0x80);
+			aValue >>>= 7;
+		}
+		out.writeByte(aValue);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
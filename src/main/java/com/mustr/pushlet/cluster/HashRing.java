@@ -0,0 +1,77 @@
+package com.mustr.pushlet.cluster;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring of cluster nodes with virtual nodes.
+ * <p/>
+ * Each node is placed on the ring at several points (hashes of
+ * "nodeId#i"), a key belongs to the first node point at or after its
+ * hash. Adding or removing a node only moves the keys next to its points,
+ * and many points per node spread the keys evenly. Immutable, all nodes
+ * with the same node ids compute the same owners.
+ */
+public class HashRing {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+	private final Set<String> nodeIds;
+
+	public HashRing(Collection<String> theNodeIds, int aVirtualNodes) {
+		nodeIds = Collections.unmodifiableSet(new TreeSet<String>(theNodeIds));
+		for (String nodeId : nodeIds) {
+			for (int i = 0; i < aVirtualNodes; i++) {
+				Long point = hash(nodeId + "#" + i);
+
+				// Rare collision: lowest node id wins on every node
+				String previous = points.get(point);
+				if (previous == null || previous.compareTo(nodeId) > 0) {
+					points.put(point, nodeId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get owning node of key, null if no nodes.
+	 */
+	public String getOwner(String aKey) {
+		if (points.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = points.ceilingEntry(hash(aKey));
+		return entry == null ? points.firstEntry().getValue() : entry.getValue();
+	}
+
+	public Set<String> getNodeIds() {
+		return nodeIds;
+	}
+
+	public String toString() {
+		return "HashRing" + nodeIds;
+	}
+
+	/**
+	 * 64-bit FNV-1a of UTF-8 bytes with a final avalanche mix (MurmurHash3 fmix64).
+	 */
+	static long hash(String aKey) {
+		byte[] bytes = aKey.getBytes(UTF8);
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < bytes.length; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
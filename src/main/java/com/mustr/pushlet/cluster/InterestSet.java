@@ -0,0 +1,91 @@
+package com.mustr.pushlet.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Subject prefixes a node has subscribers for, counted per subscription.
+ * <p/>
+ * A node advertises only the changes of the set itself (a prefix added
+ * for its first subscription or removed with its last), so other nodes can
+ * forward just the Events their subscribers may match. This is a superset
+ * of the real interest: wildcard patterns count as their literal prefix and
+ * field filters are not included.
+ * <p/>
+ * <b>Implementation</b><br>
+ * Prefixes are kept sorted, a subject matches if the greatest prefix not
+ * after it is one of its prefixes; if not, the search continues below the
+ * common part of both, so a lookup takes a few floor() calls.
+ */
+public class InterestSet {
+	private final TreeMap<String, Integer> prefixes = new TreeMap<String, Integer>();
+
+	/**
+	 * Count prefix.
+	 *
+	 * @return true if the prefix is new
+	 */
+	public synchronized boolean add(String aPrefix) {
+		Integer count = prefixes.get(aPrefix);
+		prefixes.put(aPrefix, count == null ? 1 : count + 1);
+		return count == null;
+	}
+
+	/**
+	 * Uncount prefix.
+	 *
+	 * @return true if the prefix is gone
+	 */
+	public synchronized boolean remove(String aPrefix) {
+		Integer count = prefixes.get(aPrefix);
+		if (count == null) {
+			return false;
+		}
+		if (count > 1) {
+			prefixes.put(aPrefix, count - 1);
+			return false;
+		}
+		prefixes.remove(aPrefix);
+		return true;
+	}
+
+	/**
+	 * Does a prefix match the subject ?
+	 */
+	public synchronized boolean matches(String aSubject) {
+		String key = aSubject;
+		while (true) {
+			String floor = prefixes.floorKey(key);
+			if (floor == null) {
+				return false;
+			}
+			if (aSubject.startsWith(floor)) {
+				return true;
+			}
+
+			// Prefixes between floor and key would be after floor
+			int common = 0;
+			while (common < floor.length() && key.charAt(common) == floor.charAt(common)) {
+				common++;
+			}
+			key = key.substring(0, common);
+		}
+	}
+
+	public synchronized List<String> getPrefixes() {
+		return new ArrayList<String>(prefixes.keySet());
+	}
+
+	public synchronized void clear() {
+		prefixes.clear();
+	}
+
+	public synchronized int getSize() {
+		return prefixes.size();
+	}
+
+	public synchronized String toString() {
+		return prefixes.keySet().toString();
+	}
+}
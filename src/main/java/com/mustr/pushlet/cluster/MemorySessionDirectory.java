@@ -0,0 +1,245 @@
+package com.mustr.pushlet.cluster;
+
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.core.Protocol;
+import com.mustr.pushlet.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session directory replicated in memory on every node.
+ * <p/>
+ * Each node sends changes of its own sessions to all other nodes and,
+ * when it connects to a node, all its sessions (replacing what that node
+ * knew of them). Sessions of a node that disconnects are dropped. Lookups
+ * are local map reads.
+ */
+public class MemorySessionDirectory implements SessionDirectory, Protocol {
+	/**
+	 * Message types.
+	 */
+	public static final String MESSAGE_SESSION_ADD = "session-add";
+	public static final String MESSAGE_SESSION_REMOVE = "session-remove";
+	public static final String MESSAGE_SESSIONS = "sessions";
+
+	/**
+	 * Message fields.
+	 */
+	private static final String P_JSESSIONID = "p_jsessionid";
+	private static final String P_RESET = "p_reset";
+
+	/**
+	 * Sessions per "sessions" message.
+	 */
+	private static final int SESSIONS_PER_MESSAGE = 1000;
+
+	private ClusterBus bus;
+	private String nodeId;
+
+	/**
+	 * Session id -> Location, written under lock.
+	 */
+	private final ConcurrentHashMap<String, Location> sessions = new ConcurrentHashMap<String, Location>();
+
+	/**
+	 * jsessionid -> session ids, written under lock.
+	 */
+	private final ConcurrentHashMap<String, Set<String>> users = new ConcurrentHashMap<String, Set<String>>();
+
+	public void start(ClusterBus aBus) {
+		bus = aBus;
+		nodeId = aBus.getNodeId();
+	}
+
+	public void stop() {
+		synchronized (this) {
+			sessions.clear();
+			users.clear();
+		}
+	}
+
+	public void addSession(String aSessionId) {
+		put(aSessionId, new Location(nodeId, null));
+		bus.sendAll(createMessage(MESSAGE_SESSION_ADD, aSessionId, null));
+	}
+
+	public void addUserSession(String aSessionId, String aJSessionId) {
+		put(aSessionId, new Location(nodeId, aJSessionId));
+		bus.sendAll(createMessage(MESSAGE_SESSION_ADD, aSessionId, aJSessionId));
+	}
+
+	public void removeSession(String aSessionId) {
+		remove(aSessionId, nodeId);
+		bus.sendAll(createMessage(MESSAGE_SESSION_REMOVE, aSessionId, null));
+	}
+
+	public String getNodeId(String aSessionId) {
+		Location location = sessions.get(aSessionId);
+		return location == null ? null : location.nodeId;
+	}
+
+	public List<String> getUserSessionIds(String aJSessionId) {
+		Set<String> sessionIds = aJSessionId == null ? null : users.get(aJSessionId);
+		if (sessionIds == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(sessionIds);
+	}
+
+	public void onMessage(Event aMessage, String aNodeId) {
+		String type = aMessage.getField(ClusterBus.P_MESSAGE);
+		if (MESSAGE_SESSION_ADD.equals(type)) {
+			put(aMessage.getField(P_ID), new Location(aNodeId, aMessage.getField(P_JSESSIONID)));
+		} else if (MESSAGE_SESSION_REMOVE.equals(type)) {
+			remove(aMessage.getField(P_ID), aNodeId);
+		} else if (MESSAGE_SESSIONS.equals(type)) {
+			if ("true".equals(aMessage.getField(P_RESET))) {
+				removeNode(aNodeId);
+			}
+			String[] entries = aMessage.getField(ClusterBus.P_MESSAGE_TO, "").split(",");
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].length() == 0) {
+					continue;
+				}
+				int separator = entries[i].indexOf('=');
+				if (separator < 0) {
+					put(entries[i], new Location(aNodeId, null));
+				} else {
+					put(entries[i].substring(0, separator), new Location(aNodeId, entries[i].substring(separator + 1)));
+				}
+			}
+		} else {
+			Log.warn("MemorySessionDirectory: unknown message " + aMessage);
+		}
+	}
+
+	/**
+	 * Send all sessions of this node to the joined node.
+	 */
+	public void onNodeJoined(String aNodeId) {
+		List<String> entries = new ArrayList<String>();
+		for (Map.Entry<String, Location> entry : sessions.entrySet()) {
+			Location location = entry.getValue();
+			if (location.nodeId.equals(nodeId)) {
+				entries.add(location.jsessionid == null ? entry.getKey() : entry.getKey() + "=" + location.jsessionid);
+			}
+		}
+
+		// First message replaces, even if empty
+		int start = 0;
+		do {
+			int end = Math.min(start + SESSIONS_PER_MESSAGE, entries.size());
+			Event message = createMessage(MESSAGE_SESSIONS, null, null);
+			message.setField(ClusterBus.P_MESSAGE_TO, join(entries.subList(start, end)));
+			if (start == 0) {
+				message.setField(P_RESET, "true");
+			}
+			if (!bus.send(aNodeId, message)) {
+				Log.warn("MemorySessionDirectory: cannot send sessions to " + aNodeId);
+				return;
+			}
+			start = end;
+		} while (start < entries.size());
+	}
+
+	public void onNodeLeft(String aNodeId) {
+		int count = removeNode(aNodeId);
+		Log.info("MemorySessionDirectory: node " + aNodeId + " left, removed " + count + " sessions");
+	}
+
+	private synchronized void put(String aSessionId, Location aLocation) {
+		if (aSessionId == null) {
+			return;
+		}
+		Location previous = sessions.put(aSessionId, aLocation);
+		if (previous != null && previous.jsessionid != null && !previous.jsessionid.equals(aLocation.jsessionid)) {
+			removeUser(previous.jsessionid, aSessionId);
+		}
+		if (aLocation.jsessionid != null) {
+			Set<String> sessionIds = users.get(aLocation.jsessionid);
+			if (sessionIds == null) {
+				sessionIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+				users.put(aLocation.jsessionid, sessionIds);
+			}
+			sessionIds.add(aSessionId);
+		}
+	}
+
+	/**
+	 * Remove session if still owned by node.
+	 */
+	private synchronized void remove(String aSessionId, String aNodeId) {
+		if (aSessionId == null) {
+			return;
+		}
+		Location location = sessions.get(aSessionId);
+		if (location == null || !location.nodeId.equals(aNodeId)) {
+			return;
+		}
+		sessions.remove(aSessionId);
+		if (location.jsessionid != null) {
+			removeUser(location.jsessionid, aSessionId);
+		}
+	}
+
+	private synchronized int removeNode(String aNodeId) {
+		List<String> sessionIds = new ArrayList<String>();
+		for (Map.Entry<String, Location> entry : sessions.entrySet()) {
+			if (entry.getValue().nodeId.equals(aNodeId)) {
+				sessionIds.add(entry.getKey());
+			}
+		}
+		for (int i = 0; i < sessionIds.size(); i++) {
+			remove(sessionIds.get(i), aNodeId);
+		}
+		return sessionIds.size();
+	}
+
+	private void removeUser(String aJSessionId, String aSessionId) {
+		Set<String> sessionIds = users.get(aJSessionId);
+		if (sessionIds != null) {
+			sessionIds.remove(aSessionId);
+			if (sessionIds.isEmpty()) {
+				users.remove(aJSessionId);
+			}
+		}
+	}
+
+	private static Event createMessage(String aType, String aSessionId, String aJSessionId) {
+		Event message = new Event("directory");
+		message.setField(ClusterBus.P_MESSAGE, aType);
+		if (aSessionId != null) {
+			message.setField(P_ID, aSessionId);
+		}
+		if (aJSessionId != null) {
+			message.setField(P_JSESSIONID, aJSessionId);
+		}
+		return message;
+	}
+
+	private static String join(List<String> theItems) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < theItems.size(); i++) {
+			result.append(i == 0 ? "" : ",").append(theItems.get(i));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Owning node and user of a session.
+	 */
+	private static class Location {
+		final String nodeId;
+		final String jsessionid;
+
+		Location(String aNodeId, String aJSessionId) {
+			nodeId = aNodeId;
+			jsessionid = aJSessionId;
+		}
+	}
+}
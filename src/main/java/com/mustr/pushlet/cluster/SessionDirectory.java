@@ -0,0 +1,57 @@
+package com.mustr.pushlet.cluster;
+
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.util.PushletException;
+
+import java.util.List;
+
+/**
+ * Location of all sessions in the cluster: the owning node per session id
+ * and the session ids per user (jsessionid).
+ * <p/>
+ * The Dispatcher reports sessions of this node (join, user registration,
+ * leave and expiry) and looks up owning nodes to route unicasts. An
+ * implementation may replicate through the ClusterBus callbacks, like
+ * MemorySessionDirectory, or keep all entries in an external store and
+ * ignore them. Configured with cluster.directory.class.
+ */
+public interface SessionDirectory {
+
+	public void start(ClusterBus aBus) throws PushletException;
+
+	public void stop();
+
+	/**
+	 * Session joined on this node.
+	 */
+	public void addSession(String aSessionId);
+
+	/**
+	 * Session on this node registered for a user.
+	 */
+	public void addUserSession(String aSessionId, String aJSessionId);
+
+	/**
+	 * Session on this node left or expired.
+	 */
+	public void removeSession(String aSessionId);
+
+	/**
+	 * Get node owning session, null if unknown.
+	 */
+	public String getNodeId(String aSessionId);
+
+	/**
+	 * Get ids of the sessions of a user on all nodes.
+	 */
+	public List<String> getUserSessionIds(String aJSessionId);
+
+	/**
+	 * Directory message from another node, see ClusterBus.Receiver.
+	 */
+	public void onMessage(Event aMessage, String aNodeId);
+
+	public void onNodeJoined(String aNodeId);
+
+	public void onNodeLeft(String aNodeId);
+}
@@ -0,0 +1,82 @@
+package com.mustr.pushlet.cluster;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Owning node per subject for partitioned subjects (cluster.owner.subjects).
+ * <p/>
+ * Subjects under the configured prefixes are assigned to the live nodes by
+ * a HashRing. The owner sequences all Events of its subjects and relays them
+ * to the other nodes. Nodes are added and removed as the ClusterBus reports
+ * them, the caller migrates subject state when the ring changes.
+ */
+public class SubjectOwnership {
+	private final String nodeId;
+	private final String[] prefixes;
+	private final int virtualNodes;
+	private final Set<String> nodeIds = new TreeSet<String>();
+	private volatile HashRing ring;
+
+	public SubjectOwnership(String aNodeId, String[] thePrefixes, int aVirtualNodes) {
+		nodeId = aNodeId;
+		prefixes = new String[thePrefixes.length];
+		for (int i = 0; i < thePrefixes.length; i++) {
+			prefixes[i] = thePrefixes[i].trim();
+		}
+		virtualNodes = aVirtualNodes;
+		nodeIds.add(nodeId);
+		ring = new HashRing(nodeIds, virtualNodes);
+	}
+
+	/**
+	 * Is subject assigned to an owner ?
+	 */
+	public boolean isPartitioned(String aSubject) {
+		if (aSubject == null) {
+			return false;
+		}
+		for (int i = 0; i < prefixes.length; i++) {
+			if (aSubject.startsWith(prefixes[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getOwner(String aSubject) {
+		return ring.getOwner(aSubject);
+	}
+
+	public boolean isOwner(String aSubject) {
+		return nodeId.equals(ring.getOwner(aSubject));
+	}
+
+	public HashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Add live node.
+	 *
+	 * @return previous ring, null if unchanged
+	 */
+	public synchronized HashRing addNode(String aNodeId) {
+		return nodeIds.add(aNodeId) ? rebuild() : null;
+	}
+
+	/**
+	 * Remove node that left.
+	 *
+	 * @return previous ring, null if unchanged
+	 */
+	public synchronized HashRing removeNode(String aNodeId) {
+		return !aNodeId.equals(nodeId) && nodeIds.remove(aNodeId) ? rebuild() : null;
+	}
+
+	private HashRing rebuild() {
+		HashRing previous = ring;
+		ring = new HashRing(nodeIds, virtualNodes);
+		return previous;
+	}
+}
@@ -0,0 +1,593 @@
+package com.mustr.pushlet.cluster;
+
+import com.mustr.pushlet.core.Config;
+import com.mustr.pushlet.core.ConfigDefs;
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.util.Log;
+import com.mustr.pushlet.util.PushletException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster bus over plain TCP connections to a static list of peers.
+ * <p/>
+ * Each node connects to every peer in cluster.peers and sends Events on
+ * that connection only; Events from peers arrive on the connections they
+ * open to this node. The peer list may contain this node itself, which is
+ * detected in the handshake and skipped, so all nodes can share one list.
+ * <p/>
+ * <b>Implementation</b><br>
+ * publish() only offers the Event to a bounded send queue per peer (the
+ * Event is dropped with a warning if the queue is full, e.g. while a peer is
+ * down). A sender thread per peer drains its queue in batches of up to
+ * cluster.batch.max.events into one frame (see EventCodec) and flushes the
+ * socket when the queue is empty, reconnecting after errors. A reader thread
+ * per inbound connection decodes frames and passes Events to the Receiver.
+ * <p/>
+ * Interest routing: each node sends its InterestSet to a peer when it
+ * connects and then only its changes, ahead of the next Event batch. An
+ * Event is queued for a peer only if the peer's advertised prefixes match
+ * its subject; peers that did not advertise yet get all Events.
+ * <p/>
+ * Messages (see send()) share the send queue with Events, so both keep
+ * their order, but go in their own frames to the Receiver's onMessage().
+ */
+public class TcpClusterBus implements ClusterBus, ConfigDefs, Runnable {
+	/**
+	 * Queued to wake up a sender for interest changes.
+	 */
+	private static final Object INTEREST_CHANGED = new Object();
+
+	private String nodeId;
+	private int port;
+	private int queueSize;
+	private int batchMaxEvents;
+	private long batchLingerMillis;
+	private long retryMillis;
+
+	private Receiver receiver;
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+	private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+	private final ConcurrentHashMap<String, Peer> peersById = new ConcurrentHashMap<String, Peer>();
+
+	/**
+	 * Current inbound connection by peer node id.
+	 */
+	private final ConcurrentHashMap<String, Socket> inboundById = new ConcurrentHashMap<String, Socket>();
+	private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Subscribed prefixes of this node, also guards the Peer interest changes.
+	 */
+	private final InterestSet localInterest = new InterestSet();
+
+	/**
+	 * Advertised prefixes by peer node id.
+	 */
+	private final ConcurrentHashMap<String, InterestSet> remoteInterests = new ConcurrentHashMap<String, InterestSet>();
+	private volatile boolean running;
+
+	public void start(Receiver aReceiver) throws PushletException {
+		receiver = aReceiver;
+		port = Config.getIntProperty(CLUSTER_PORT, 7800);
+		queueSize = Config.getIntProperty(CLUSTER_PEER_QUEUE_SIZE, 10000);
+		batchMaxEvents = Config.getIntProperty(CLUSTER_BATCH_MAX_EVENTS, 256);
+		batchLingerMillis = Config.getLongProperty(CLUSTER_BATCH_LINGER_MILLIS, 0);
+		retryMillis = Config.getLongProperty(CLUSTER_CONNECT_RETRY_MILLIS, 1000);
+		nodeId = Config.getProperty(CLUSTER_NODE_ID, "").trim();
+		if (nodeId.length() == 0) {
+			try {
+				nodeId = InetAddress.getLocalHost().getHostName() + ":" + port;
+			} catch (IOException e) {
+				nodeId = "localhost:" + port;
+			}
+		}
+
+		try {
+			serverSocket = new ServerSocket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			throw new PushletException("TcpClusterBus: cannot listen on port " + port, e);
+		}
+		running = true;
+		acceptThread = new Thread(this, "TcpClusterBus-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		String[] addresses = Config.getProperty(CLUSTER_PEERS, "").split(",");
+		for (int i = 0; i < addresses.length; i++) {
+			String address = addresses[i].trim();
+			if (address.length() == 0) {
+				continue;
+			}
+			int colon = address.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new PushletException("TcpClusterBus: invalid peer (expect host:port): " + address);
+			}
+			Peer peer = new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+			peers.add(peer);
+			peer.start();
+		}
+		Log.info("TcpClusterBus: node " + nodeId + " listening on port " + port + " peers=" + peers.size());
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException ignore) {
+		}
+		for (Peer peer : peers) {
+			peer.stop();
+		}
+		peers.clear();
+		peersById.clear();
+		for (Socket socket : inbound) {
+			close(socket);
+		}
+		inbound.clear();
+		Log.info("TcpClusterBus: node " + nodeId + " stopped");
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void publish(Event anEvent) {
+		String subject = anEvent.getSubject();
+		for (Peer peer : peers) {
+			if (peer.isInterested(subject)) {
+				peer.offer(anEvent);
+			} else {
+				peer.skipped++;
+			}
+		}
+	}
+
+	public boolean send(String aNodeId, Event aMessage) {
+		Peer peer = peersById.get(aNodeId);
+		return peer != null && peer.offer(new Message(aMessage));
+	}
+
+	public void sendAll(Event aMessage) {
+		Message message = new Message(aMessage);
+		for (Peer peer : peers) {
+			peer.offer(message);
+		}
+	}
+
+	public void addInterest(String aPrefix) {
+		synchronized (localInterest) {
+			if (localInterest.add(aPrefix)) {
+				for (Peer peer : peers) {
+					peer.addInterestChange("+" + aPrefix);
+				}
+			}
+		}
+	}
+
+	public void removeInterest(String aPrefix) {
+		synchronized (localInterest) {
+			if (localInterest.remove(aPrefix)) {
+				for (Peer peer : peers) {
+					peer.addInterestChange("-" + aPrefix);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accept connections from peers.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				inbound.add(socket);
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						read(socket);
+					}
+				}, "TcpClusterBus-reader-" + socket.getRemoteSocketAddress());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) {
+					Log.warn("TcpClusterBus: accept error", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handshake and read frames from an inbound connection.
+	 */
+	private void read(Socket aSocket) {
+		String remoteId = null;
+		InterestSet interest = null;
+		try {
+			aSocket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(aSocket.getInputStream(), 65536));
+			DataOutputStream out = new DataOutputStream(aSocket.getOutputStream());
+
+			if (readFrameType(in) != EventCodec.FRAME_HELLO) {
+				throw new IOException("Expected hello");
+			}
+			remoteId = EventCodec.readHello(in);
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			EventCodec.writeHello(new DataOutputStream(buffer), nodeId);
+			writeFrame(out, EventCodec.FRAME_HELLO, buffer);
+			out.flush();
+			if (remoteId.equals(nodeId)) {
+				// Own address in peer list, the sender side gives up
+				return;
+			}
+			Log.info("TcpClusterBus: peer " + remoteId + " connected from " + aSocket.getRemoteSocketAddress());
+			Socket previous = inboundById.put(remoteId, aSocket);
+			if (previous != null) {
+				close(previous);
+			}
+
+			while (running) {
+				byte type = readFrameType(in);
+				if (type == EventCodec.FRAME_INTEREST) {
+					interest = readInterest(in, remoteId, interest);
+					continue;
+				}
+				if (type != EventCodec.FRAME_EVENTS && type != EventCodec.FRAME_MESSAGES) {
+					throw new IOException("Unexpected frame type " + type);
+				}
+				Event[] events = EventCodec.readEvents(in);
+				for (int i = 0; i < events.length; i++) {
+					try {
+						if (type == EventCodec.FRAME_EVENTS) {
+							receiver.onEvent(events[i], remoteId);
+						} else {
+							receiver.onMessage(events[i], remoteId);
+						}
+					} catch (Throwable t) {
+						Log.warn("TcpClusterBus: error dispatching event from " + remoteId, t);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				Log.info("TcpClusterBus: peer " + (remoteId == null ? aSocket.getRemoteSocketAddress() : remoteId) + " disconnected: " + e);
+			}
+		} finally {
+			// Interest unknown until the peer reconnects
+			if (interest != null) {
+				remoteInterests.remove(remoteId, interest);
+			}
+			inbound.remove(aSocket);
+			close(aSocket);
+
+			// Not replaced by a new connection: node is gone
+			if (remoteId != null && inboundById.remove(remoteId, aSocket) && running) {
+				try {
+					receiver.onNodeLeft(remoteId);
+				} catch (Throwable t) {
+					Log.warn("TcpClusterBus: error in onNodeLeft " + remoteId, t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply interest frame of a peer.
+	 *
+	 * @return the peer's current InterestSet
+	 */
+	private InterestSet readInterest(DataInputStream in, String aRemoteId, InterestSet anInterest) throws IOException {
+		List<String> changes = new ArrayList<String>();
+		boolean reset = EventCodec.readInterest(in, changes);
+
+		// Replace on reset, so lookups never see a partial set
+		InterestSet interest = reset || anInterest == null ? new InterestSet() : anInterest;
+		for (int i = 0; i < changes.size(); i++) {
+			String change = changes.get(i);
+			if (change.startsWith("+")) {
+				interest.add(change.substring(1));
+			} else {
+				interest.remove(change.substring(1));
+			}
+		}
+		if (interest != anInterest) {
+			remoteInterests.put(aRemoteId, interest);
+		}
+		Log.debug("TcpClusterBus: interest of " + aRemoteId + " " + interest);
+		return interest;
+	}
+
+	/**
+	 * Read frame header, the payload follows in the stream.
+	 */
+	private static byte readFrameType(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 1 || length > EventCodec.MAX_FRAME_BYTES) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		return in.readByte();
+	}
+
+	private static void writeFrame(DataOutputStream out, byte aType, ByteArrayOutputStream aPayload) throws IOException {
+		out.writeInt(aPayload.size() + 1);
+		out.writeByte(aType);
+		aPayload.writeTo(out);
+	}
+
+	private static void close(Socket aSocket) {
+		if (aSocket == null) {
+			return;
+		}
+		try {
+			aSocket.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	/**
+	 * Queued message, sent in a messages frame.
+	 */
+	private static class Message {
+		final Event event;
+
+		Message(Event anEvent) {
+			event = anEvent;
+		}
+	}
+
+	/**
+	 * Outbound connection with send queue of Events and Messages.
+	 */
+	private class Peer implements Runnable {
+		private final String host;
+		private final int peerPort;
+		private final ArrayBlockingQueue<Object> queue;
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		private final List<Object> batch = new ArrayList<Object>();
+		private final List<Event> frameEvents = new ArrayList<Event>();
+
+		/**
+		 * Changes of localInterest not sent yet, guarded by localInterest.
+		 */
+		private final List<String> interestChanges = new ArrayList<String>();
+		private Thread thread;
+		private volatile Socket socket;
+		private volatile String peerId;
+		private volatile boolean self;
+		private volatile boolean stopped;
+		private long dropped;
+
+		/**
+		 * Events not queued for lack of interest, only updated by publish().
+		 */
+		private long skipped;
+
+		Peer(String aHost, int aPort) {
+			host = aHost;
+			peerPort = aPort;
+			queue = new ArrayBlockingQueue<Object>(queueSize);
+		}
+
+		void start() {
+			thread = new Thread(this, "TcpClusterBus-peer-" + host + ":" + peerPort);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() {
+			Log.info("TcpClusterBus: peer " + this + " dropped=" + dropped + " skipped=" + skipped);
+			stopped = true;
+			close(socket);
+			thread.interrupt();
+		}
+
+		boolean isInterested(String aSubject) {
+			String id = peerId;
+			InterestSet interest = id == null ? null : remoteInterests.get(id);
+			return interest == null || (aSubject != null && interest.matches(aSubject));
+		}
+
+		/**
+		 * Queue interest change, called with localInterest locked.
+		 */
+		void addInterestChange(String aChange) {
+			interestChanges.add(aChange);
+			queue.offer(INTEREST_CHANGED);
+		}
+
+		/**
+		 * Queue Event or Message.
+		 *
+		 * @return false if dropped
+		 */
+		boolean offer(Object anItem) {
+			if (self) {
+				return false;
+			}
+			if (queue.offer(anItem)) {
+				return true;
+			}
+			synchronized (this) {
+				if (dropped++ % 1000 == 0) {
+					Log.warn("TcpClusterBus: send queue to " + this + " full, dropped=" + dropped);
+				}
+			}
+			return false;
+		}
+
+		public void run() {
+			while (!stopped && !self) {
+				DataOutputStream out;
+				try {
+					out = connect();
+				} catch (IOException e) {
+					Log.debug("TcpClusterBus: cannot connect to " + this + ": " + e);
+					pause();
+					continue;
+				}
+				if (out == null) {
+					continue;
+				}
+
+				try {
+					send(out);
+				} catch (IOException e) {
+					if (!stopped) {
+						Log.warn("TcpClusterBus: connection to " + this + " lost, " + batch.size() + " events not sent: " + e);
+					}
+				} catch (InterruptedException e) {
+					// stop()
+				} finally {
+					batch.clear();
+					frameEvents.clear();
+					close(socket);
+					socket = null;
+				}
+			}
+		}
+
+		/**
+		 * Connect and handshake.
+		 *
+		 * @return output stream, null if the peer is this node
+		 */
+		private DataOutputStream connect() throws IOException {
+			Socket s = new Socket();
+			try {
+				s.connect(new InetSocketAddress(host, peerPort), 5000);
+				s.setTcpNoDelay(true);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 65536));
+				DataInputStream in = new DataInputStream(s.getInputStream());
+
+				buffer.reset();
+				EventCodec.writeHello(new DataOutputStream(buffer), nodeId);
+				writeFrame(out, EventCodec.FRAME_HELLO, buffer);
+				out.flush();
+				if (readFrameType(in) != EventCodec.FRAME_HELLO) {
+					throw new IOException("Expected hello");
+				}
+				peerId = EventCodec.readHello(in);
+				if (peerId.equals(nodeId)) {
+					self = true;
+					queue.clear();
+					close(s);
+					return null;
+				}
+				// All current interest, later only changes
+				List<String> prefixes = new ArrayList<String>();
+				synchronized (localInterest) {
+					interestChanges.clear();
+					for (String prefix : localInterest.getPrefixes()) {
+						prefixes.add("+" + prefix);
+					}
+				}
+				buffer.reset();
+				EventCodec.writeInterest(new DataOutputStream(buffer), true, prefixes);
+				writeFrame(out, EventCodec.FRAME_INTEREST, buffer);
+				out.flush();
+
+				socket = s;
+				peersById.put(peerId, this);
+				Log.info("TcpClusterBus: connected to peer " + this);
+				try {
+					receiver.onNodeJoined(peerId);
+				} catch (Throwable t) {
+					Log.warn("TcpClusterBus: error in onNodeJoined " + peerId, t);
+				}
+				return out;
+			} catch (IOException e) {
+				close(s);
+				throw e;
+			}
+		}
+
+		/**
+		 * Send batches until the connection fails.
+		 */
+		private void send(DataOutputStream out) throws IOException, InterruptedException {
+			DataOutputStream payload = new DataOutputStream(buffer);
+			while (!stopped) {
+				Object first = queue.poll(1000, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, batchMaxEvents - 1);
+					if (batch.size() < batchMaxEvents && batchLingerMillis > 0) {
+						// Wait a little for a fuller batch
+						Thread.sleep(batchLingerMillis);
+						queue.drainTo(batch, batchMaxEvents - batch.size());
+					}
+					batch.removeAll(Collections.singleton(INTEREST_CHANGED));
+				}
+
+				// Interest first: it may enable Events for this node
+				List<String> changes = null;
+				synchronized (localInterest) {
+					if (!interestChanges.isEmpty()) {
+						changes = new ArrayList<String>(interestChanges);
+						interestChanges.clear();
+					}
+				}
+				if (changes != null) {
+					buffer.reset();
+					EventCodec.writeInterest(payload, false, changes);
+					writeFrame(out, EventCodec.FRAME_INTEREST, buffer);
+				}
+
+				// One frame per run of Events or Messages
+				for (int i = 0; i < batch.size(); i++) {
+					Object item = batch.get(i);
+					boolean isMessage = item instanceof Message;
+					frameEvents.add(isMessage ? ((Message) item).event : (Event) item);
+					if (i + 1 == batch.size() || (batch.get(i + 1) instanceof Message) != isMessage) {
+						buffer.reset();
+						EventCodec.writeEvents(payload, frameEvents);
+						writeFrame(out, isMessage ? EventCodec.FRAME_MESSAGES : EventCodec.FRAME_EVENTS, buffer);
+						frameEvents.clear();
+					}
+				}
+				batch.clear();
+
+				// More to come: let the buffer fill up
+				if (queue.isEmpty()) {
+					out.flush();
+				}
+			}
+		}
+
+		private void pause() {
+			try {
+				Thread.sleep(retryMillis);
+			} catch (InterruptedException e) {
+				// stop()
+			}
+		}
+
+		public String toString() {
+			return (peerId == null ? "" : peerId + "@") + host + ":" + peerPort;
+		}
+	}
+}
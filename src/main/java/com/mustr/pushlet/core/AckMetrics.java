@@ -0,0 +1,101 @@
+package com.mustr.pushlet.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histogram of acknowledged delivery, for all sessions.
+ * <p/>
+ * Latency is the time from the first send of an Event to the client's
+ * acknowledgement, kept in power-of-two millisecond buckets: bucket i counts
+ * latencies below 2^i ms, so percentiles are upper bounds.
+ */
+public class AckMetrics {
+	private static final int BUCKETS = 32;
+	private static final AckMetrics instance = new AckMetrics();
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong redelivered = new AtomicLong();
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong latencyTotal = new AtomicLong();
+	private final AtomicLong latencyMax = new AtomicLong();
+	private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+	private AckMetrics() {
+	}
+
+	public static AckMetrics getInstance() {
+		return instance;
+	}
+
+	void onSent() {
+		sent.incrementAndGet();
+	}
+
+	void onRedelivered(int aCount) {
+		redelivered.addAndGet(aCount);
+	}
+
+	void onAcked(long aLatencyMillis) {
+		long latency = Math.max(0, aLatencyMillis);
+		acked.incrementAndGet();
+		latencyTotal.addAndGet(latency);
+		long max = latencyMax.get();
+		while (latency > max && !latencyMax.compareAndSet(max, latency)) {
+			max = latencyMax.get();
+		}
+		latencies.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency)));
+	}
+
+	/**
+	 * Events sent for the first time.
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Events sent again after a reconnect.
+	 */
+	public long getRedelivered() {
+		return redelivered.get();
+	}
+
+	public long getAcked() {
+		return acked.get();
+	}
+
+	public long getLatencyMean() {
+		long count = acked.get();
+		return count == 0 ? 0 : latencyTotal.get() / count;
+	}
+
+	public long getLatencyMax() {
+		return latencyMax.get();
+	}
+
+	/**
+	 * Latency (ms) below which the given fraction of acknowledgements fell.
+	 */
+	public long getLatencyPercentile(double aFraction) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += latencies.get(i);
+		}
+		long rank = (long) Math.ceil(total * aFraction);
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += latencies.get(i);
+			if (count >= rank && count > 0) {
+				return i == 0 ? 0 : 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	public String toString() {
+		return "AckMetrics[sent=" + getSent() + " redelivered=" + getRedelivered() + " acked=" + getAcked()
+				+ " latency mean=" + getLatencyMean() + "ms p50<=" + getLatencyPercentile(0.5)
+				+ "ms p99<=" + getLatencyPercentile(0.99) + "ms max=" + getLatencyMax() + "ms]";
+	}
+}
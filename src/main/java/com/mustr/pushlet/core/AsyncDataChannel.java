@@ -0,0 +1,17 @@
+package com.mustr.pushlet.core;
+
+/**
+ * Implemented by PushletResponses of event-driven (non-blocking) transports.
+ * <p/>
+ * Instead of blocking a thread in Subscriber.fetchEvents(), the transport
+ * takes over the data channel once started and calls Subscriber.fetchNext()
+ * whenever events arrive (see Subscriber.setDataListener()) or the queue
+ * read timeout passes, until fetchNext() returns false.
+ */
+public interface AsyncDataChannel {
+
+	/**
+	 * Take over the data channel, called once the response event has been sent.
+	 */
+	public void startAsync(Subscriber aSubscriber, Command aCommand);
+}
@@ -7,8 +7,10 @@ import com.mustr.pushlet.util.Log;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Generic implementation of ClientAdapter for browser clients.
@@ -24,15 +26,24 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
 					+ "\n<script language=\"JavaScript\"> var url=\" \"; \nfunction refresh() { document.location.href=url; }</script>";
 	public static final String END_DOCUMENT = "</body></html>";
 
-	private PrintWriter servletOut;
-	private HttpServletResponse servletRsp;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private PushletResponse pushletRsp;
+	private boolean started;
 	private int bytesSent;
 
 	/**
 	 * Constructor.
 	 */
 	public BrowserAdapter(HttpServletResponse aServletResponse) {
-		servletRsp = aServletResponse;
+		this(new ServletPushletResponse(aServletResponse));
+	}
+
+	/**
+	 * Constructor for any transport.
+	 */
+	public BrowserAdapter(PushletResponse aPushletResponse) {
+		pushletRsp = aPushletResponse;
 	}
 
 	/**
@@ -41,12 +52,12 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
 	public void start() throws IOException {
 		// Keep servlet request/response objects until page ends in stop()
 		// Content type as HTML
-		servletRsp.setStatus(HttpServletResponse.SC_OK);
-		servletRsp.setContentType("text/html;charset=UTF-8");
+		pushletRsp.setStatus(HttpServletResponse.SC_OK);
+		pushletRsp.setContentType("text/html;charset=UTF-8");
 
 		// http://www.junlu.com/msg/45902.html
 		// Log.debug("bufsize=" + aRsp.getBufferSize());
-		servletOut = servletRsp.getWriter();
+		started = true;
 		send(START_DOCUMENT);
 	}
 
@@ -80,8 +91,8 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
 	 * End HTML page in client browser.
 	 */
 	public void stop() {
-		// To be garbage collected if adapter remains active
-		servletOut = null;
+		// Any further send() fails
+		started = false;
 	}
 
 	/**
@@ -90,17 +101,12 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
 	protected void send(String s) throws IOException {
 		// Send string to browser.
 		// Log.debug("Adapter: sending: " + s);
-		if (servletOut == null) {
+		if (!started) {
 			throw new IOException("Client adapter was stopped");
 		}
 
-		servletOut.print(s);
-
-		servletOut.flush();
-
-		// Note: this doesn't seem to have effect
-		// in Tomcat 4/5 if the client already disconnected.
-		servletRsp.flushBuffer();
+		// Encoded once, written and flushed in one go
+		pushletRsp.write(ByteBuffer.wrap(s.getBytes(UTF_8)));
 
 		bytesSent += s.length();
 		Log.debug("bytesSent= " + bytesSent);
@@ -111,19 +117,39 @@ public class BrowserAdapter implements ClientAdapter, Protocol {
 	 * Converts the Java Event to a JavaScript function call in browser page.
 	 */
 	protected String event2JavaScript(Event event) throws IOException {
+		// Projected fields are converted once for all projections
+		Event.Projection projection = event.getProjection();
 
 		// Convert the event to a comma-separated string.
 		String jsArgs = "";
 		for (Iterator iter = event.getFieldNames(); iter.hasNext();) {
 			String name = (String) iter.next();
+			if (projection != null && !Event.isProtocolField(name)) {
+				continue;
+			}
 			String value = event.getField(name);
-			String nextArgument = (jsArgs.equals("") ? "" : ",") + "'" + name + "'" + ", \"" + value + "\"";
+			String nextArgument = (jsArgs.equals("") ? "" : ",") + jsArgument(name, value);
 			jsArgs += nextArgument;
 		}
+		if (projection != null) {
+			String fieldArgs = projection.getJavaScript();
+			if (fieldArgs == null) {
+				fieldArgs = "";
+				for (Map.Entry<String, String> field : projection.fields.entrySet()) {
+					fieldArgs += "," + jsArgument(field.getKey(), field.getValue());
+				}
+				projection.setJavaScript(fieldArgs);
+			}
+			jsArgs += jsArgs.equals("") && fieldArgs.length() > 0 ? fieldArgs.substring(1) : fieldArgs;
+		}
 
 		// Construct and return the function call */
 		return "<script language=\"JavaScript\">parent.push(" + jsArgs + ");</script>";
 	}
 
+	private static String jsArgument(String aName, String aValue) {
+		return "'" + aName + "'" + ", \"" + aValue + "\"";
+	}
+
 }
 
@@ -4,7 +4,6 @@
 package com.mustr.pushlet.core;
 
 import com.mustr.pushlet.util.PushletException;
-import com.mustr.pushlet.util.Servlets;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,15 +27,25 @@ public class Command implements Protocol {
 	private Event rspEvent;
 
 	/**
-	 * HTTP Servlet GET/POST request.
+	 * HTTP Servlet GET/POST request, null when not running in a servlet container.
 	 */
 	public final HttpServletRequest httpReq;
 
 	/**
-	 * HTTP Servlet GET/POST response.
+	 * HTTP Servlet GET/POST response, null when not running in a servlet container.
 	 */
 	public final HttpServletResponse httpRsp;
 
+	/**
+	 * Transport-independent request.
+	 */
+	public final PushletRequest pushletReq;
+
+	/**
+	 * Transport-independent response.
+	 */
+	public final PushletResponse pushletRsp;
+
 	/**
 	 * Pushlet session.
 	 */
@@ -47,21 +56,38 @@ public class Command implements Protocol {
 	 */
 	private ClientAdapter clientAdapter;
 
+	/**
+	 * Data channel state, see Subscriber.fetchNext().
+	 */
+	long eventSeqNr = 1;
+	String refreshURL;
+
 	/**
 	 * Constructor.
 	 */
-	private Command(Session aSession, Event aRequestEvent, HttpServletRequest aHTTPReq, HttpServletResponse aHTTPRsp) {
+	private Command(Session aSession, Event aRequestEvent, HttpServletRequest aHTTPReq, HttpServletResponse aHTTPRsp,
+	                PushletRequest aPushletReq, PushletResponse aPushletRsp) {
 		session = aSession;
 		reqEvent = aRequestEvent;
 		httpReq = aHTTPReq;
 		httpRsp = aHTTPRsp;
+		pushletReq = aPushletReq;
+		pushletRsp = aPushletRsp;
 	}
 
 	/**
 	 * Create new Command object.
 	 */
 	public static Command create(Session aSession, Event aReqEvent, HttpServletRequest aHTTPReq, HttpServletResponse aHTTPRsp) {
-		return new Command(aSession, aReqEvent, aHTTPReq, aHTTPRsp);
+		return new Command(aSession, aReqEvent, aHTTPReq, aHTTPRsp,
+				new ServletPushletRequest(aHTTPReq), new ServletPushletResponse(aHTTPRsp));
+	}
+
+	/**
+	 * Create new Command object for non-servlet transports.
+	 */
+	public static Command create(Session aSession, Event aReqEvent, PushletRequest aPushletReq, PushletResponse aPushletRsp) {
+		return new Command(aSession, aReqEvent, null, null, aPushletReq, aPushletRsp);
 	}
 
 	/**
@@ -100,27 +126,44 @@ public class Command implements Protocol {
 		// Determine client adapter to create.
 		if (outputFormat.equals(FORMAT_JAVASCRIPT)) {
 			// Client expects to receive Events as JavaScript dispatch calls..
-			return new BrowserAdapter(httpRsp);
+			return new BrowserAdapter(pushletRsp);
 		} else if (outputFormat.equals(FORMAT_SERIALIZED_JAVA_OBJECT)) {
 			// Client expects to receive Events as Serialized Java Objects.
-			return new SerializedAdapter(httpRsp);
+			return new SerializedAdapter(pushletRsp);
 		} else if (outputFormat.equals(FORMAT_XML)) {
 			// Client expects to receive Events as stream of XML docs.
-			return new XMLAdapter(httpRsp);
+			return new XMLAdapter(pushletRsp);
 		} else if (outputFormat.equals(FORMAT_XML_STRICT)) {
 			// Client expects to receive Events embedded in single XML doc.
-			return new XMLAdapter(httpRsp, true);
+			return new XMLAdapter(pushletRsp, true);
 		} else {
 			throw new PushletException("Null or invalid output format: " + outputFormat);
 		}
 	}
 
+	/**
+	 * Set HTTP headers to prevent caching, for servlet and embedded server alike.
+	 */
+	protected void setNoCacheHeaders() {
+		// Set to expire far in the past.
+		pushletRsp.setHeader("Expires", "Sat, 6 May 1995 12:00:00 GMT");
+
+		// Set standard HTTP/1.1 no-cache headers.
+		pushletRsp.setHeader("Cache-Control", "no-store, no-cache, must-revalidate");
+
+		// Set IE extended HTTP/1.1 no-cache headers (use addHeader).
+		pushletRsp.addHeader("Cache-Control", "post-check=0, pre-check=0");
+
+		// Set standard HTTP/1.0 no-cache header.
+		pushletRsp.setHeader("Pragma", "no-cache");
+	}
+
 	/**
 	 * Sends HTTP response headers.
 	 */
 	protected void sendResponseHeaders() {
 		// Just to try to prevent caching in any form.
-		Servlets.setNoCacheHeaders(httpRsp);
+		setNoCacheHeaders();
 
 		// Close connection for Java enabled browsers
 		if (session.getUserAgent().indexOf("java") > 0) {
@@ -133,7 +176,7 @@ public class Command implements Protocol {
 			//
 			// Since we don't know the content length we will assume
 			// the underlying servlet engine will use chunked encoding.
-			httpRsp.setHeader("Connection", "close");
+			pushletRsp.setHeader("Connection", "close");
 		}
 	}
 
@@ -123,6 +123,27 @@ public class Config implements ConfigDefs {
 		}
 	}
 
+	/**
+	 * Get optional boolean property; if not set return default.
+	 */
+	public static boolean getBoolProperty(String aName, boolean aDefault) {
+		return hasProperty(aName) ? getBoolProperty(aName) : aDefault;
+	}
+
+	/**
+	 * Get optional int property; if not set return default.
+	 */
+	public static int getIntProperty(String aName, int aDefault) {
+		return hasProperty(aName) ? getIntProperty(aName) : aDefault;
+	}
+
+	/**
+	 * Get optional long property; if not set return default.
+	 */
+	public static long getLongProperty(String aName, long aDefault) {
+		return hasProperty(aName) ? getLongProperty(aName) : aDefault;
+	}
+
 	public static boolean hasProperty(String aName) {
 		return properties.containsKey(aName);
 	}
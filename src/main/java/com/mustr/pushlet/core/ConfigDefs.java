@@ -29,7 +29,11 @@ public interface ConfigDefs {
 	public static final String SESSION_ID_GENERATION = "session.id.generation";
 	public static final String SESSION_ID_GENERATION_UUID = "uuid";
 	public static final String SESSION_ID_GENERATION_RANDOMSTRING = "randomstring";
+	public static final String SESSION_ID_GENERATION_NODE = "node";
+	public static final String SESSION_SHARDS = "session.shards";
 	public static final String SESSION_TIMEOUT_MINS = "session.timeout.mins";
+	public static final String SESSION_LEASE_TICK_MILLIS = "session.lease.tick.millis";
+	public static final String SESSION_SNAPSHOT_FILE = "session.snapshot.file";
 
 	public static final String SOURCES_ACTIVATE = "sources.activate";
 
@@ -50,6 +54,66 @@ public interface ConfigDefs {
 	public static final String QUEUE_SIZE = "queue.size";
 	public static final String QUEUE_READ_TIMEOUT_MILLIS = "queue.read.timeout.millis";
 	public static final String QUEUE_WRITE_TIMEOUT_MILLIS = "queue.write.timeout.millis";
+	public static final String QUEUE_URGENT_SIZE = "queue.urgent.size";
+	public static final String QUEUE_CONFLATE_SUBJECTS = "queue.conflate.subjects";
+	public static final String QUEUE_RATE_TICK_MILLIS = "queue.rate.tick.millis";
+	public static final String QUEUE_SPILL_DIR = "queue.spill.dir";
+	public static final String QUEUE_SPILL_MAX_BYTES = "queue.spill.max.bytes";
+	public static final String QUEUE_SPILL_MAX_AGE_MILLIS = "queue.spill.max.age.millis";
+	public static final String ACK_WINDOW_SIZE = "ack.window.size";
+	public static final String DELTA_MAX_SUBJECTS = "delta.max.subjects";
+
+	/**
+	 * Subject matching: legacy prefix ("startsWith") or wildcard patterns.
+	 */
+	public static final String SUBJECT_MATCH_MODE = "subject.match.mode";
+	public static final String SUBJECT_MATCH_MODE_PREFIX = "prefix";
+	public static final String SUBJECT_MATCH_MODE_PATTERN = "pattern";
+
+	/**
+	 * Last value per subject, sent on subscribe/listen.
+	 */
+	public static final String LASTVALUE_CACHE_MAX_ENTRIES = "lastvalue.cache.max.entries";
+	public static final String LASTVALUE_CACHE_MAX_BYTES = "lastvalue.cache.max.bytes";
+
+	/**
+	 * Keyed state subjects, sent as snapshot on subscribe/listen.
+	 */
+	public static final String STATE_SUBJECTS = "state.subjects";
+	public static final String STATE_SUBJECT_MAX_KEYS = "state.subject.max.keys";
+
+	/**
+	 * Per-subject replay of missed Events on reconnect.
+	 */
+	public static final String REPLAY_RING_SIZE = "replay.ring.size";
+	public static final String REPLAY_RETENTION_MILLIS = "replay.retention.millis";
+	public static final String REPLAY_MAX_SUBJECTS = "replay.max.subjects";
+
+	/**
+	 * On-disk journal of published Events, disabled if no dir.
+	 */
+	public static final String JOURNAL_DIR = "journal.dir";
+	public static final String JOURNAL_SEGMENT_BYTES = "journal.segment.bytes";
+	public static final String JOURNAL_INDEX_INTERVAL_BYTES = "journal.index.interval.bytes";
+	public static final String JOURNAL_FSYNC_MILLIS = "journal.fsync.millis";
+	public static final String JOURNAL_MAX_SEGMENTS = "journal.max.segments";
+	public static final String JOURNAL_QUEUE_SIZE = "journal.queue.size";
+	public static final String JOURNAL_QUERY_MAX_EVENTS = "journal.query.max.events";
+
+	/**
+	 * Cluster bus between nodes, disabled if no bus class.
+	 */
+	public static final String CLUSTER_BUS_CLASS = "cluster.bus.class";
+	public static final String CLUSTER_NODE_ID = "cluster.node.id";
+	public static final String CLUSTER_PORT = "cluster.port";
+	public static final String CLUSTER_PEERS = "cluster.peers";
+	public static final String CLUSTER_PEER_QUEUE_SIZE = "cluster.peer.queue.size";
+	public static final String CLUSTER_BATCH_MAX_EVENTS = "cluster.batch.max.events";
+	public static final String CLUSTER_BATCH_LINGER_MILLIS = "cluster.batch.linger.millis";
+	public static final String CLUSTER_CONNECT_RETRY_MILLIS = "cluster.connect.retry.millis";
+	public static final String CLUSTER_DIRECTORY_CLASS = "cluster.directory.class";
+	public static final String CLUSTER_OWNER_SUBJECTS = "cluster.owner.subjects";
+	public static final String CLUSTER_OWNER_VIRTUAL_NODES = "cluster.owner.virtual.nodes";
 
 	/**
 	 * Listening modes.
@@ -57,6 +121,22 @@ public interface ConfigDefs {
 	public static final String LISTEN_FORCE_PULL_ALL = "listen.force.pull.all";
 	public static final String LISTEN_FORCE_PULL_AGENTS = "listen.force.pull.agents";
 
+	/**
+	 * Thread model for listen/refresh requests.
+	 */
+	public static final String LISTEN_THREAD_MODE = "listen.thread.mode";
+	public static final String LISTEN_THREAD_MODE_PLATFORM = "platform";
+	public static final String LISTEN_THREAD_MODE_VIRTUAL = "virtual";
+
+	/**
+	 * Embedded server (com.mustr.pushlet.server.PushletServer).
+	 */
+	public static final String SERVER_PORT = "server.port";
+	public static final String SERVER_URI = "server.uri";
+	public static final String SERVER_WORKERS = "server.workers";
+	public static final String SERVER_REQUEST_MAX_BYTES = "server.request.max.bytes";
+	public static final String SERVER_WRITE_MAX_BYTES = "server.write.max.bytes";
+
 
 	public static final String PULL_REFRESH_TIMEOUT_MILLIS = "pull.refresh.timeout.millis";
 	public static final String PULL_REFRESH_WAIT_MIN_MILLIS = "pull.refresh.wait.min.millis";
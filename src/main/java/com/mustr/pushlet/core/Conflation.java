@@ -0,0 +1,73 @@
+package com.mustr.pushlet.core;
+
+/**
+ * Conflation keys for Subscriber queues.
+ * <p/>
+ * Data Events with the same key replace each other while waiting in the
+ * event queue, so a slow client gets the latest value per subject (or per
+ * subject and key field value, e.g. one per instrument) instead of every
+ * update, and is not disconnected because its queue fills up.
+ * <p/>
+ * Config: queue.conflate.subjects=/stocks:symbol,/system/memory
+ */
+public class Conflation implements Protocol {
+	private final String[] prefixes;
+	private final String[] keyFields;
+
+	/**
+	 * Construct from "prefix" (per subject) or "prefix:keyField" definitions.
+	 */
+	public Conflation(String[] theDefinitions) {
+		prefixes = new String[theDefinitions.length];
+		keyFields = new String[theDefinitions.length];
+		for (int i = 0; i < theDefinitions.length; i++) {
+			String definition = theDefinitions[i].trim();
+			int colon = definition.lastIndexOf(':');
+			if (colon == 0 || colon == definition.length() - 1) {
+				throw new IllegalArgumentException("Invalid conflate subject (expect prefix or prefix:keyField): " + definition);
+			}
+			prefixes[i] = colon < 0 ? definition : definition.substring(0, colon).trim();
+			keyFields[i] = colon < 0 ? null : definition.substring(colon + 1).trim();
+		}
+	}
+
+	/**
+	 * Conflation key by configured subject prefixes, null if Event is not conflated.
+	 */
+	public String getKey(Event anEvent) {
+		if (!isConflatable(anEvent)) {
+			return null;
+		}
+		String subject = anEvent.getSubject();
+		for (int i = 0; i < prefixes.length; i++) {
+			if (subject.startsWith(prefixes[i])) {
+				return getKey(anEvent, keyFields[i]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Conflation key per subject, or per subject and key field value if key field
+	 * not null; null if Event is not conflated or lacks the key field.
+	 */
+	public static String getKey(Event anEvent, String aKeyField) {
+		if (!isConflatable(anEvent)) {
+			return null;
+		}
+		if (aKeyField == null) {
+			return anEvent.getSubject();
+		}
+		String key = anEvent.getField(aKeyField);
+		return key == null ? null : anEvent.getSubject() + '\u0000' + key;
+	}
+
+	/**
+	 * Only data Events are conflated, never control Events or snapshot rows.
+	 */
+	public static boolean isConflatable(Event anEvent) {
+		return E_DATA.equals(anEvent.getEventType())
+				&& anEvent.getSubject() != null
+				&& anEvent.getField(P_SNAPSHOT) == null;
+	}
+}
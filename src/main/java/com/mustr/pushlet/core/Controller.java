@@ -5,7 +5,10 @@ package com.mustr.pushlet.core;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.mustr.pushlet.journal.Journal;
 import com.mustr.pushlet.util.PushletException;
 
 /**
@@ -52,13 +55,18 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 			session.kick();
 
 			// Set remote IP address of client
-			session.setAddress(aCommand.httpReq.getRemoteAddr());
+			session.setAddress(aCommand.pushletReq.getRemoteAddr());
 
 			debug("doCommand() event=" + aCommand.reqEvent);
 
 			// Get event type
 			String eventType = aCommand.reqEvent.getEventType();
 
+			// Acknowledgement piggy-backed on any request, e.g. hb or refresh
+			if (aCommand.reqEvent.getField(P_ACK) != null || eventType.equals(Protocol.E_ACK)) {
+				doAck(aCommand);
+			}
+
 			// Determine action based on event type
 			if (eventType.equals(Protocol.E_REFRESH)) {
 				// Pull/poll mode clients that refresh
@@ -87,11 +95,16 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 			} else if (eventType.equals(Protocol.E_LISTEN)) {
 				// Listen to pushed events
 				doListen(aCommand);
+			} else if (eventType.equals(Protocol.E_QUERY)) {
+				// Historical events, streamed as the response
+				doQuery(aCommand);
+				return;
 			}
 
 			// Handle response back to client
-			if (eventType.endsWith(Protocol.E_LISTEN) ||
-					eventType.equals(Protocol.E_REFRESH)) {
+			if ((eventType.endsWith(Protocol.E_LISTEN) ||
+					eventType.equals(Protocol.E_REFRESH)) &&
+					!aCommand.getResponseEvent().getEventType().equals(E_NACK)) {
 				// Data channel events
 				// Loops until refresh or connection closed
 				getSubscriber().fetchEvents(aCommand);
@@ -120,6 +133,30 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 		aCommand.setResponseEvent(new Event(E_HEARTBEAT_ACK));
 	}
 
+	/**
+	 * Handle cumulative acknowledgement (p_ack); the response is replaced by
+	 * that of the request it was piggy-backed on.
+	 */
+	protected void doAck(Command aCommand) {
+		Event responseEvent;
+		String ack = aCommand.reqEvent.getField(P_ACK);
+		try {
+			long ackSeq = Long.parseLong(ack);
+			int count = getSubscriber().ack(ackSeq);
+			debug("acknowledged " + count + " events up to " + P_ACK_SEQ + "=" + ackSeq);
+
+			responseEvent = new Event(E_ACK_ACK);
+			responseEvent.setField(P_ID, session.getId());
+			responseEvent.setField(P_ACK, ackSeq);
+		} catch (NumberFormatException e) {
+			warn("invalid " + P_ACK + "=" + ack);
+			responseEvent = new Event(E_NACK);
+			responseEvent.setField(P_ID, session.getId());
+			responseEvent.setField(P_REASON, "invalid " + P_ACK + "=" + ack);
+		}
+		aCommand.setResponseEvent(responseEvent);
+	}
+
 	/**
 	 * Handle Join request.
 	 */
@@ -173,6 +210,9 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 			if (!aCommand.getResponseEvent().getEventType().equals(E_NACK)) {
 				// If still ok do the listen ack
 				aCommand.getResponseEvent().setField(P_EVENT, E_JOIN_LISTEN_ACK);
+			} else {
+				// Rejected listen: do not leave a joined session behind
+				session.stop();
 			}
 		}
 	}
@@ -226,7 +266,7 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 			// ending with a request to refresh.
 			mode = aCommand.reqEvent.getField(P_MODE, MODE_STREAM);
 
-			String userAgent = aCommand.httpReq.getHeader("User-Agent");
+			String userAgent = aCommand.pushletReq.getHeader("User-Agent");
 			if (userAgent != null) {
 				userAgent = userAgent.toLowerCase();
 				for (int i = 0; i < session.FORCED_PULL_AGENTS.length; i++) {
@@ -241,19 +281,43 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 			}
 		}
 
+		// Subscription if subject specified, rejected before any change
+		String subject = aCommand.reqEvent.getField(P_SUBJECT);
+		String label = aCommand.reqEvent.getField(Protocol.P_SUBSCRIPTION_LABEL);
+		Subscription subscription = null;
+		if (subject != null) {
+			subscription = Subscription.create(subject, label);
+			try {
+				setOptions(subscription, aCommand.reqEvent);
+			} catch (IllegalArgumentException e) {
+				Event responseEvent = new Event(E_NACK);
+				responseEvent.setField(P_ID, session.getId());
+				responseEvent.setField(P_REASON, e.getMessage());
+				aCommand.setResponseEvent(responseEvent);
+				warn("listen rejected: " + e.getMessage());
+				return;
+			}
+		}
+
 		getSubscriber().setMode(mode);
 
+		// Optional delta encoding of data events, client state starts empty
+		getSubscriber().setDeltaMode("true".equals(aCommand.reqEvent.getField(P_DELTA)));
+
+		// Optional spill of queue overflow, kept from a previous listen
+		if ("true".equals(aCommand.reqEvent.getField(P_DURABLE))) {
+			getSubscriber().setDurable(true);
+		}
+
 		// Prepare acknowledgement
 		Event listenAckEvent = new Event(E_LISTEN_ACK);
 
-		// Add subscription(s) if subject(s) specified
-		String subject = aCommand.reqEvent.getField(P_SUBJECT);
-		if (subject != null) {
-			// Optional label for subscription
-			String label = aCommand.reqEvent.getField(Protocol.P_SUBSCRIPTION_LABEL);
+		// Activate the subscriber, queued events follow the ack
+		getSubscriber().start();
 
-			// Add a subscription
-			Subscription subscription = getSubscriber().addSubscription(subject, label);
+		// Add subscription if subject specified
+		if (subscription != null) {
+			addSubscription(subscription);
 
 			// Add subscription id and optional label to listen-ack event
 			listenAckEvent.setField(P_SUBSCRIPTION_ID, subscription.getId());
@@ -266,13 +330,22 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 		listenAckEvent.setField(P_ID, session.getId());
 		listenAckEvent.setField(P_MODE, mode);
 		listenAckEvent.setField(P_FORMAT, session.getFormat());
+		if (getSubscriber().isDurable()) {
+			listenAckEvent.setField(P_DURABLE, "true");
+		}
 
-		// Activate the subscriber
-		getSubscriber().start();
+		// New data channel: events sent on the previous one may be lost
+		getSubscriber().redeliver();
 
 		// Enqueue listen ack event on data channel
 		aCommand.setResponseEvent(listenAckEvent);
 
+		// Current state follows the ack on the data channel
+		if (subscription != null) {
+			replayMissed(subscription, aCommand.reqEvent.getField(P_LAST_SEQ));
+			enqueueSnapshot(subscription);
+		}
+
 		info("Listening mode=" + mode + " userAgent=" + session.getUserAgent());
 
 	}
@@ -324,6 +397,66 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 		}
 	}
 
+	/**
+	 * Handle query request: stream journaled Events, then a query-ack.
+	 */
+	protected void doQuery(Command aCommand) throws PushletException, IOException {
+		String subject = aCommand.reqEvent.getField(P_SUBJECT);
+		Journal journal = Dispatcher.getInstance().getJournal();
+		String reason = null;
+		long fromTime = 0;
+		long toTime = Long.MAX_VALUE;
+		int limit = Config.getIntProperty(JOURNAL_QUERY_MAX_EVENTS, 100000);
+		if (journal == null) {
+			reason = "no journal";
+		} else if (subject == null) {
+			reason = "no subject provided";
+		} else {
+			try {
+				fromTime = Long.parseLong(aCommand.reqEvent.getField(P_QUERY_FROM, "0"));
+				toTime = Long.parseLong(aCommand.reqEvent.getField(P_QUERY_TO, String.valueOf(Long.MAX_VALUE)));
+				limit = Math.min(limit, Integer.parseInt(aCommand.reqEvent.getField(P_QUERY_LIMIT, String.valueOf(limit))));
+			} catch (NumberFormatException e) {
+				reason = "invalid query range: " + e.getMessage();
+			}
+		}
+		if (reason != null) {
+			Event responseEvent = new Event(E_NACK);
+			responseEvent.setField(P_ID, session.getId());
+			responseEvent.setField(P_REASON, reason);
+			aCommand.setResponseEvent(responseEvent);
+			sendControlResponse(aCommand);
+			return;
+		}
+
+		aCommand.sendResponseHeaders();
+		final ClientAdapter clientAdapter = aCommand.getClientAdapter();
+		final int maxEvents = limit;
+		final int[] count = new int[1];
+		clientAdapter.start();
+		try {
+			if (maxEvents > 0) {
+				journal.query(subject, fromTime, toTime, new Journal.QueryListener() {
+					public boolean onEvent(Event anEvent) throws IOException {
+						clientAdapter.push(anEvent);
+						return ++count[0] < maxEvents;
+					}
+				});
+			}
+
+			Event ackEvent = new Event(E_QUERY_ACK);
+			ackEvent.setField(P_ID, session.getId());
+			ackEvent.setField(P_SUBJECT, subject);
+			ackEvent.setField(P_COUNT, count[0]);
+			clientAdapter.push(ackEvent);
+			info("query " + subject + " " + fromTime + ".." + toTime + " count=" + count[0]);
+		} catch (IOException e) {
+			warn("doQuery() stopped after " + count[0] + " events: " + e);
+		} finally {
+			clientAdapter.stop();
+		}
+	}
+
 	/**
 	 * Handle refresh event.
 	 */
@@ -349,7 +482,9 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 			} else {
 
 				String label = aCommand.reqEvent.getField(Protocol.P_SUBSCRIPTION_LABEL);
-				subscription = getSubscriber().addSubscription(subject, label);
+				subscription = Subscription.create(subject, label);
+				setOptions(subscription, aCommand.reqEvent);
+				addSubscription(subscription);
 
 				// Acknowledge
 				responseEvent = new Event(E_SUBSCRIBE_ACK);
@@ -360,8 +495,18 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 					responseEvent.setField(P_SUBSCRIPTION_LABEL, label);
 				}
 				info("subscribed to " + subject + " sid=" + subscription.getId());
+
+				// Current state follows on the data channel
+				replayMissed(subscription, aCommand.reqEvent.getField(P_LAST_SEQ));
+				enqueueSnapshot(subscription);
 			}
 
+		} catch (IllegalArgumentException e) {
+			// Invalid subscription parameter, nothing was added
+			responseEvent = new Event(E_NACK);
+			responseEvent.setField(P_ID, session.getId());
+			responseEvent.setField(P_REASON, e.getMessage());
+			warn("subscribe rejected: " + e.getMessage());
 		} catch (Throwable t) {
 			responseEvent = new Event(E_NACK);
 			responseEvent.setField(P_ID, session.getId());
@@ -426,6 +571,148 @@ public class Controller implements Protocol, ConfigDefs, Serializable {
 		return session.getSubscriber();
 	}
 
+	/**
+	 * Apply optional subscription parameters (p_filter, p_fields, p_conflate,
+	 * p_acked, p_rate) of request to a Subscription not added yet, such that
+	 * no Event reaches it without them.
+	 *
+	 * @throws IllegalArgumentException invalid filter or fields
+	 */
+	protected void setOptions(Subscription aSubscription, Event aReqEvent) {
+		// Fields first: a compiled filter holds shared predicates
+		String fields = aReqEvent.getField(P_FIELDS);
+		if (fields != null && fields.trim().length() > 0) {
+			aSubscription.setFields(FieldSet.parse(fields));
+		}
+
+		String filter = aReqEvent.getField(P_FILTER);
+		if (filter != null && filter.trim().length() > 0) {
+			aSubscription.setFilter(Filter.compile(filter));
+		}
+
+		String conflate = aReqEvent.getField(P_CONFLATE);
+		if (conflate != null && conflate.length() > 0 && !conflate.equals("false")) {
+			aSubscription.setConflation(true, conflate.equals("true") ? null : conflate);
+		}
+
+		if ("true".equals(aReqEvent.getField(P_ACKED))) {
+			aSubscription.setAcked(true);
+		}
+
+		String rate = aReqEvent.getField(P_RATE);
+		if (rate != null && rate.length() > 0) {
+			try {
+				aSubscription.setMaxRate(Double.parseDouble(rate));
+			} catch (NumberFormatException e) {
+				warn("invalid " + P_RATE + "=" + rate + ", not rate limiting sid=" + aSubscription.getId());
+			}
+		}
+	}
+
+	/**
+	 * Add subscription to the Subscriber with its cached last values queued first.
+	 * <p/>
+	 * Done under the Dispatcher multicast lock: Events published meanwhile are
+	 * queued after the last values, never before or twice.
+	 */
+	protected void addSubscription(Subscription aSubscription) {
+		synchronized (Dispatcher.getInstance()) {
+			getSubscriber().addSubscription(aSubscription);
+			enqueueLastValues(aSubscription);
+		}
+	}
+
+	/**
+	 * Enqueue cached last values of all subjects matching a new subscription.
+	 */
+	protected void enqueueLastValues(Subscription aSubscription) {
+		List<Event> events = Dispatcher.getInstance().getLastValues(aSubscription);
+		for (int i = 0; i < events.size(); i++) {
+			// Personalize like Dispatcher multicast
+			Event event = aSubscription.personalize(events.get(i));
+
+			// Snapshot is best effort: never bail out the new subscriber
+			if (getSubscriber().isQueueFull()) {
+				warn("queue full, skipped " + (events.size() - i) + " of " + events.size() + " last values sid=" + aSubscription.getId());
+				return;
+			}
+			if (!getSubscriber().enqueue(event)) {
+				return;
+			}
+		}
+		if (events.size() > 0) {
+			debug("enqueued " + events.size() + " last values sid=" + aSubscription.getId());
+		}
+	}
+
+	/**
+	 * Replay Events missed since the client's last sequence numbers (p_last).
+	 * <p/>
+	 * Format "subject:seq,subject:seq"; subjects outside the subscription are
+	 * ignored. Sends a resync event for subjects that cannot be replayed.
+	 */
+	protected void replayMissed(Subscription aSubscription, String aLastSeqs) {
+		if (aLastSeqs == null || aLastSeqs.length() == 0) {
+			return;
+		}
+
+		List<Event> events = new ArrayList<Event>();
+		String[] pairs = aLastSeqs.split(",");
+		for (int i = 0; i < pairs.length; i++) {
+			int colon = pairs[i].lastIndexOf(':');
+			if (colon <= 0) {
+				warn("replay: invalid " + P_LAST_SEQ + " entry " + pairs[i]);
+				continue;
+			}
+			String subject = pairs[i].substring(0, colon);
+			long lastSeq;
+			try {
+				lastSeq = Long.parseLong(pairs[i].substring(colon + 1));
+			} catch (NumberFormatException e) {
+				warn("replay: invalid " + P_LAST_SEQ + " entry " + pairs[i]);
+				continue;
+			}
+			if (!aSubscription.matchSubject(subject)) {
+				continue;
+			}
+
+			List<Event> missed = Dispatcher.getInstance().getReplay(subject, lastSeq);
+			if (missed == null) {
+				Event resync = new Event(E_RESYNC);
+				resync.setField(P_SUBJECT, subject);
+				missed = new ArrayList<Event>(1);
+				missed.add(resync);
+				info("replay: resync required subject=" + subject + " last=" + lastSeq);
+			}
+
+			// Personalize like Dispatcher multicast
+			for (int j = 0; j < missed.size(); j++) {
+				Event event = missed.get(j);
+				if (aSubscription.getFilter() != null && event.getEventType().equals(E_DATA)
+						&& !aSubscription.getFilter().match(event)) {
+					continue;
+				}
+				events.add(aSubscription.personalize(event));
+			}
+		}
+
+		if (events.size() > 0) {
+			debug("replaying " + events.size() + " events sid=" + aSubscription.getId());
+			getSubscriber().addReplay(events);
+		}
+	}
+
+	/**
+	 * Stream snapshot of keyed state subjects matching a new subscription.
+	 */
+	protected void enqueueSnapshot(Subscription aSubscription) {
+		StateStore.Snapshot snapshot = Dispatcher.getInstance().getSnapshot(aSubscription);
+		if (snapshot != null) {
+			getSubscriber().addSnapshot(snapshot);
+			debug("sending state snapshot sid=" + aSubscription.getId());
+		}
+	}
+
 	/**
 	 * Send response on the control channel.
 	 */
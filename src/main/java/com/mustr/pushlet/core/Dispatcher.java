@@ -3,12 +3,28 @@
 
 package com.mustr.pushlet.core;
 
+import com.mustr.pushlet.cluster.ClusterBus;
+import com.mustr.pushlet.cluster.HashRing;
+import com.mustr.pushlet.cluster.SessionDirectory;
+import com.mustr.pushlet.cluster.SubjectOwnership;
+import com.mustr.pushlet.journal.Journal;
 import com.mustr.pushlet.util.Log;
 import com.mustr.pushlet.util.PushletException;
+import com.mustr.pushlet.util.TimingWheel;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Routes Events to Subscribers.
@@ -17,12 +33,81 @@ import java.util.Map;
  * @version $Id: Dispatcher.java,v 1.9 2007/12/04 13:55:53 justb Exp $
  */
 public class Dispatcher implements Protocol, ConfigDefs {
+	/**
+	 * Cluster message type of a unicast forwarded to the owning node.
+	 */
+	protected static final String MESSAGE_UNICAST = "unicast";
+
+	/**
+	 * Cluster message types for partitioned subjects: publish to the owner,
+	 * and sequence number, last value and state row moving to a new owner.
+	 */
+	protected static final String MESSAGE_PUBLISH = "publish";
+	protected static final String MESSAGE_OWNER_SEQ = "owner-seq";
+	protected static final String MESSAGE_OWNER_VALUE = "owner-value";
+	protected static final String MESSAGE_OWNER_ROW = "owner-row";
+
 	/**
 	 * Singleton pattern:  single instance.
 	 */
 	private static Dispatcher instance;
 	protected SessionManagerVisitor sessionManagerVisitor;
 
+	/**
+	 * Last published Event per subject, null if disabled.
+	 */
+	protected LastValueCache lastValueCache;
+
+	/**
+	 * Compacted keyed state subjects, null if none configured.
+	 */
+	protected StateStore stateStore;
+
+	/**
+	 * Recent Events per subject for replay, null if disabled.
+	 */
+	protected ReplayStore replayStore;
+
+	/**
+	 * On-disk journal of published Events, null if disabled.
+	 */
+	protected Journal journal;
+
+	/**
+	 * Configured queue conflation by subject, null if none.
+	 */
+	protected Conflation conflation;
+
+	/**
+	 * Subscriptions by subject pattern, null with legacy prefix matching.
+	 */
+	protected SubjectIndex<Subscription> subjectIndex;
+
+	/**
+	 * Bus to the other cluster nodes, null if standalone.
+	 */
+	protected ClusterBus clusterBus;
+
+	/**
+	 * Owning node of sessions in the cluster, null if standalone.
+	 */
+	protected SessionDirectory sessionDirectory;
+
+	/**
+	 * Owning nodes of partitioned subjects, null if none configured.
+	 */
+	protected SubjectOwnership subjectOwnership;
+
+	/**
+	 * Window edges of subscription rate limits, created on first use.
+	 */
+	private TimingWheel rateWheel;
+
+	/**
+	 * Id of the current multicast, for shared Filter results; guarded by this.
+	 */
+	private long dispatchId;
+
 	static {
 		try {
 			instance = (Dispatcher) Config.getClass(DISPATCHER_CLASS, "com.mustr.pushlet.core.Dispatcher").newInstance();
@@ -65,9 +150,82 @@ public class Dispatcher implements Protocol, ConfigDefs {
 	}
 
 	/**
-	 * Send event to subscribers matching Event subject.
+	 * Send event to subscribers matching Event subject, on all cluster nodes.
 	 */
 	public synchronized void multicast(Event anEvent) {
+		// Partitioned subject: only its owner publishes
+		SubjectOwnership ownership = subjectOwnership;
+		if (ownership != null && ownership.isPartitioned(anEvent.getSubject())) {
+			String owner = ownership.getOwner(anEvent.getSubject());
+			if (!owner.equals(clusterBus.getNodeId())) {
+				Event message = (Event) anEvent.clone();
+				message.setField(ClusterBus.P_MESSAGE, MESSAGE_PUBLISH);
+				if (clusterBus.send(owner, message)) {
+					return;
+				}
+				Log.warn("Dispatcher: owner " + owner + " of " + anEvent.getSubject() + " unreachable, publishing here");
+			}
+			multicastOwned(anEvent);
+			return;
+		}
+
+		// Own copy for the bus, taken before local numbering/personalizing
+		if (clusterBus != null) {
+			clusterBus.publish((Event) anEvent.clone());
+		}
+		multicastLocal(anEvent);
+	}
+
+	/**
+	 * Send event to subscribers matching Event subject on this node only.
+	 * <p/>
+	 * Used for Events received from other cluster nodes.
+	 */
+	public void multicastLocal(Event anEvent) {
+		multicastLocal(anEvent, false);
+	}
+
+	/**
+	 * Publish as owner of a partitioned subject: number and relay with number.
+	 */
+	protected synchronized void multicastOwned(Event anEvent) {
+		multicastLocal(anEvent, false);
+		clusterBus.publish((Event) anEvent.clone());
+	}
+
+	/**
+	 * Send event to local subscribers.
+	 *
+	 * @param isSequenced keep sequence number (p_sseq) set by the subject owner
+	 */
+	protected synchronized void multicastLocal(Event anEvent, boolean isSequenced) {
+		// Number per subject, before caches take their copies
+		if (replayStore != null) {
+			if (isSequenced) {
+				replayStore.addSequenced(anEvent);
+			} else {
+				replayStore.add(anEvent);
+			}
+		}
+		if (journal != null) {
+			journal.append(anEvent.share());
+		}
+
+		// Keyed state rows are compacted per key instead
+		boolean isState = stateStore != null && stateStore.update(anEvent);
+		if (lastValueCache != null && !isState) {
+			lastValueCache.put(anEvent);
+		}
+
+		// Filter results are shared within this multicast only
+		dispatchId++;
+
+		// Only visit subscribers with matching patterns
+		if (subjectIndex != null) {
+			multicastIndexed(anEvent);
+			return;
+		}
+
 		try {
 			// Let the SessionManager loop through Sessions, calling
 			// our Visitor Method for each Session. This is done to guard
@@ -91,6 +249,12 @@ public class Dispatcher implements Protocol, ConfigDefs {
 		// Get subscriber to send event to
 		Session session = SessionManager.getInstance().getSession(aSessionId);
 		if (session == null) {
+			// Session may live on another cluster node
+			String nodeId = getRemoteNodeId(aSessionId);
+			if (nodeId != null) {
+				forward((Event) event.clone(), nodeId, Collections.singletonList(aSessionId), new UnicastResult());
+				return;
+			}
 			Log.warn("unicast: session with id=" + aSessionId + " does not exist");
 			return;
 		}
@@ -99,6 +263,413 @@ public class Dispatcher implements Protocol, ConfigDefs {
 		session.getSubscriber().onEvent((Event) event.clone());
 	}
 
+	/**
+	 * Send event to many sessions at once.
+	 * <p/>
+	 * Unlike calling unicast() per id this does not take the Dispatcher lock
+	 * and does not clone per session: all recipients share one copy-on-write
+	 * payload, only personalized (e.g. sequence number) when sent.
+	 *
+	 * Sessions on other cluster nodes are sent one message per node.
+	 *
+	 * @return which session ids were delivered, forwarded, missing or dropped
+	 */
+	public UnicastResult unicast(Event event, Collection<String> theSessionIds) {
+		UnicastResult result = new UnicastResult();
+
+		// Detach from caller's event once
+		Event payload = (Event) event.clone();
+
+		Map<String, List<String>> remoteSessionIds = null;
+		SessionManager sessionManager = SessionManager.getInstance();
+		for (String sessionId : theSessionIds) {
+			Session session = sessionManager.getSession(sessionId);
+			if (session == null) {
+				String nodeId = getRemoteNodeId(sessionId);
+				if (nodeId == null) {
+					result.addMissing(sessionId);
+					continue;
+				}
+				if (remoteSessionIds == null) {
+					remoteSessionIds = new HashMap<String, List<String>>();
+				}
+				List<String> sessionIds = remoteSessionIds.get(nodeId);
+				if (sessionIds == null) {
+					sessionIds = new ArrayList<String>();
+					remoteSessionIds.put(nodeId, sessionIds);
+				}
+				sessionIds.add(sessionId);
+			} else if (session.getSubscriber().enqueue(payload.share())) {
+				result.addDelivered(sessionId);
+			} else {
+				result.addDropped(sessionId);
+			}
+		}
+
+		if (remoteSessionIds != null) {
+			for (Map.Entry<String, List<String>> entry : remoteSessionIds.entrySet()) {
+				forward(payload, entry.getKey(), entry.getValue(), result);
+			}
+		}
+
+		if (!result.isComplete()) {
+			Log.debug("unicast: " + result);
+		}
+		return result;
+	}
+
+	/**
+	 * Send event to all sessions registered for a user (jsessionid).
+	 */
+	public UnicastResult unicastUser(Event event, String aJSessionId) {
+		return unicast(event, getUserSessionIds(aJSessionId));
+	}
+
+	/**
+	 * Send event to all sessions registered for the given users (jsessionids).
+	 */
+	public UnicastResult unicastUser(Event event, Collection<String> theJSessionIds) {
+		List<String> sessionIds = new ArrayList<String>(theJSessionIds.size());
+		for (String jsessionid : theJSessionIds) {
+			sessionIds.addAll(getUserSessionIds(jsessionid));
+		}
+		return unicast(event, sessionIds);
+	}
+
+	/**
+	 * Session ids of a user, on all cluster nodes if clustered.
+	 */
+	protected List<String> getUserSessionIds(String aJSessionId) {
+		SessionDirectory directory = sessionDirectory;
+		if (directory != null) {
+			return directory.getUserSessionIds(aJSessionId);
+		}
+		return UserSessionManager.getInstance().getUserSessionIds(aJSessionId);
+	}
+
+	/**
+	 * Get the cluster node of a session not on this node, null if unknown.
+	 */
+	protected String getRemoteNodeId(String aSessionId) {
+		ClusterBus bus = clusterBus;
+		if (bus == null) {
+			return null;
+		}
+
+		// Node session ids route without lookup
+		String nodeId = SessionManager.getInstance().getNodeId(aSessionId);
+		SessionDirectory directory = sessionDirectory;
+		if (nodeId == null && directory != null) {
+			nodeId = directory.getNodeId(aSessionId);
+		}
+		return nodeId == null || nodeId.equals(bus.getNodeId()) ? null : nodeId;
+	}
+
+	/**
+	 * Send unicast to sessions on another cluster node.
+	 */
+	protected void forward(Event aPayload, String aNodeId, List<String> theSessionIds, UnicastResult aResult) {
+		Event message = (Event) aPayload.clone();
+		message.setField(ClusterBus.P_MESSAGE, MESSAGE_UNICAST);
+		StringBuilder to = new StringBuilder();
+		for (int i = 0; i < theSessionIds.size(); i++) {
+			to.append(i == 0 ? "" : ",").append(theSessionIds.get(i));
+		}
+		message.setField(ClusterBus.P_MESSAGE_TO, to.toString());
+
+		ClusterBus bus = clusterBus;
+		boolean sent = bus != null && bus.send(aNodeId, message);
+		for (int i = 0; i < theSessionIds.size(); i++) {
+			if (sent) {
+				aResult.addForwarded(theSessionIds.get(i));
+			} else {
+				aResult.addDropped(theSessionIds.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Deliver unicast forwarded by another cluster node to sessions on this node.
+	 */
+	protected void deliverForwarded(Event aMessage, String aNodeId) {
+		Event payload = getPayload(aMessage);
+
+		SessionManager sessionManager = SessionManager.getInstance();
+		String[] sessionIds = aMessage.getField(ClusterBus.P_MESSAGE_TO, "").split(",");
+		for (int i = 0; i < sessionIds.length; i++) {
+			Session session = sessionManager.getSession(sessionIds[i]);
+			if (session == null || !session.getSubscriber().enqueue(payload.share())) {
+				Log.debug("unicast: forwarded by " + aNodeId + " not delivered to " + sessionIds[i]);
+			}
+		}
+	}
+
+	/**
+	 * Get Event carried by a cluster message.
+	 */
+	protected static Event getPayload(Event aMessage) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		for (Iterator<String> iter = aMessage.getFieldNames(); iter.hasNext();) {
+			String name = iter.next();
+			if (!name.equals(ClusterBus.P_MESSAGE) && !name.equals(ClusterBus.P_MESSAGE_TO)) {
+				attributes.put(name, aMessage.getField(name));
+			}
+		}
+		return new Event(attributes);
+	}
+
+	/**
+	 * Handle message of another cluster node.
+	 */
+	protected void onClusterMessage(Event aMessage, String aNodeId) {
+		String type = aMessage.getField(ClusterBus.P_MESSAGE);
+		if (MESSAGE_UNICAST.equals(type)) {
+			deliverForwarded(aMessage, aNodeId);
+		} else if (MESSAGE_PUBLISH.equals(type)) {
+			// Sent to us as owner, even if ownership moved meanwhile (no loops)
+			multicastOwned(getPayload(aMessage));
+		} else if (MESSAGE_OWNER_SEQ.equals(type) || MESSAGE_OWNER_VALUE.equals(type) || MESSAGE_OWNER_ROW.equals(type)) {
+			receiveSubjectState(type, getPayload(aMessage));
+		} else if (sessionDirectory != null) {
+			sessionDirectory.onMessage(aMessage, aNodeId);
+		}
+	}
+
+	/**
+	 * Cluster membership changed: hand over state of subjects we no longer own.
+	 */
+	protected synchronized void migrateSubjects(HashRing anOldRing) {
+		SubjectOwnership ownership = subjectOwnership;
+		String nodeId = clusterBus.getNodeId();
+		Set<String> subjects = new HashSet<String>();
+		if (replayStore != null) {
+			subjects.addAll(replayStore.getSubjects());
+		}
+		if (lastValueCache != null) {
+			subjects.addAll(lastValueCache.getSubjects());
+		}
+		if (stateStore != null) {
+			subjects.addAll(stateStore.getSubjects());
+		}
+
+		int count = 0;
+		for (String subject : subjects) {
+			if (!ownership.isPartitioned(subject) || !nodeId.equals(anOldRing.getOwner(subject))) {
+				continue;
+			}
+			String owner = ownership.getOwner(subject);
+			if (owner.equals(nodeId)) {
+				continue;
+			}
+
+			if (replayStore != null && replayStore.getLastSeq(subject) > 0) {
+				Event message = new Event(MESSAGE_OWNER_SEQ);
+				message.setField(P_SUBJECT, subject);
+				message.setField(P_SUBJECT_SEQ, replayStore.getLastSeq(subject));
+				sendSubjectState(owner, MESSAGE_OWNER_SEQ, message);
+			}
+			Event lastValue = lastValueCache == null ? null : lastValueCache.get(subject);
+			if (lastValue != null) {
+				sendSubjectState(owner, MESSAGE_OWNER_VALUE, lastValue);
+			}
+			if (stateStore != null) {
+				List<Event> rows = stateStore.getRows(subject);
+				for (int i = 0; i < rows.size(); i++) {
+					sendSubjectState(owner, MESSAGE_OWNER_ROW, rows.get(i));
+				}
+			}
+			count++;
+		}
+		Log.info("Dispatcher: " + ownership.getRing() + ", handed over " + count + " subjects");
+	}
+
+	private void sendSubjectState(String aNodeId, String aType, Event anEvent) {
+		Event message = (Event) anEvent.clone();
+		message.setField(ClusterBus.P_MESSAGE, aType);
+		if (!clusterBus.send(aNodeId, message)) {
+			Log.warn("Dispatcher: cannot hand over " + anEvent.getSubject() + " to " + aNodeId);
+		}
+	}
+
+	/**
+	 * Take over state of a subject we now own.
+	 */
+	protected synchronized void receiveSubjectState(String aType, Event anEvent) {
+		if (MESSAGE_OWNER_SEQ.equals(aType)) {
+			if (replayStore != null) {
+				replayStore.setLastSeq(anEvent.getSubject(), Long.parseLong(anEvent.getField(P_SUBJECT_SEQ)));
+			}
+		} else if (MESSAGE_OWNER_VALUE.equals(aType)) {
+			if (lastValueCache != null) {
+				lastValueCache.put(anEvent);
+			}
+		} else if (stateStore != null) {
+			stateStore.update(anEvent);
+		}
+	}
+
+	/**
+	 * Owning node of sessions in the cluster, null if standalone.
+	 */
+	public SessionDirectory getSessionDirectory() {
+		return sessionDirectory;
+	}
+
+	/**
+	 * Journal of published Events on this node, null if disabled.
+	 */
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Get last published Events for all subjects matching the subscription.
+	 * <p/>
+	 * Events are shared copies, personalize with setField() as needed.
+	 */
+	public List<Event> getLastValues(Subscription aSubscription) {
+		if (lastValueCache == null) {
+			return Collections.emptyList();
+		}
+		return lastValueCache.match(aSubscription);
+	}
+
+	/**
+	 * Get snapshot of keyed state subjects matching the subscription, null if none.
+	 */
+	public StateStore.Snapshot getSnapshot(Subscription aSubscription) {
+		if (stateStore == null) {
+			return null;
+		}
+		return stateStore.snapshot(aSubscription);
+	}
+
+	/**
+	 * Get Events published on subject after a sequence number (p_sseq).
+	 *
+	 * @return Events to replay, null if the client needs to resync
+	 */
+	public List<Event> getReplay(String aSubject, long aLastSeq) {
+		if (replayStore == null) {
+			return null;
+		}
+		return replayStore.since(aSubject, aLastSeq);
+	}
+
+	/**
+	 * Get last sequence number (p_sseq) per subject.
+	 */
+	public Map<String, Long> getReplayPositions() {
+		Map<String, Long> positions = new HashMap<String, Long>();
+		if (replayStore != null) {
+			List<String> subjects = replayStore.getSubjects();
+			for (int i = 0; i < subjects.size(); i++) {
+				positions.put(subjects.get(i), replayStore.getLastSeq(subjects.get(i)));
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Register subscription for multicast, called by Subscriber.
+	 */
+	public void addSubscription(Subscription aSubscription) {
+		// Advertise interest to other cluster nodes
+		ClusterBus bus = clusterBus;
+		if (bus != null) {
+			String[] prefixes = aSubscription.getPrefixes();
+			for (int i = 0; i < prefixes.length; i++) {
+				bus.addInterest(prefixes[i]);
+			}
+		}
+
+		SubjectIndex<Subscription> index = subjectIndex;
+		if (index == null || aSubscription.getPatterns() == null) {
+			return;
+		}
+		SubjectPattern[] patterns = aSubscription.getPatterns();
+		for (int i = 0; i < patterns.length; i++) {
+			index.add(patterns[i], aSubscription);
+		}
+	}
+
+	/**
+	 * Unregister subscription, called by Subscriber.
+	 */
+	public void removeSubscription(Subscription aSubscription) {
+		ClusterBus bus = clusterBus;
+		if (bus != null) {
+			String[] prefixes = aSubscription.getPrefixes();
+			for (int i = 0; i < prefixes.length; i++) {
+				bus.removeInterest(prefixes[i]);
+			}
+		}
+
+		SubjectIndex<Subscription> index = subjectIndex;
+		if (index == null || aSubscription.getPatterns() == null) {
+			return;
+		}
+		SubjectPattern[] patterns = aSubscription.getPatterns();
+		for (int i = 0; i < patterns.length; i++) {
+			index.remove(patterns[i], aSubscription);
+		}
+	}
+
+	/**
+	 * Send event to subscribers found through the subject index.
+	 * <p/>
+	 * Like visitMulticast() each subscriber gets the event at most once,
+	 * for the first matching subscription.
+	 */
+	protected void multicastIndexed(Event anEvent) {
+		String subject = anEvent.getSubject();
+		if (subject == null || subject.length() == 0) {
+			return;
+		}
+
+		List<Subscription> subscriptions = subjectIndex.match(subject);
+		Set<Subscriber> visited = Collections.newSetFromMap(new IdentityHashMap<Subscriber, Boolean>());
+		for (int i = 0; i < subscriptions.size(); i++) {
+			Subscription subscription = subscriptions.get(i);
+			Subscriber subscriber = subscription.getSubscriber();
+			if (subscriber == null || visited.contains(subscriber)) {
+				continue;
+			}
+			if (subscription.getFilter() != null && !subscription.getFilter().match(anEvent, dispatchId)) {
+				continue;
+			}
+			visited.add(subscriber);
+
+			// Personalize event
+			try {
+				subscriber.onEvent(subscription.personalize(anEvent));
+			} catch (Throwable t) {
+				Log.warn("Dispatcher: error sending to subscriber " + subscriber, t);
+			}
+		}
+	}
+
+	/**
+	 * Conflation key for queueing Event by configured subjects, null if none.
+	 */
+	public String getConflationKey(Event anEvent) {
+		if (conflation == null) {
+			return null;
+		}
+		return conflation.getKey(anEvent);
+	}
+
+	/**
+	 * Timer shared by all subscription rate limiters.
+	 */
+	public synchronized TimingWheel getRateWheel() {
+		if (rateWheel == null) {
+			rateWheel = new TimingWheel("Dispatcher-rate", Config.getLongProperty(QUEUE_RATE_TICK_MILLIS, 10), 512);
+			rateWheel.start();
+		}
+		return rateWheel;
+	}
+
 	/**
 	 * Start Dispatcher.
 	 */
@@ -107,15 +678,167 @@ public class Dispatcher implements Protocol, ConfigDefs {
 
 		// Create callback for SessionManager visits.
 		sessionManagerVisitor = new SessionManagerVisitor();
+
+		int maxEntries = Config.getIntProperty(LASTVALUE_CACHE_MAX_ENTRIES, 0);
+		if (maxEntries > 0) {
+			long maxBytes = Config.getLongProperty(LASTVALUE_CACHE_MAX_BYTES, 16 * 1024 * 1024);
+			lastValueCache = new LastValueCache(maxEntries, maxBytes);
+			Log.info("Dispatcher: last value cache maxEntries=" + maxEntries + " maxBytes=" + maxBytes);
+		}
+
+		String stateSubjects = Config.getProperty(STATE_SUBJECTS, "").trim();
+		if (stateSubjects.length() > 0) {
+			stateStore = new StateStore(stateSubjects.split(","), Config.getIntProperty(STATE_SUBJECT_MAX_KEYS, 100000));
+			Log.info("Dispatcher: state subjects " + stateSubjects);
+		}
+
+		int ringSize = Config.getIntProperty(REPLAY_RING_SIZE, 0);
+		if (ringSize > 0) {
+			long retention = Config.getLongProperty(REPLAY_RETENTION_MILLIS, 300000);
+			replayStore = new ReplayStore(ringSize, retention, Config.getIntProperty(REPLAY_MAX_SUBJECTS, 1000));
+
+			// Warm restart: continue numbering for restored sessions
+			Map<String, Long> positions = SessionManager.getInstance().getSavedReplayPositions();
+			for (Map.Entry<String, Long> position : positions.entrySet()) {
+				replayStore.setLastSeq(position.getKey(), position.getValue());
+			}
+			Log.info("Dispatcher: replay ringSize=" + ringSize + " retention=" + retention + "ms");
+		}
+
+		String journalDir = Config.getProperty(JOURNAL_DIR, "").trim();
+		if (journalDir.length() > 0) {
+			journal = new Journal(new File(journalDir),
+					Config.getIntProperty(JOURNAL_SEGMENT_BYTES, 64 * 1024 * 1024),
+					Config.getIntProperty(JOURNAL_INDEX_INTERVAL_BYTES, 4096),
+					Config.getLongProperty(JOURNAL_FSYNC_MILLIS, 1000),
+					Config.getIntProperty(JOURNAL_MAX_SEGMENTS, 16),
+					Config.getIntProperty(JOURNAL_QUEUE_SIZE, 65536));
+			try {
+				journal.start();
+			} catch (IOException e) {
+				journal = null;
+				throw new PushletException("Cannot open journal in " + journalDir, e);
+			}
+		}
+
+		if (Config.getProperty(SUBJECT_MATCH_MODE, SUBJECT_MATCH_MODE_PREFIX).equals(SUBJECT_MATCH_MODE_PATTERN)) {
+			subjectIndex = new SubjectIndex<Subscription>();
+			Log.info("Dispatcher: subject pattern matching");
+		}
+
+		String conflateSubjects = Config.getProperty(QUEUE_CONFLATE_SUBJECTS, "").trim();
+		if (conflateSubjects.length() > 0) {
+			conflation = new Conflation(conflateSubjects.split(","));
+			Log.info("Dispatcher: conflate subjects " + conflateSubjects);
+		}
+
+		if (Config.getProperty(CLUSTER_BUS_CLASS, "").trim().length() > 0) {
+			startCluster();
+		}
+	}
+
+	/**
+	 * Join the cluster through the configured bus and session directory.
+	 */
+	protected void startCluster() throws PushletException {
+		ClusterBus bus = (ClusterBus) Config.createObject(CLUSTER_BUS_CLASS, null);
+		bus.start(new ClusterBus.Receiver() {
+			public void onEvent(Event anEvent, String aNodeId) {
+				// Relayed by subject owner: keep its numbering
+				SubjectOwnership ownership = subjectOwnership;
+				boolean isSequenced = ownership != null && anEvent.getField(P_SUBJECT_SEQ) != null
+						&& ownership.isPartitioned(anEvent.getSubject());
+				multicastLocal(anEvent, isSequenced);
+			}
+
+			public void onMessage(Event aMessage, String aNodeId) {
+				onClusterMessage(aMessage, aNodeId);
+			}
+
+			public void onNodeJoined(String aNodeId) {
+				SessionDirectory directory = sessionDirectory;
+				if (directory != null) {
+					directory.onNodeJoined(aNodeId);
+				}
+				SubjectOwnership ownership = subjectOwnership;
+				HashRing oldRing = ownership == null ? null : ownership.addNode(aNodeId);
+				if (oldRing != null) {
+					migrateSubjects(oldRing);
+				}
+			}
+
+			public void onNodeLeft(String aNodeId) {
+				SessionDirectory directory = sessionDirectory;
+				if (directory != null) {
+					directory.onNodeLeft(aNodeId);
+				}
+
+				// Its subjects continue here from the relayed copies
+				SubjectOwnership ownership = subjectOwnership;
+				HashRing oldRing = ownership == null ? null : ownership.removeNode(aNodeId);
+				if (oldRing != null) {
+					Log.info("Dispatcher: node " + aNodeId + " left, " + ownership.getRing());
+				}
+			}
+		});
+		clusterBus = bus;
+		Log.info("Dispatcher: cluster node " + bus.getNodeId());
+
+		String ownerSubjects = Config.getProperty(CLUSTER_OWNER_SUBJECTS, "").trim();
+		if (ownerSubjects.length() > 0) {
+			subjectOwnership = new SubjectOwnership(bus.getNodeId(), ownerSubjects.split(","), Config.getIntProperty(CLUSTER_OWNER_VIRTUAL_NODES, 128));
+			Log.info("Dispatcher: partitioned subjects " + ownerSubjects);
+		}
+
+		String directoryClass = Config.getProperty(CLUSTER_DIRECTORY_CLASS, "com.mustr.pushlet.cluster.MemorySessionDirectory");
+		if (directoryClass.trim().length() > 0) {
+			SessionDirectory directory = (SessionDirectory) Config.createObject(CLUSTER_DIRECTORY_CLASS, directoryClass.trim());
+			directory.start(bus);
+			sessionDirectory = directory;
+			Log.info("Dispatcher: session directory " + directory.getClass().getName());
+		}
 	}
 
 	/**
 	 * Stop Dispatcher.
 	 */
 	public void stop() {
+		if (clusterBus != null) {
+			clusterBus.stop();
+			clusterBus = null;
+		}
+		if (sessionDirectory != null) {
+			sessionDirectory.stop();
+			sessionDirectory = null;
+		}
+		subjectOwnership = null;
+
 		// Send abort control event to all subscribers.
 		Log.info("Dispatcher stopped: broadcast abort to all subscribers");
 		broadcast(new Event(E_ABORT));
+
+		if (lastValueCache != null) {
+			lastValueCache.clear();
+		}
+		if (stateStore != null) {
+			stateStore.clear();
+		}
+		if (replayStore != null) {
+			if (replayStore.getUntrackedCount() > 0) {
+				Log.warn("Dispatcher: " + replayStore.getUntrackedCount() + " events not kept for replay, max subjects reached");
+			}
+			replayStore.clear();
+		}
+		if (journal != null) {
+			journal.stop();
+			journal = null;
+		}
+		synchronized (this) {
+			if (rateWheel != null) {
+				rateWheel.stop();
+				rateWheel = null;
+			}
+		}
 	}
 
 	/**
@@ -163,15 +886,9 @@ public class Dispatcher implements Protocol, ConfigDefs {
 
 			// Send only if the subscriber's criteria
 			// match the event.
-			if ((subscription = subscriber.match(event)) != null) {
-				// Personalize event
-				clonedEvent = (Event) event.clone();
-
-				// Set subscription id and optional label
-				clonedEvent.setField(P_SUBSCRIPTION_ID, subscription.getId());
-				if (subscription.getLabel() != null) {
-					event.setField(P_SUBSCRIPTION_LABEL, subscription.getLabel());
-				}
+			if ((subscription = subscriber.match(event, dispatchId)) != null) {
+				// Personalize event: projected fields, subscription id and optional label
+				clonedEvent = subscription.personalize(event);
 
 				subscriber.onEvent(clonedEvent);
 			}
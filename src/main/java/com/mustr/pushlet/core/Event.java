@@ -21,6 +21,21 @@ public class Event implements Protocol, Serializable {
     
     protected Map<String, String> attributes = new HashMap<String, String>(3);
 
+	/**
+	 * Attributes map is shared with other Events, copy before first write.
+	 */
+	private transient volatile boolean sharedAttributes;
+
+	/**
+	 * Projections of this Event per FieldSet, see project().
+	 */
+	private transient Map<FieldSet, Projection> projections;
+
+	/**
+	 * Projection this Event was created from, null if none or modified since.
+	 */
+	private transient volatile Projection projection;
+
 	public Event(String anEventType) {
 		this(anEventType, null);
 	}
@@ -45,6 +60,23 @@ public class Event implements Protocol, Serializable {
 		setAttrs(theAttributes);
 	}
 
+	/**
+	 * Copy constructor sharing the attributes map (copy-on-write).
+	 */
+	private Event(Event aSource) {
+		attributes = aSource.attributes;
+		sharedAttributes = true;
+	}
+
+	/**
+	 * Projected Event sharing the projection attributes (copy-on-write).
+	 */
+	private Event(Projection aProjection) {
+		attributes = aProjection.attributes;
+		sharedAttributes = true;
+		projection = aProjection;
+	}
+
 	public static Event createDataEvent(String aSubject) {
 		return createDataEvent(aSubject, null);
 	}
@@ -63,20 +95,38 @@ public class Event implements Protocol, Serializable {
 		return getField(P_SUBJECT);
 	}
 
+	/**
+	 * Send ahead of queued data events (p_urgent field).
+	 */
+	public void setUrgent(boolean anUrgent) {
+		if (anUrgent) {
+			setField(P_URGENT, "true");
+		} else if (attributes.containsKey(P_URGENT)) {
+			writableAttributes().remove(P_URGENT);
+		}
+	}
+
+	/**
+	 * Is this an urgent Event, abort or marked with p_urgent ?
+	 */
+	public boolean isUrgent() {
+		return "true".equals(getField(P_URGENT)) || E_ABORT.equals(getEventType());
+	}
+
 	public void setField(String name, String value) {
-		attributes.put(name, value);
+		writableAttributes(name).put(name, value);
 	}
 
 	public void setField(String name, int value) {
-		attributes.put(name, value + "");
+		writableAttributes(name).put(name, value + "");
 	}
 
 	public void setField(String name, long value) {
-		attributes.put(name, value + "");
+		writableAttributes(name).put(name, value + "");
 	}
 	
 	public void setField(String name, Object value) {
-	    attributes.put(name, value.toString());
+	    writableAttributes(name).put(name, value.toString());
 	}
 
 	public String getField(String name) {
@@ -117,17 +167,28 @@ public class Event implements Protocol, Serializable {
     }
 
     public String toXML(boolean strict) {
+        // Projected fields are encoded once for all projections
+        Projection shared = projection;
         String xmlString = "<event ";
         for (Iterator<String> iter = getFieldNames(); iter.hasNext();) {
             String nextAttrName = iter.next();
-            String nextAttrValue = getField(nextAttrName);
-            xmlString = xmlString + nextAttrName + "=\"" + (strict ? Sys.forHTMLTag(nextAttrValue) : nextAttrValue) + "\" ";
+            if (shared != null && !isProtocolField(nextAttrName)) {
+                continue;
+            }
+            xmlString += toXMLAttribute(nextAttrName, getField(nextAttrName), strict);
+        }
+        if (shared != null) {
+            xmlString += shared.getXML(strict);
         }
 
         xmlString += "/>";
         return xmlString;
     }
 
+    private static String toXMLAttribute(String aName, String aValue, boolean strict) {
+        return aName + "=\"" + (strict ? Sys.forHTMLTag(aValue) : aValue) + "\" ";
+    }
+
 	public String toXML() {
 		return toXML(false);
 	}
@@ -137,11 +198,134 @@ public class Event implements Protocol, Serializable {
 		return new Event(attributes);
 	}
 
+	/**
+	 * Cheap copy for fan-out: shares the attributes until either Event is modified.
+	 */
+	public Event share() {
+		sharedAttributes = true;
+		return new Event(this);
+	}
+
+	/**
+	 * Copy with only protocol fields (p_*) and the given fields.
+	 * <p/>
+	 * All projections of this Event with equal field sets share their
+	 * attributes (copy-on-write) and encoded fields, see toXML().
+	 */
+	public Event project(FieldSet aFieldSet) {
+		Projection shared;
+		synchronized (this) {
+			if (projections == null) {
+				projections = new HashMap<FieldSet, Projection>(4);
+			}
+			shared = projections.get(aFieldSet);
+			if (shared == null) {
+				shared = new Projection(this, aFieldSet);
+				projections.put(aFieldSet, shared);
+			}
+		}
+		return new Event(shared);
+	}
+
+	/**
+	 * Shared projection, null if not projected or modified since.
+	 */
+	Projection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Protocol fields are named p_*, e.g. p_event.
+	 */
+	public static boolean isProtocolField(String aName) {
+		return aName.startsWith("p_");
+	}
+
+	/**
+	 * Get attributes for modifying a field, copying them first if shared.
+	 */
+	private Map<String, String> writableAttributes(String aName) {
+		// Projections and their encodings no longer match data fields
+		if (!isProtocolField(aName)) {
+			projection = null;
+			if (projections != null) {
+				synchronized (this) {
+					projections = null;
+				}
+			}
+		}
+		return writableAttributes();
+	}
+
+	/**
+	 * Get attributes for modification, copying them first if shared.
+	 */
+	private Map<String, String> writableAttributes() {
+		if (sharedAttributes) {
+			attributes = new HashMap<String, String>(attributes);
+			sharedAttributes = false;
+		}
+		return attributes;
+	}
+
 	/**
 	 * Copy given attributes into event attributes
 	 */
 	private void setAttrs(Map<String, String> theAttributes) {
 		attributes.putAll(theAttributes);
 	}
+
+	/**
+	 * Projected attributes of an Event with encodings of the non-protocol
+	 * fields, computed once on first use.
+	 */
+	static class Projection {
+		final Map<String, String> attributes;
+		final Map<String, String> fields;
+		private volatile String xml;
+		private volatile String strictXML;
+		private volatile String javaScript;
+
+		Projection(Event aSource, FieldSet aFieldSet) {
+			attributes = new HashMap<String, String>();
+			fields = new HashMap<String, String>();
+			for (Map.Entry<String, String> entry : aSource.attributes.entrySet()) {
+				if (isProtocolField(entry.getKey())) {
+					attributes.put(entry.getKey(), entry.getValue());
+				} else if (aFieldSet.contains(entry.getKey())) {
+					attributes.put(entry.getKey(), entry.getValue());
+					fields.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		String getXML(boolean strict) {
+			String result = strict ? strictXML : xml;
+			if (result == null) {
+				StringBuilder sb = new StringBuilder();
+				for (Map.Entry<String, String> entry : fields.entrySet()) {
+					sb.append(toXMLAttribute(entry.getKey(), entry.getValue(), strict));
+				}
+				result = sb.toString();
+				if (strict) {
+					strictXML = result;
+				} else {
+					xml = result;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * JavaScript arguments, see BrowserAdapter.
+		 */
+		String getJavaScript() {
+			return javaScript;
+		}
+
+		void setJavaScript(String aJavaScript) {
+			javaScript = aJavaScript;
+		}
+	}
 }
 
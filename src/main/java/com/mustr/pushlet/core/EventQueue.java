@@ -4,6 +4,11 @@
 package com.mustr.pushlet.core;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * FIFO queue with guarded suspension.
@@ -12,7 +17,13 @@ import java.io.Serializable;
  * <b>Implementation</b><br>
  * FIFO queue class implemented with circular array. The enQueue() and
  * deQueue() methods use guarded suspension according to a readers/writers
- * pattern, implemented with java.lang.Object.wait()/notify().
+ * pattern, implemented with a ReentrantLock and notEmpty/notFull Conditions.
+ * Unlike Object.wait() inside synchronized, waiting on a Condition does not
+ * pin the carrier thread when the reader runs on a virtual thread.
+ * <p/>
+ * Events may be enqueued with a conflation key: an Event with the same key
+ * still waiting in the queue is then replaced in place (latest value wins)
+ * instead of queueing both.
  * <p/>
  * <b>Examples</b><br>
  * <p/>
@@ -30,6 +41,19 @@ public class EventQueue implements Serializable {
 	private Event[] queue = null;
 	private int front, rear;
 
+	/**
+	 * Conflation key per slot and slot per key, created on first use.
+	 */
+	private String[] keys;
+	private Map<String, Integer> slots;
+
+	/**
+	 * Guards all queue state.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
 	/**
 	 * Construct queue with default (8) capacity.
 	 */
@@ -49,124 +73,233 @@ public class EventQueue implements Serializable {
 	/**
 	 * Put item in queue; waits() indefinitely if queue is full.
 	 */
-	public synchronized boolean enQueue(Event item) throws InterruptedException {
+	public boolean enQueue(Event item) throws InterruptedException {
 		return enQueue(item, -1);
 	}
 
 	/**
 	 * Put item in queue; if full wait maxtime.
 	 */
-	public synchronized boolean enQueue(Event item, long maxWaitTime) throws InterruptedException {
+	public boolean enQueue(Event item, long maxWaitTime) throws InterruptedException {
+		return enQueue(item, null, maxWaitTime);
+	}
 
-		// Wait (optional maxtime) as long as the queue is full
-		while (isFull()) {
-			if (maxWaitTime > 0) {
-				// Wait at most maximum time
-				wait(maxWaitTime);
+	/**
+	 * Put item in queue, replacing a queued item with the same conflation key;
+	 * if full (and nothing to replace) wait maxtime.
+	 *
+	 * @param key conflation key, null to always append
+	 */
+	public boolean enQueue(Event item, String key, long maxWaitTime) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			// Replace older value still waiting
+			if (key != null && replace(item, key)) {
+				return true;
+			}
 
-				// Timed out or woken; if still full we
-				// had bad luck and return failure.
-				if (isFull()) {
-					return false;
+			// Wait (optional maxtime) as long as the queue is full
+			while (isFull()) {
+				if (maxWaitTime > 0) {
+					// Wait at most maximum time
+					notFull.await(maxWaitTime, TimeUnit.MILLISECONDS);
+
+					// Timed out or woken; if still full we
+					// had bad luck and return failure.
+					if (isFull()) {
+						return false;
+					}
+				} else {
+					notFull.await();
 				}
-			} else {
-				wait();
 			}
-		}
 
-		// Put item in queue
-		queue[rear] = item;
-		rear = next(rear);
+			// Put item in queue
+			put(item, key);
 
-		// Wake up waiters; NOTE: first waiter will eat item
-		notifyAll();
-		return true;
+			// Wake up waiters; NOTE: first waiter will eat item
+			notEmpty.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Put item in queue if not full, never waits.
+	 */
+	public boolean offer(Event item) {
+		lock.lock();
+		try {
+			if (isFull()) {
+				return false;
+			}
+			put(item, null);
+			notEmpty.signalAll();
+			return true;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * Get head; if empty wait until something in queue.
 	 */
-	public synchronized Event deQueue() throws InterruptedException {
+	public Event deQueue() throws InterruptedException {
 		return deQueue(-1);
 	}
 
 	/**
 	 * Get head; if empty wait for specified time at max.
 	 */
-	public synchronized Event deQueue(long maxWaitTime) throws InterruptedException {
-		while (isEmpty()) {
-			if (maxWaitTime >= 0) {
-				wait(maxWaitTime);
+	public Event deQueue(long maxWaitTime) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (!awaitNotEmpty(maxWaitTime)) {
+				return null;
+			}
 
-				// Timed out or woken; if still empty we
-				// had bad luck and return failure.
-				if (isEmpty()) {
-					return null;
-				}
-			} else {
-				// Wait indefinitely for something in queue.
-				wait();
+			// Dequeue item
+			Event result = fetchNext();
+
+			// Notify possible waiting enQueue()-ers
+			notFull.signalAll();
+
+			// Return dequeued item
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get all queued Events.
+	 */
+	public Event[] deQueueAll(long maxWaitTime) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (!awaitNotEmpty(maxWaitTime)) {
+				return null;
 			}
+
+			// Dequeue all items item
+			Event[] events = new Event[getSize()];
+			for (int i = 0; i < events.length; i++) {
+				events[i] = fetchNext();
+			}
+
+			// Notify possible waiting enQueue()-ers
+			notFull.signalAll();
+
+			// Return dequeued item
+			return events;
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		// Dequeue item
-		Event result = fetchNext();
+	/**
+	 * Queued Events, oldest first, without removing them.
+	 */
+	public Event[] toArray() {
+		lock.lock();
+		try {
+			Event[] events = new Event[getSize()];
+			for (int i = 0, index = front; i < events.length; i++, index = next(index)) {
+				events[i] = queue[index];
+			}
+			return events;
+		} finally {
+			lock.unlock();
+		}
+	}
 
-		// Notify possible wait()-ing enQueue()-ers
-		notifyAll();
+	public int getSize() {
+		lock.lock();
+		try {
+			return (rear >= front) ? (rear - front) : (capacity - front + rear);
+		} finally {
+			lock.unlock();
+		}
+	}
 
-		// Return dequeued item
-		return result;
+	/**
+	 * Is the queue empty ?
+	 */
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return front == rear;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Get all queued Events.
+	 * Is the queue full ?
+	 */
+	public boolean isFull() {
+		lock.lock();
+		try {
+			return (next(rear) == front);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait while empty, lock must be held; false if still empty after maxWaitTime.
 	 */
-	public synchronized Event[] deQueueAll(long maxWaitTime) throws InterruptedException {
+	private boolean awaitNotEmpty(long maxWaitTime) throws InterruptedException {
 		while (isEmpty()) {
 			if (maxWaitTime >= 0) {
-				wait(maxWaitTime);
+				// Note: 0 means return immediately (poll mode)
+				if (maxWaitTime > 0) {
+					notEmpty.await(maxWaitTime, TimeUnit.MILLISECONDS);
+				}
 
 				// Timed out or woken; if still empty we
 				// had bad luck and return failure.
 				if (isEmpty()) {
-					return null;
+					return false;
 				}
 			} else {
 				// Wait indefinitely for something in queue.
-				wait();
+				notEmpty.await();
 			}
 		}
-
-		// Dequeue all items item
-		Event[] events = new Event[getSize()];
-		for (int i = 0; i < events.length; i++) {
-			events[i] = fetchNext();
-		}
-
-		// Notify possible wait()-ing enQueue()-ers
-		notifyAll();
-
-		// Return dequeued item
-		return events;
-	}
-
-	public synchronized int getSize() {
-		return (rear >= front) ? (rear - front) : (capacity - front + rear);
+		return true;
 	}
 
 	/**
-	 * Is the queue empty ?
+	 * Append item at rear, lock must be held.
 	 */
-	public synchronized boolean isEmpty() {
-		return front == rear;
+	private void put(Event item, String key) {
+		if (key != null) {
+			if (keys == null) {
+				keys = new String[capacity];
+				slots = new HashMap<String, Integer>();
+			}
+			keys[rear] = key;
+			slots.put(key, rear);
+		}
+		queue[rear] = item;
+		rear = next(rear);
 	}
 
 	/**
-	 * Is the queue full ?
+	 * Replace queued item with same key, lock must be held.
 	 */
-	public synchronized boolean isFull() {
-		return (next(rear) == front);
+	private boolean replace(Event item, String key) {
+		if (slots == null) {
+			return false;
+		}
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			return false;
+		}
+		queue[slot] = item;
+		return true;
 	}
 
 	/**
@@ -182,6 +315,10 @@ public class EventQueue implements Serializable {
 	private Event fetchNext() {
 		Event temp = queue[front];
 		queue[front] = null;
+		if (keys != null && keys[front] != null) {
+			slots.remove(keys[front]);
+			keys[front] = null;
+		}
 		front = next(front);
 		return temp;
 	}
@@ -0,0 +1,72 @@
+package com.mustr.pushlet.core;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Names of the Event fields a Subscription wants, see Event.project().
+ * <p/>
+ * Protocol fields (p_*) are always included. Equal field sets (same names
+ * in any order) are equal, so projections can be cached per field set.
+ */
+public class FieldSet {
+	public static final String SEPARATOR = ",";
+
+	private final String[] names;
+	private final String key;
+
+	private FieldSet(String[] theNames) {
+		names = theNames;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				sb.append(SEPARATOR);
+			}
+			sb.append(names[i]);
+		}
+		key = sb.toString();
+	}
+
+	/**
+	 * Parse comma-separated field names.
+	 *
+	 * @throws IllegalArgumentException if no field names
+	 */
+	public static FieldSet parse(String aFields) {
+		TreeSet<String> names = new TreeSet<String>();
+		String[] parts = aFields.split(SEPARATOR);
+		for (int i = 0; i < parts.length; i++) {
+			String name = parts[i].trim();
+			if (name.length() > 0 && !Event.isProtocolField(name)) {
+				names.add(name);
+			}
+		}
+		if (names.isEmpty()) {
+			throw new IllegalArgumentException("No fields in " + aFields);
+		}
+		return new FieldSet(names.toArray(new String[names.size()]));
+	}
+
+	public boolean contains(String aName) {
+		return Arrays.binarySearch(names, aName) >= 0;
+	}
+
+	/**
+	 * Non-protocol field names, sorted; do not modify.
+	 */
+	public String[] getNames() {
+		return names;
+	}
+
+	public boolean equals(Object anObject) {
+		return anObject instanceof FieldSet && ((FieldSet) anObject).key.equals(key);
+	}
+
+	public int hashCode() {
+		return key.hashCode();
+	}
+
+	public String toString() {
+		return key;
+	}
+}
@@ -0,0 +1,257 @@
+package com.mustr.pushlet.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Field predicates on Events of a Subscription.
+ * <p/>
+ * Clauses are separated by ';' and must all match, e.g.
+ * "symbol=ING;price>=10;price<20;sector in (tech,bank)". Supported are
+ * = and != (string compare), <, <=, > and >= (numeric, false if the field
+ * is missing or not a number) and "in (a,b,...)" or "in(a,b,...)".
+ * Values cannot contain ';', as it always separates clauses.
+ * <p/>
+ * <b>Implementation</b><br>
+ * Clauses are compiled once into Predicate objects, which are shared by all
+ * subscriptions with the same clause (reference counted, see release()).
+ * A Predicate remembers its result for the last multicast it saw (see
+ * match(Event, long)), so during a multicast each distinct predicate is
+ * evaluated once per Event rather than once per session. Other callers,
+ * e.g. re-matching cached Events, always evaluate.
+ */
+public class Filter {
+	public static final String CLAUSE_SEPARATOR = ";";
+
+	private static final Pattern CLAUSE = Pattern.compile("^([^\\s=!<>]+)\\s*(?:(!=|>=|<=|=|<|>)|\\s(in)(?:\\s|(?=\\()))\\s*(.*)$", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Shared predicates by canonical clause, guarded by class.
+	 */
+	private static final Map<String, Predicate> predicates = new HashMap<String, Predicate>();
+
+	private final String text;
+	private final Predicate[] clauses;
+	private boolean released;
+
+	private Filter(String aText, Predicate[] theClauses) {
+		text = aText;
+		clauses = theClauses;
+	}
+
+	/**
+	 * Parse filter expression.
+	 *
+	 * @throws IllegalArgumentException on syntax errors
+	 */
+	public static Filter compile(String aText) {
+		String[] parts = aText.split(CLAUSE_SEPARATOR);
+		List<Predicate> parsed = new ArrayList<Predicate>(parts.length);
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].trim().length() > 0) {
+				parsed.add(parse(parts[i].trim()));
+			}
+		}
+		if (parsed.isEmpty()) {
+			throw new IllegalArgumentException("Empty filter");
+		}
+
+		Predicate[] shared = new Predicate[parsed.size()];
+		synchronized (Filter.class) {
+			for (int i = 0; i < shared.length; i++) {
+				Predicate predicate = parsed.get(i);
+				shared[i] = predicates.get(predicate.key);
+				if (shared[i] == null) {
+					shared[i] = predicate;
+					predicates.put(predicate.key, predicate);
+				}
+				shared[i].refs++;
+			}
+		}
+		return new Filter(aText, shared);
+	}
+
+	/**
+	 * Do all clauses match the Event ?
+	 */
+	public boolean match(Event anEvent) {
+		return match(anEvent, 0);
+	}
+
+	/**
+	 * Do all clauses match the Event of a multicast ? Results are shared
+	 * within the same dispatch id, 0 for none.
+	 */
+	public boolean match(Event anEvent, long aDispatchId) {
+		for (int i = 0; i < clauses.length; i++) {
+			if (!clauses[i].match(anEvent, aDispatchId)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Filter no longer used: drop unshared predicates.
+	 */
+	public void release() {
+		synchronized (Filter.class) {
+			if (released) {
+				return;
+			}
+			released = true;
+			for (int i = 0; i < clauses.length; i++) {
+				if (--clauses[i].refs == 0) {
+					predicates.remove(clauses[i].key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number of distinct predicates in use.
+	 */
+	public static synchronized int getPredicateCount() {
+		return predicates.size();
+	}
+
+	public String toString() {
+		return text;
+	}
+
+	private static Predicate parse(String aClause) {
+		Matcher matcher = CLAUSE.matcher(aClause);
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("Invalid filter clause: " + aClause);
+		}
+		String field = matcher.group(1);
+		String value = matcher.group(4).trim();
+		if (matcher.group(3) != null) {
+			if (value.startsWith("(") && value.endsWith(")")) {
+				value = value.substring(1, value.length() - 1);
+			}
+			TreeSet<String> values = new TreeSet<String>();
+			String[] items = value.split(",");
+			for (int i = 0; i < items.length; i++) {
+				values.add(items[i].trim());
+			}
+			return new In(field, values);
+		}
+
+		String operator = matcher.group(2);
+		if (operator.equals("=") || operator.equals("!=")) {
+			return new Equals(field, value, operator.equals("!="));
+		}
+		try {
+			return new Compare(field, operator, Double.parseDouble(value));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number in filter clause: " + aClause);
+		}
+	}
+
+	/**
+	 * Compiled clause with result of the last multicast evaluation.
+	 */
+	private static abstract class Predicate {
+		final String key;
+		final String field;
+		int refs;
+		private volatile Result last;
+
+		Predicate(String aField, String aKey) {
+			field = aField;
+			key = aKey;
+		}
+
+		boolean match(Event anEvent, long aDispatchId) {
+			if (aDispatchId == 0) {
+				return evaluate(anEvent.getField(field));
+			}
+			Result result = last;
+			if (result != null && result.dispatchId == aDispatchId && result.event == anEvent) {
+				return result.value;
+			}
+			boolean value = evaluate(anEvent.getField(field));
+			last = new Result(anEvent, aDispatchId, value);
+			return value;
+		}
+
+		abstract boolean evaluate(String aValue);
+	}
+
+	private static class Result {
+		final Event event;
+		final long dispatchId;
+		final boolean value;
+
+		Result(Event anEvent, long aDispatchId, boolean aValue) {
+			event = anEvent;
+			dispatchId = aDispatchId;
+			value = aValue;
+		}
+	}
+
+	private static class Equals extends Predicate {
+		private final String value;
+		private final boolean negate;
+
+		Equals(String aField, String aValue, boolean aNegate) {
+			super(aField, aField + (aNegate ? "!=" : "=") + aValue);
+			value = aValue;
+			negate = aNegate;
+		}
+
+		boolean evaluate(String aValue) {
+			return value.equals(aValue) != negate;
+		}
+	}
+
+	private static class Compare extends Predicate {
+		private final String operator;
+		private final double value;
+
+		Compare(String aField, String anOperator, double aValue) {
+			super(aField, aField + anOperator + aValue);
+			operator = anOperator;
+			value = aValue;
+		}
+
+		boolean evaluate(String aValue) {
+			if (aValue == null) {
+				return false;
+			}
+			double number;
+			try {
+				number = Double.parseDouble(aValue);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (operator.equals("<")) {
+				return number < value;
+			} else if (operator.equals("<=")) {
+				return number <= value;
+			} else if (operator.equals(">")) {
+				return number > value;
+			}
+			return number >= value;
+		}
+	}
+
+	private static class In extends Predicate {
+		private final TreeSet<String> values;
+
+		In(String aField, TreeSet<String> theValues) {
+			super(aField, aField + " in " + theValues);
+			values = theValues;
+		}
+
+		boolean evaluate(String aValue) {
+			return aValue != null && values.contains(aValue);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.mustr.pushlet.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Bounded cache of the last Event published per subject.
+ * <p/>
+ * Used by the Dispatcher to give new subscribers the current state of all
+ * matching subjects right away instead of waiting for the next update.
+ * <p/>
+ * <b>Implementation</b><br>
+ * An access-ordered LinkedHashMap gives LRU eviction, a TreeMap on the same
+ * entries allows prefix lookups (Subscription subjects are prefixes) without
+ * scanning the whole cache. Memory use is estimated from field sizes and
+ * kept below a byte budget as well as an entry count limit.
+ */
+public class LastValueCache {
+	/**
+	 * Rough per-object overheads for the estimate.
+	 */
+	private static final int ENTRY_OVERHEAD = 160;
+	private static final int FIELD_OVERHEAD = 96;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes;
+
+	private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private final TreeMap<String, Entry> bySubject = new TreeMap<String, Entry>();
+
+	public LastValueCache(int aMaxEntries, long aMaxBytes) {
+		maxEntries = aMaxEntries;
+		maxBytes = aMaxBytes;
+	}
+
+	/**
+	 * Remember event as last value for its subject, evicting least recently used.
+	 */
+	public synchronized void put(Event anEvent) {
+		String subject = anEvent.getSubject();
+		if (subject == null || subject.length() == 0) {
+			return;
+		}
+
+		// Own copy: the published event is personalized afterwards
+		Entry entry = new Entry(subject, (Event) anEvent.clone());
+		if (entry.size > maxBytes) {
+			remove(subject);
+			return;
+		}
+
+		Entry previous = lru.put(subject, entry);
+		bySubject.put(subject, entry);
+		if (previous != null) {
+			bytes -= previous.size;
+		}
+		bytes += entry.size;
+
+		Iterator<Entry> iter = lru.values().iterator();
+		while ((lru.size() > maxEntries || bytes > maxBytes) && iter.hasNext()) {
+			Entry eldest = iter.next();
+			iter.remove();
+			bySubject.remove(eldest.subject);
+			bytes -= eldest.size;
+		}
+	}
+
+	/**
+	 * Drop last value for subject.
+	 */
+	public synchronized void remove(String aSubject) {
+		Entry entry = lru.remove(aSubject);
+		if (entry != null) {
+			bySubject.remove(aSubject);
+			bytes -= entry.size;
+		}
+	}
+
+	/**
+	 * Last values of all subjects matching the subscription, shared copies.
+	 */
+	public synchronized List<Event> match(Subscription aSubscription) {
+		List<Event> result = new ArrayList<Event>();
+		String[] prefixes = aSubscription.getPrefixes();
+		for (int i = 0; i < prefixes.length; i++) {
+			SortedMap<String, Entry> range = bySubject.subMap(prefixes[i], prefixes[i] + Character.MAX_VALUE);
+			for (Entry entry : range.values()) {
+				// Overlapping subject prefixes: add once
+				if (isCoveredBefore(prefixes, i, entry.subject)) {
+					continue;
+				}
+				if (aSubscription.getPatterns() != null && !aSubscription.matchSubject(entry.subject)) {
+					continue;
+				}
+				if (aSubscription.getFilter() != null && !aSubscription.getFilter().match(entry.event)) {
+					continue;
+				}
+
+				// Touch for LRU order
+				lru.get(entry.subject);
+				result.add(entry.event.share());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Last value of subject, null if none; does not count as use.
+	 */
+	public synchronized Event get(String aSubject) {
+		Entry entry = bySubject.get(aSubject);
+		return entry == null ? null : entry.event.share();
+	}
+
+	public synchronized List<String> getSubjects() {
+		return new ArrayList<String>(bySubject.keySet());
+	}
+
+	public synchronized int getSize() {
+		return lru.size();
+	}
+
+	/**
+	 * Estimated memory use in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized void clear() {
+		lru.clear();
+		bySubject.clear();
+		bytes = 0;
+	}
+
+	private static boolean isCoveredBefore(String[] theSubjects, int anIndex, String aSubject) {
+		for (int i = 0; i < anIndex; i++) {
+			if (aSubject.startsWith(theSubjects[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long estimateSize(Event anEvent) {
+		long size = ENTRY_OVERHEAD;
+		for (Iterator<String> iter = anEvent.getFieldNames(); iter.hasNext();) {
+			String name = iter.next();
+			String value = anEvent.getField(name);
+			size += FIELD_OVERHEAD + 2 * (name.length() + (value == null ? 0 : value.length()));
+		}
+		return size;
+	}
+
+	private static class Entry {
+		final String subject;
+		final Event event;
+		final long size;
+
+		Entry(String aSubject, Event anEvent) {
+			subject = aSubject;
+			event = anEvent;
+			size = estimateSize(anEvent) + 2 * aSubject.length();
+		}
+	}
+}
@@ -91,6 +91,108 @@ public interface Protocol {
 	 */
 	public static final String P_SUBSCRIPTION_LABEL = "p_label";
 
+	/**
+	 * Marks a delete of a keyed state row (value "true"), see StateStore.
+	 */
+	public static final String P_TOMBSTONE = "p_tombstone";
+
+	/**
+	 * Marks a row of a state snapshot (value "true").
+	 */
+	public static final String P_SNAPSHOT = "p_snapshot";
+
+	/**
+	 * Sequence number of an Event within its subject, see ReplayStore.
+	 */
+	public static final String P_SUBJECT_SEQ = "p_sseq";
+
+	/**
+	 * Last p_sseq seen per subject on (re)listen/subscribe, e.g.
+	 * "/stocks/aex:41,/news:7", missed Events are replayed.
+	 */
+	public static final String P_LAST_SEQ = "p_last";
+
+	/**
+	 * Conflate queued Events of a subscription on listen/subscribe:
+	 * "true" per subject, otherwise the name of a key field, see Conflation.
+	 */
+	public static final String P_CONFLATE = "p_conflate";
+
+	/**
+	 * Max data Events per second of a subscription on listen/subscribe,
+	 * e.g. "2" or "0.5", see RateLimiter.
+	 */
+	public static final String P_RATE = "p_rate";
+
+	/**
+	 * Field predicates of a subscription on listen/subscribe, e.g.
+	 * "symbol=ING;price>=10;sector in (tech,bank)", see Filter.
+	 */
+	public static final String P_FILTER = "p_filter";
+
+	/**
+	 * Comma-separated fields to send for a subscription on listen/subscribe,
+	 * protocol fields (p_*) are always sent, see FieldSet.
+	 */
+	public static final String P_FIELDS = "p_fields";
+
+	/**
+	 * Delta mode: on listen "true" to receive data events as deltas; on a
+	 * data event "true" if it only holds fields changed since the previous
+	 * event on its subject, to be merged by the client.
+	 */
+	public static final String P_DELTA = "p_delta";
+
+	/**
+	 * Comma-separated fields removed since the previous event of a delta.
+	 */
+	public static final String P_REMOVED = "p_removed";
+
+	/**
+	 * Marks an Event as urgent (value "true"): it bypasses queued data
+	 * events, see Event.setUrgent().
+	 */
+	public static final String P_URGENT = "p_urgent";
+
+	/**
+	 * Durable mode on listen (value "true"): queue overflow is spilled to
+	 * disk instead of disconnecting, see SpillQueue.
+	 */
+	public static final String P_DURABLE = "p_durable";
+
+	/**
+	 * Acknowledged delivery of a subscription's data events (value "true"):
+	 * they are numbered with P_ACK_SEQ and redelivered until acknowledged.
+	 */
+	public static final String P_ACKED = "p_acked";
+
+	/**
+	 * Delivery number of an acknowledged data event, per session.
+	 */
+	public static final String P_ACK_SEQ = "p_aseq";
+
+	/**
+	 * Cumulative acknowledgement: all events up to this p_aseq were received.
+	 * Accepted on any request (e.g. hb or refresh) and with E_ACK.
+	 */
+	public static final String P_ACK = "p_ack";
+
+	/**
+	 * P_TIME range (seconds, inclusive) of a query, see Journal.
+	 */
+	public static final String P_QUERY_FROM = "p_qfrom";
+	public static final String P_QUERY_TO = "p_qto";
+
+	/**
+	 * Max Events returned by a query.
+	 */
+	public static final String P_QUERY_LIMIT = "p_qlimit";
+
+	/**
+	 * Number of Events returned by a query.
+	 */
+	public static final String P_COUNT = "p_count";
+
 	//
 	// Event values with direction for P_EVENT (C=client, S=server)
 	//
@@ -200,6 +302,36 @@ public interface Protocol {
 	 */
 	public static final String E_REFRESH_ACK = "refresh-ack";
 
+	/**
+	 * S-->C all rows of a state snapshot sent, live deltas follow.
+	 */
+	public static final String E_SNAPSHOT_END = "snapshot-end";
+
+	/**
+	 * S-->C missed Events for p_subject cannot be replayed, client should resync.
+	 */
+	public static final String E_RESYNC = "resync";
+
+	/**
+	 * C-->S query journaled Events for p_subject prefix within p_qfrom..p_qto.
+	 */
+	public static final String E_QUERY = "query";
+
+	/**
+	 * S-->C all Events of a query sent, p_count holds their number.
+	 */
+	public static final String E_QUERY_ACK = "query-ack";
+
+	/**
+	 * C-->S acknowledge events up to p_ack.
+	 */
+	public static final String E_ACK = "ack";
+
+	/**
+	 * S-->C acknowledgement processed, p_ack holds the last acknowledged p_aseq.
+	 */
+	public static final String E_ACK_ACK = "ack-ack";
+
 	//
 	// Values for P_FORMAT parameter
 	//
@@ -0,0 +1,25 @@
+package com.mustr.pushlet.core;
+
+/**
+ * Minimal view on a client request as needed by the Pushlet core.
+ * <p/>
+ * Implemented on top of HttpServletRequest for servlet containers and
+ * directly by the embedded server.
+ */
+public interface PushletRequest {
+
+	/**
+	 * Request URI without query string.
+	 */
+	public String getRequestURI();
+
+	/**
+	 * Remote client IP address.
+	 */
+	public String getRemoteAddr();
+
+	/**
+	 * HTTP header value or null if not present.
+	 */
+	public String getHeader(String aName);
+}
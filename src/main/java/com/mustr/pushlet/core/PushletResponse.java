@@ -0,0 +1,45 @@
+package com.mustr.pushlet.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal view on a client response as needed by the Pushlet core.
+ * <p/>
+ * Implemented on top of HttpServletResponse for servlet containers and
+ * directly by the embedded server.
+ */
+public interface PushletResponse {
+
+	public void setStatus(int aStatus);
+
+	public void setContentType(String aContentType);
+
+	public void setHeader(String aName, String aValue);
+
+	public void addHeader(String aName, String aValue);
+
+	/**
+	 * Hint for the size of the response buffer.
+	 */
+	public void setBufferSize(int aSize);
+
+	/**
+	 * Raw response body stream, not to be mixed with write().
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Write encoded bytes to the client and flush (gathering write where supported).
+	 * <p/>
+	 * Buffer positions are left untouched, such that pre-encoded
+	 * buffers can be shared between responses.
+	 */
+	public void write(ByteBuffer... theBuffers) throws IOException;
+
+	/**
+	 * Flush any buffered data to the client.
+	 */
+	public void flushBuffer() throws IOException;
+}
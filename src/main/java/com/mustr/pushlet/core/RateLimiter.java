@@ -0,0 +1,78 @@
+package com.mustr.pushlet.core;
+
+import com.mustr.pushlet.util.TimingWheel;
+
+/**
+ * Sample-and-hold rate limit for the data Events of one Subscription.
+ * <p/>
+ * The first Event is sent at once and opens a window of 1/maxRate seconds.
+ * Events arriving within the window replace each other; at the window edge
+ * the latest one is sent and the next window opens, otherwise the limiter
+ * goes idle. Window edges are timeouts in a TimingWheel shared by all
+ * limiters, no thread per subscription.
+ */
+class RateLimiter extends TimingWheel.Timeout {
+	private final Subscriber subscriber;
+	private final TimingWheel wheel;
+	private final long intervalMillis;
+
+	/**
+	 * State guarded by this.
+	 */
+	private boolean open;
+	private boolean cancelled;
+	private Event held;
+
+	RateLimiter(Subscriber aSubscriber, TimingWheel aWheel, double aMaxRate) {
+		subscriber = aSubscriber;
+		wheel = aWheel;
+		intervalMillis = Math.max(1, Math.round(1000 / aMaxRate));
+	}
+
+	/**
+	 * Send Event now or hold it until the window edge.
+	 */
+	void offer(Event anEvent) {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			if (open) {
+				held = anEvent;
+				return;
+			}
+			open = true;
+		}
+		wheel.schedule(this, intervalMillis);
+		subscriber.enqueue(anEvent);
+	}
+
+	/**
+	 * Drop held Event and stop, e.g. when unsubscribed.
+	 */
+	void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			open = false;
+			held = null;
+		}
+		wheel.cancel(this);
+	}
+
+	/**
+	 * Window edge: flush latest Event, if any.
+	 */
+	protected void expire() {
+		Event event;
+		synchronized (this) {
+			event = held;
+			held = null;
+			if (event == null || cancelled) {
+				open = false;
+				return;
+			}
+		}
+		wheel.schedule(this, intervalMillis);
+		subscriber.enqueue(event);
+	}
+}
@@ -0,0 +1,204 @@
+package com.mustr.pushlet.core;
+
+import com.mustr.pushlet.util.Log;
+import com.mustr.pushlet.util.Sys;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-subject rings of recently published Events for gap-free reconnects.
+ * <p/>
+ * Each published Event gets a sequence number per subject (p_sseq), starting
+ * at 1 and increasing by one. A reconnecting client passes the last sequence
+ * number it saw per subject and gets the Events it missed, provided they are
+ * still in the ring and within the retention time; otherwise it has to resync.
+ */
+public class ReplayStore implements Protocol {
+	private final int ringSize;
+	private final long retentionMillis;
+	private final int maxSubjects;
+	private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<String, Ring>();
+
+	/** Events not kept since max subjects was reached, warned once. */
+	private final AtomicLong untrackedCount = new AtomicLong();
+
+	public ReplayStore(int aRingSize, long theRetentionMillis, int aMaxSubjects) {
+		ringSize = aRingSize;
+		retentionMillis = theRetentionMillis;
+		maxSubjects = aMaxSubjects;
+	}
+
+	/**
+	 * Number Event with next sequence number for its subject and keep a copy.
+	 */
+	public void add(Event anEvent) {
+		Ring ring = getRing(anEvent.getSubject());
+		if (ring != null) {
+			ring.add(anEvent);
+		}
+	}
+
+	/**
+	 * Keep a copy of an Event numbered elsewhere (p_sseq set by the subject owner).
+	 */
+	public void addSequenced(Event anEvent) {
+		Ring ring = getRing(anEvent.getSubject());
+		if (ring != null) {
+			ring.add(anEvent, Long.parseLong(anEvent.getField(P_SUBJECT_SEQ)));
+		}
+	}
+
+	/**
+	 * Get last sequence number of subject, 0 if none.
+	 */
+	public long getLastSeq(String aSubject) {
+		Ring ring = rings.get(aSubject);
+		return ring == null ? 0 : ring.getLastSeq();
+	}
+
+	/**
+	 * Continue numbering of subject after the given sequence number.
+	 * <p/>
+	 * Used when a subject moves to this node, Events before are not replayed.
+	 */
+	public void setLastSeq(String aSubject, long aLastSeq) {
+		Ring ring = getRing(aSubject);
+		if (ring != null) {
+			ring.setLastSeq(aLastSeq);
+		}
+	}
+
+	/**
+	 * Get number of Events not kept because max subjects was reached.
+	 */
+	public long getUntrackedCount() {
+		return untrackedCount.get();
+	}
+
+	/**
+	 * Get subjects with a ring.
+	 */
+	public List<String> getSubjects() {
+		return new ArrayList<String>(rings.keySet());
+	}
+
+	private Ring getRing(String subject) {
+		if (subject == null) {
+			return null;
+		}
+
+		Ring ring = rings.get(subject);
+		if (ring == null) {
+			if (rings.size() >= maxSubjects) {
+				if (untrackedCount.getAndIncrement() == 0) {
+					Log.warn("ReplayStore: max subjects=" + maxSubjects + " reached, not keeping subject=" + subject + " and other new subjects");
+				}
+				return null;
+			}
+			Ring newRing = new Ring(ringSize);
+			ring = rings.putIfAbsent(subject, newRing);
+			if (ring == null) {
+				ring = newRing;
+			}
+		}
+		return ring;
+	}
+
+	/**
+	 * Get Events published on subject after the given sequence number.
+	 *
+	 * @return Events in sequence order (possibly empty), or null if
+	 *         some were dropped or expired and the client must resync
+	 */
+	public List<Event> since(String aSubject, long aLastSeq) {
+		Ring ring = rings.get(aSubject);
+		if (ring == null) {
+			// Nothing published since start, unless client saw an earlier run
+			return aLastSeq <= 0 ? Collections.<Event>emptyList() : null;
+		}
+		return ring.since(aLastSeq, Sys.now() - retentionMillis);
+	}
+
+	public void clear() {
+		rings.clear();
+		untrackedCount.set(0);
+	}
+
+	/**
+	 * Fixed size ring, slot is sequence number modulo size.
+	 */
+	private static class Ring {
+		private final Event[] events;
+		private final long[] times;
+
+		/**
+		 * Sequence number per slot, may have gaps after setLastSeq() or add(Event, long).
+		 */
+		private final long[] seqs;
+		private long lastSeq;
+
+		Ring(int aSize) {
+			events = new Event[aSize];
+			times = new long[aSize];
+			seqs = new long[aSize];
+		}
+
+		synchronized void add(Event anEvent) {
+			lastSeq++;
+			anEvent.setField(P_SUBJECT_SEQ, lastSeq);
+			put(anEvent, lastSeq);
+		}
+
+		synchronized void add(Event anEvent, long aSeq) {
+			if (aSeq <= lastSeq) {
+				// Late or duplicate
+				return;
+			}
+			lastSeq = aSeq;
+			put(anEvent, aSeq);
+		}
+
+		private void put(Event anEvent, long aSeq) {
+			int slot = (int) (aSeq % events.length);
+
+			// Own copy: the published event is personalized afterwards
+			events[slot] = (Event) anEvent.clone();
+			times[slot] = Sys.now();
+			seqs[slot] = aSeq;
+		}
+
+		synchronized long getLastSeq() {
+			return lastSeq;
+		}
+
+		synchronized void setLastSeq(long aLastSeq) {
+			lastSeq = Math.max(lastSeq, aLastSeq);
+		}
+
+		synchronized List<Event> since(long aLastSeq, long anOldestTime) {
+			// Client is ahead: sequence restarted (e.g. server restart)
+			if (aLastSeq > lastSeq || aLastSeq < 0) {
+				return null;
+			}
+
+			// Missed more than the ring holds
+			if (lastSeq - aLastSeq > events.length) {
+				return null;
+			}
+
+			List<Event> result = new ArrayList<Event>((int) (lastSeq - aLastSeq));
+			for (long seq = aLastSeq + 1; seq <= lastSeq; seq++) {
+				int slot = (int) (seq % events.length);
+				if (seqs[slot] != seq || times[slot] < anOldestTime) {
+					return null;
+				}
+				result.add(events[slot].share());
+			}
+			return result;
+		}
+	}
+}
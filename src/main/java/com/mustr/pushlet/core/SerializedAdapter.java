@@ -20,24 +20,31 @@ import java.io.ObjectOutputStream;
 class SerializedAdapter implements ClientAdapter {
 	private ObjectOutputStream out = null;
 	public static final String CONTENT_TYPE = "application/x-java-serialized-object";
-	private HttpServletResponse servletRsp;
+	private PushletResponse pushletRsp;
 
 	/**
 	 * Initialize.
 	 */
 	public SerializedAdapter(HttpServletResponse aServletResponse) {
-		servletRsp = aServletResponse;
+		this(new ServletPushletResponse(aServletResponse));
+	}
+
+	/**
+	 * Initialize.
+	 */
+	public SerializedAdapter(PushletResponse aPushletResponse) {
+		pushletRsp = aPushletResponse;
 	}
 
 	public void start() throws IOException {
 
-		servletRsp.setContentType(CONTENT_TYPE);
+		pushletRsp.setContentType(CONTENT_TYPE);
 
 		// Use a serialized object output stream
-		out = new ObjectOutputStream(servletRsp.getOutputStream());
+		out = new ObjectOutputStream(pushletRsp.getOutputStream());
 
 		// Don't need this further
-		servletRsp = null;
+		pushletRsp = null;
 	}
 
 	/**
@@ -0,0 +1,26 @@
+package com.mustr.pushlet.core;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * PushletRequest backed by a servlet request.
+ */
+class ServletPushletRequest implements PushletRequest {
+	private final HttpServletRequest servletReq;
+
+	ServletPushletRequest(HttpServletRequest aServletRequest) {
+		servletReq = aServletRequest;
+	}
+
+	public String getRequestURI() {
+		return servletReq.getRequestURI();
+	}
+
+	public String getRemoteAddr() {
+		return servletReq.getRemoteAddr();
+	}
+
+	public String getHeader(String aName) {
+		return servletReq.getHeader(aName);
+	}
+}
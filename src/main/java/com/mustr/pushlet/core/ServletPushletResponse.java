@@ -0,0 +1,64 @@
+package com.mustr.pushlet.core;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * PushletResponse backed by a servlet response.
+ */
+class ServletPushletResponse implements PushletResponse {
+	private final HttpServletResponse servletRsp;
+
+	ServletPushletResponse(HttpServletResponse aServletResponse) {
+		servletRsp = aServletResponse;
+	}
+
+	public void setStatus(int aStatus) {
+		servletRsp.setStatus(aStatus);
+	}
+
+	public void setContentType(String aContentType) {
+		servletRsp.setContentType(aContentType);
+	}
+
+	public void setHeader(String aName, String aValue) {
+		servletRsp.setHeader(aName, aValue);
+	}
+
+	public void addHeader(String aName, String aValue) {
+		servletRsp.addHeader(aName, aValue);
+	}
+
+	public void setBufferSize(int aSize) {
+		servletRsp.setBufferSize(aSize);
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return servletRsp.getOutputStream();
+	}
+
+	public void write(ByteBuffer... theBuffers) throws IOException {
+		OutputStream out = servletRsp.getOutputStream();
+		for (int i = 0; i < theBuffers.length; i++) {
+			ByteBuffer buffer = theBuffers[i].duplicate();
+			if (buffer.hasArray()) {
+				out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			} else {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				out.write(bytes);
+			}
+		}
+		out.flush();
+
+		// Note: this doesn't seem to have effect
+		// in Tomcat 4/5 if the client already disconnected.
+		servletRsp.flushBuffer();
+	}
+
+	public void flushBuffer() throws IOException {
+		servletRsp.flushBuffer();
+	}
+}
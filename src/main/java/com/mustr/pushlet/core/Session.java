@@ -7,6 +7,8 @@ import java.io.Serializable;
 
 import com.mustr.pushlet.util.Log;
 import com.mustr.pushlet.util.PushletException;
+import com.mustr.pushlet.util.Sys;
+import com.mustr.pushlet.util.TimingWheel;
 
 /**
  * Represents client pushlet session state.
@@ -22,7 +24,12 @@ public class Session implements Protocol, ConfigDefs, Serializable {
 
 	private String userAgent;
 	private long LEASE_TIME_MILLIS = Config.getLongProperty(SESSION_TIMEOUT_MINS) * 60 * 1000;
-	private volatile long timeToLive = LEASE_TIME_MILLIS;
+	private volatile long expiryTime = Sys.now() + LEASE_TIME_MILLIS;
+
+	/**
+	 * Lease slot in the SessionManager timing wheel, set while managed.
+	 */
+	private transient TimingWheel.Timeout lease;
 
 	public static String[] FORCED_PULL_AGENTS = Config.getProperty(LISTEN_FORCE_PULL_AGENTS).split(",");
 
@@ -126,21 +133,39 @@ public class Session implements Protocol, ConfigDefs, Serializable {
 	 * Decrease time to live.
 	 */
 	public void age(long aDeltaMillis) {
-		timeToLive -= aDeltaMillis;
+		expiryTime -= aDeltaMillis;
 	}
 
 	/**
 	 * Has session timed out?
 	 */
 	public boolean isExpired() {
-		return timeToLive <= 0;
+		return getTimeToLive() <= 0;
+	}
+
+	/**
+	 * Remaining lease time.
+	 */
+	public long getTimeToLive() {
+		return expiryTime - Sys.now();
 	}
 
 	/**
 	 * Keep alive by resetting TTL.
 	 */
 	public void kick() {
-		timeToLive = LEASE_TIME_MILLIS;
+		expiryTime = Sys.now() + LEASE_TIME_MILLIS;
+
+		// Move lease to its new slot, O(1)
+		SessionManager.getInstance().renewLease(this);
+	}
+
+	TimingWheel.Timeout getLease() {
+		return lease;
+	}
+
+	void setLease(TimingWheel.Timeout aLease) {
+		lease = aLease;
 	}
 
 	public void start() {
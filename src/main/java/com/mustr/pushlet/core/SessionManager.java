@@ -3,19 +3,25 @@
 
 package com.mustr.pushlet.core;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.mustr.pushlet.cluster.SessionDirectory;
 import com.mustr.pushlet.util.Log;
 import com.mustr.pushlet.util.PushletException;
 import com.mustr.pushlet.util.Rand;
-import com.mustr.pushlet.util.Sys;
+import com.mustr.pushlet.util.TimingWheel;
 
 /**
  * Manages lifecycle of Sessions.
@@ -24,6 +30,10 @@ import com.mustr.pushlet.util.Sys;
  * @version $Id: SessionManager.java,v 1.12 2007/12/04 13:55:53 justb Exp $
  */
 public class SessionManager implements ConfigDefs {
+	/**
+	 * Separates shard index, unique part and node id in node session ids.
+	 */
+	private static final char ID_SEPARATOR = '.';
 
 	/**
 	 * Singleton pattern:  single instance.
@@ -42,28 +52,69 @@ public class SessionManager implements ConfigDefs {
 	}
 
 	/**
-	 * Timer to schedule session leasing TimerTasks.
+	 * Timing wheel holding one lease slot per Session.
+	 */
+	private TimingWheel leaseWheel;
+
+	/**
+	 * Active sessions keyed by their id, split in shards by getShardIndex().
+	 */
+	private Map<String, Session>[] sessions = null;
+
+	/**
+	 * Sequence for session.id.generation=node, starts at start time so ids
+	 * of an earlier run are not repeated.
 	 */
-	private Timer timer;
-	private final long TIMER_INTERVAL_MILLIS = 60000;
+	private final AtomicLong idSequence = new AtomicLong(System.currentTimeMillis() * 1000);
 
 	/**
-	 * Map of active sessions, keyed by their id, all access is through mutex.
+	 * Node id embedded in session ids (session.id.generation=node), else null.
 	 */
-	private Map<String, Session> sessions = null;
+	private String idNodeId;
 
-	
-	private Map<String, Session> getSessionsContainer() {
+	/**
+	 * Sessions saved before a restart, restored when their client returns; null if none.
+	 */
+	private volatile SessionSnapshot snapshot;
+
+	/**
+	 * Snapshot written since start ?
+	 */
+	private boolean snapshotSaved;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Map<String, Session>[] getSessionsContainer() {
 
 		//可以放入redis 或 ehcache..等缓存中，支持集群等...
 		
 		//直接放在内存中
 		if (sessions == null) {
-			sessions = new ConcurrentHashMap<String, Session>();
+			Map<String, Session>[] shards = new Map[Math.max(1, Config.getIntProperty(SESSION_SHARDS, 16))];
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new ConcurrentHashMap<String, Session>();
+			}
+			sessions = shards;
 		}
 		return sessions;
 
 	}
+
+	/**
+	 * Get shard holding the session id.
+	 */
+	private Map<String, Session> getSessionsContainer(String anId) {
+		Map<String, Session>[] shards = getSessionsContainer();
+		return shards[getShardIndex(anId, shards.length)];
+	}
+
+	private List<Session> getSessionList() {
+		List<Session> result = new ArrayList<Session>();
+		Map<String, Session>[] shards = getSessionsContainer();
+		for (int i = 0; i < shards.length; i++) {
+			result.addAll(shards[i].values());
+		}
+		return result;
+	}
 	 
 	/**
 	 * Cache of Sessions for iteration and to allow concurrent modification.
@@ -111,7 +162,7 @@ public class SessionManager implements ConfigDefs {
 				}
 
 				// Refill cache and update state
-				sessionCache = (Session[]) getSessionsContainer().values().toArray(sessionCache);
+				sessionCache = (Session[]) getSessionList().toArray(sessionCache);
 				sessionCacheDirty = false;
 			}
 
@@ -159,21 +210,30 @@ public class SessionManager implements ConfigDefs {
 	 * Get Session by session id.
 	 */
     public Session getSession(String anId) {
-        return getSessionsContainer().get(anId);
+        Session session = getSessionsContainer(anId).get(anId);
+        if (session == null && snapshot != null) {
+            session = restoreSession(anId);
+        }
+        return session;
     }
 
 	/**
 	 * Get copy of listening Sessions.
 	 */
 	public Session[] getSessions() {
-		return getSessionsContainer().values().toArray(new Session[0]);
+		return getSessionList().toArray(new Session[0]);
 	}
 
 	/**
 	 * Get number of listening Sessions.
 	 */
 	public int getSessionCount() {
-		return getSessionsContainer().size();
+		Map<String, Session>[] shards = getSessionsContainer();
+		int count = 0;
+		for (int i = 0; i < shards.length; i++) {
+			count += shards[i].size();
+		}
+		return count;
 	}
 
 	/**
@@ -186,6 +246,7 @@ public class SessionManager implements ConfigDefs {
 		for (int i = 0; i < sessions.length; i++) {
 			statusBuffer.append(sessions[i] + "\\n");
 		}
+		statusBuffer.append(AckMetrics.getInstance() + "\\n");
 		return statusBuffer.toString();
 	}
 
@@ -193,17 +254,28 @@ public class SessionManager implements ConfigDefs {
 	 * Is Session present?.
 	 */
 	public boolean hasSession(String anId) {
-		return getSessionsContainer().containsKey(anId);
+		SessionSnapshot restoring = snapshot;
+		return getSessionsContainer(anId).containsKey(anId) || (restoring != null && restoring.contains(anId));
 	}
 
 	/**
 	 * Add session.
 	 */
 	public void addSession(Session session) {
-	    getSessionsContainer().put(session.getId(), session);
+	    getSessionsContainer(session.getId()).put(session.getId(), session);
 		sessionCacheDirty = true;
+
+		// Start lease, Session.kick() renews it
+		if (session.getLease() == null) {
+			session.setLease(new SessionLease(session));
+		}
+		renewLease(session);
 		
 		//如果是放入第三方缓存中，这里需要重新放入缓存
+		SessionDirectory directory = Dispatcher.getInstance().getSessionDirectory();
+		if (directory != null) {
+			directory.addSession(session.getId());
+		}
 		
 		info(session.getId() + " at " + session.getAddress() + " added ");
 	}
@@ -212,10 +284,16 @@ public class SessionManager implements ConfigDefs {
 	 * Register session for removal.
 	 */
 	public Session removeSession(Session aSession) {
-        Session session = getSessionsContainer().remove(aSession.getId());
+        Session session = getSessionsContainer(aSession.getId()).remove(aSession.getId());
         UserSessionManager.getInstance().clearUserSessionId(aSession.getId());
+        cancelLease(aSession);
         if (session != null) {
             info(session.getId() + " at " + session.getAddress() + " removed ");
+
+            SessionDirectory directory = Dispatcher.getInstance().getSessionDirectory();
+            if (directory != null) {
+                directory.removeSession(session.getId());
+            }
         }
         sessionCacheDirty = true;
         
@@ -225,37 +303,244 @@ public class SessionManager implements ConfigDefs {
 	}
 
 
+	/**
+	 * Move Session lease to the slot for its current expiry time, O(1).
+	 */
+	public void renewLease(Session aSession) {
+		TimingWheel wheel = leaseWheel;
+		TimingWheel.Timeout lease = aSession.getLease();
+		if (wheel == null || lease == null) {
+			// Not started or Session not (yet) added
+			return;
+		}
+		wheel.schedule(lease, aSession.getTimeToLive());
+	}
+
+	/**
+	 * Remove Session lease from the timing wheel.
+	 */
+	protected void cancelLease(Session aSession) {
+		TimingWheel wheel = leaseWheel;
+		TimingWheel.Timeout lease = aSession.getLease();
+		aSession.setLease(null);
+		if (wheel != null && lease != null) {
+			wheel.cancel(lease);
+		}
+	}
+
 	/**
 	 * Starts us.
 	 */
 	public void start() throws PushletException {
-		if (timer != null) {
+		if (leaseWheel != null) {
 			stop();
 		}
-		timer = new Timer(false);
-		timer.schedule(new AgingTimerTask(), TIMER_INTERVAL_MILLIS, TIMER_INTERVAL_MILLIS);
-		info("started; interval=" + TIMER_INTERVAL_MILLIS + "ms");
+
+		// Wheel should span one lease period to avoid revisiting slots
+		long tickMillis = Config.getLongProperty(SESSION_LEASE_TICK_MILLIS, 1000);
+		long leaseMillis = Config.getLongProperty(SESSION_TIMEOUT_MINS) * 60 * 1000;
+		int wheelSize = (int) Math.min(leaseMillis / tickMillis + 1, 4096);
+
+		leaseWheel = new TimingWheel("SessionLease", tickMillis, wheelSize);
+		leaseWheel.start();
+
+		if (Config.getProperty(SESSION_ID_GENERATION, "").equals(SESSION_ID_GENERATION_NODE)) {
+			idNodeId = Config.getProperty(CLUSTER_NODE_ID, "").trim();
+			if (idNodeId.length() == 0) {
+				throw new PushletException(SESSION_ID_GENERATION + "=" + SESSION_ID_GENERATION_NODE + " requires " + CLUSTER_NODE_ID);
+			}
+		}
+		loadSnapshot();
+		deleteSpills();
+		info("started; lease tick=" + tickMillis + "ms");
 	}
 
 	/**
 	 * Stopis us.
 	 */
 	public void stop() {
-		if (timer != null) {
-			timer.cancel();
-			timer = null;
+		saveSnapshot();
+		if (leaseWheel != null) {
+			leaseWheel.stop();
+			leaseWheel = null;
+		}
+		Map<String, Session>[] shards = getSessionsContainer();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].clear();
 		}
-		sessions.clear();
 		
 		//如果是放入第三方缓存中，这里需要清除缓存
 		
+		if (AckMetrics.getInstance().getSent() > 0) {
+			info(AckMetrics.getInstance().toString());
+		}
 		info("stopped");
 	}
 
+	/**
+	 * Save Sessions for a warm restart (session.snapshot.file), see SessionSnapshot.
+	 * <p/>
+	 * Call before the Dispatcher stops: it aborts all Subscribers and drops
+	 * the replay positions. Only the first call after start() writes.
+	 */
+	public void saveSnapshot() {
+		String fileName = Config.getProperty(SESSION_SNAPSHOT_FILE, "").trim();
+		synchronized (mutex) {
+			if (fileName.length() == 0 || snapshotSaved) {
+				return;
+			}
+			snapshotSaved = true;
+		}
+
+		long startTime = System.nanoTime();
+		try {
+			int count = SessionSnapshot.write(new File(fileName), getSessions(), Dispatcher.getInstance().getReplayPositions());
+			info("saved " + count + " sessions to " + fileName + " in " + (System.nanoTime() - startTime) / 1000 + "us");
+		} catch (IOException e) {
+			warn("cannot save sessions to " + fileName + ": " + e);
+		}
+	}
+
+	/**
+	 * Sessions saved for a restart since start ?
+	 */
+	public boolean isSnapshotSaved() {
+		synchronized (mutex) {
+			return snapshotSaved;
+		}
+	}
+
+	/**
+	 * Replay positions saved before a restart, numbering continues after them.
+	 */
+	public Map<String, Long> getSavedReplayPositions() {
+		SessionSnapshot restoring = snapshot;
+		return restoring == null ? Collections.<String, Long>emptyMap() : restoring.getReplayPositions();
+	}
+
+	/**
+	 * Read Sessions saved before a restart; the file is deleted so a crash
+	 * later on does not restore them twice.
+	 */
+	private void loadSnapshot() {
+		snapshot = null;
+		snapshotSaved = false;
+		String fileName = Config.getProperty(SESSION_SNAPSHOT_FILE, "").trim();
+		File file = new File(fileName);
+		if (fileName.length() == 0 || !file.exists()) {
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		try {
+			SessionSnapshot loaded = SessionSnapshot.read(file);
+			if (loaded.isExpired()) {
+				info("sessions in " + fileName + " expired, not restoring");
+			} else {
+				snapshot = loaded;
+				info("loaded " + loaded.getSize() + " sessions from " + fileName + " in " + (System.nanoTime() - startTime) / 1000 + "us");
+			}
+		} catch (IOException e) {
+			warn("cannot load sessions from " + fileName + ": " + e);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Create Session saved before a restart when its client returns.
+	 */
+	private Session restoreSession(String anId) {
+		SessionSnapshot restoring = snapshot;
+		if (restoring == null || !restoring.contains(anId)) {
+			return null;
+		}
+		if (restoring.isExpired()) {
+			info(restoring.getSize() + " saved sessions expired, not restoring");
+			snapshot = null;
+			return null;
+		}
+
+		synchronized (restoring) {
+			// Restored by a concurrent request meanwhile ?
+			Session session = getSessionsContainer(anId).get(anId);
+			if (session != null) {
+				return session;
+			}
+			try {
+				return restoring.restore(anId);
+			} catch (Throwable t) {
+				warn("cannot restore session " + anId + ": " + t);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Delete spill files of sessions from before a restart, except those of
+	 * saved sessions which continue with them when restored.
+	 */
+	private void deleteSpills() {
+		String dir = Config.getProperty(QUEUE_SPILL_DIR, "").trim();
+		if (dir.length() == 0) {
+			return;
+		}
+		File[] files = new File(dir).listFiles(new FilenameFilter() {
+			public boolean accept(File aDir, String aName) {
+				return aName.endsWith(".spill");
+			}
+		});
+		SessionSnapshot restoring = snapshot;
+		for (int i = 0; files != null && i < files.length; i++) {
+			String id = files[i].getName().substring(0, files[i].getName().length() - ".spill".length());
+			if (restoring == null || !restoring.contains(id)) {
+				files[i].delete();
+			}
+		}
+	}
+
+	/**
+	 * Get node id embedded in a session id (session.id.generation=node).
+	 *
+	 * @return node id or null if the id has none
+	 */
+	public String getNodeId(String aSessionId) {
+		int first = aSessionId.indexOf(ID_SEPARATOR);
+		int second = first < 0 ? -1 : aSessionId.indexOf(ID_SEPARATOR, first + 1);
+		if (second < 0 || second == aSessionId.length() - 1) {
+			return null;
+		}
+		return aSessionId.substring(second + 1);
+	}
+
+	/**
+	 * Get shard of session id: embedded shard index or else id hash.
+	 */
+	protected int getShardIndex(String aSessionId, int aShardCount) {
+		int separator = aSessionId.indexOf(ID_SEPARATOR);
+		if (separator > 0) {
+			try {
+				// Client supplied ids may carry a negative prefix
+				return Math.floorMod(Integer.parseInt(aSessionId.substring(0, separator), Character.MAX_RADIX), aShardCount);
+			} catch (NumberFormatException e) {
+				// Not generated by us, hash it
+			}
+		}
+		return (aSessionId.hashCode() & 0x7fffffff) % aShardCount;
+	}
+
 	/**
 	 * Create unique Session id.
 	 */
     protected String createSessionId() {
+        // Unique by node and sequence, no need to check for existing ids
+        if (idNodeId != null) {
+            long sequence = idSequence.incrementAndGet();
+            int shard = (int) (sequence % getSessionsContainer().length);
+            return Integer.toString(shard, Character.MAX_RADIX) + ID_SEPARATOR
+                    + Long.toString(sequence, Character.MAX_RADIX) + Rand.randomName(Config.getIntProperty(SESSION_ID_SIZE))
+                    + ID_SEPARATOR + idNodeId;
+        }
+
         // Use UUID if specified in config (thanks Uli Romahn)
         if (Config.hasProperty(SESSION_ID_GENERATION)
             && Config.getProperty(SESSION_ID_GENERATION).equals(SESSION_ID_GENERATION_UUID)) {
@@ -297,54 +582,37 @@ public class SessionManager implements ConfigDefs {
 	}
 
 	/**
-	 * Manages Session timeouts.
+	 * Lease slot of a single Session, expires only when not renewed in time.
 	 */
-	private class AgingTimerTask extends TimerTask {
-		private long lastRun = Sys.now();
-		private long delta;
-		private Method visitMethod;
+	private class SessionLease extends TimingWheel.Timeout {
+		private final Session session;
 
-		public AgingTimerTask() throws PushletException {
-			try {
-				// Setup Visitor Methods for callback from SessionManager
-				Class<?>[] argsClasses = {Session.class};
-				visitMethod = this.getClass().getMethod("visit", argsClasses);
-			} catch (NoSuchMethodException e) {
-				throw new PushletException("Failed to setup AgingTimerTask", e);
-			}
+		SessionLease(Session aSession) {
+			session = aSession;
 		}
 
 		/**
-		 * Clock tick callback from Timer.
+		 * Callback from TimingWheel.
 		 */
-		public void run() {
-			long now = Sys.now();
-			delta = now - lastRun;
-			lastRun = now;
-			debug("AgingTimerTask: tick");
-
-			// Use Visitor pattern to loop through Session objects (see visit() below)
-			getInstance().apply(this, visitMethod, new Object[1]);
-		}
-
-		/**
-		 * Callback from SessionManager during apply()
-		 */
-		public void visit(Session aSession) {
+		protected void expire() {
 			try {
-				// Age the lease
-				aSession.age(delta);
-				debug("AgingTimerTask: visit: " + aSession);
+				// Removed while lease was pending ?
+				if (getSession(session.getId()) != session) {
+					return;
+				}
 
-				// Stop session if lease expired
-				if (aSession.isExpired()) {
-					info("AgingTimerTask: Session expired: " + aSession);
-					aSession.stop();
+				// Renewed (or aged) between scheduling and expiry ?
+				if (!session.isExpired()) {
+					renewLease(session);
+					return;
 				}
+
+				// Stop session if lease expired
+				info("SessionLease: Session expired: " + session);
+				session.stop();
 			} catch (Throwable t) {
-				warn("AgingTimerTask: Error in timer task : " + t);
+				warn("SessionLease: Error in expire : " + t);
 			}
 		}
 	}
 }
-
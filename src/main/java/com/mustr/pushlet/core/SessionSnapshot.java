@@ -0,0 +1,325 @@
+package com.mustr.pushlet.core;
+
+import com.mustr.pushlet.cluster.EventCodec;
+import com.mustr.pushlet.util.PushletException;
+import com.mustr.pushlet.util.Sys;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sessions saved on shutdown for a warm restart, see SessionManager.
+ * <p/>
+ * The file holds a header (magic, version, time saved), the replay positions
+ * (last p_sseq per subject) and per Session a record Event with its id,
+ * format, mode and options, followed by one Event per Subscription with the
+ * fields of a subscribe request, its sid and the positions of its subjects
+ * (p_last), by the Events it has not acknowledged yet and by those not
+ * sent yet (queued or to be replayed). Events are encoded with EventCodec. Spill files of durable Sessions are kept next to
+ * it and opened again on restore.
+ * <p/>
+ * The file is read on start, but a Session is only created again when its
+ * client returns with the old id, see restore(). Records older than the
+ * session lease are dropped.
+ */
+class SessionSnapshot implements Protocol, ConfigDefs {
+	static final int MAGIC = 0x50534E50;
+	static final int VERSION = 3;
+
+	/**
+	 * Session record fields besides protocol fields.
+	 */
+	private static final String F_ADDRESS = "address";
+	private static final String F_USER_AGENT = "agent";
+
+	private final long savedTime;
+	private final Map<String, Long> replayPositions;
+
+	/**
+	 * Session id -> session record and subscription records, guarded by this.
+	 */
+	private final Map<String, Event[]> sessions;
+
+	/**
+	 * Session id -> unacknowledged Events, guarded by this.
+	 */
+	private final Map<String, Event[]> unacked;
+
+	/**
+	 * Session id -> Events not sent yet, guarded by this.
+	 */
+	private final Map<String, Event[]> pending;
+
+	private SessionSnapshot(long aSavedTime, Map<String, Long> theReplayPositions, Map<String, Event[]> theSessions, Map<String, Event[]> theUnacked, Map<String, Event[]> thePending) {
+		savedTime = aSavedTime;
+		replayPositions = theReplayPositions;
+		sessions = theSessions;
+		unacked = theUnacked;
+		pending = thePending;
+	}
+
+	/**
+	 * Write Sessions and replay positions, replacing the file when complete.
+	 *
+	 * @return number of Sessions written
+	 */
+	static int write(File aFile, Session[] theSessions, Map<String, Long> theReplayPositions) throws IOException {
+		File tmpFile = new File(aFile.getPath() + ".tmp");
+		int count = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(Sys.now());
+
+			EventCodec.writeVarInt(out, theReplayPositions.size());
+			for (Map.Entry<String, Long> entry : theReplayPositions.entrySet()) {
+				EventCodec.writeString(out, entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+
+			for (int i = 0; i < theSessions.length; i++) {
+				Subscription[] subscriptions = theSessions[i].getSubscriber().getSubscriptions();
+				out.writeBoolean(true);
+				EventCodec.writeVarInt(out, subscriptions.length);
+				EventCodec.writeEvent(out, toRecord(theSessions[i]));
+				for (int j = 0; j < subscriptions.length; j++) {
+					EventCodec.writeEvent(out, toRecord(subscriptions[j], theReplayPositions));
+				}
+				EventCodec.writeEvents(out, theSessions[i].getSubscriber().getUnacked());
+				EventCodec.writeEvents(out, theSessions[i].getSubscriber().getPending());
+				theSessions[i].getSubscriber().forceSpill();
+				count++;
+			}
+			out.writeBoolean(false);
+		} finally {
+			out.close();
+		}
+
+		if (aFile.exists() && !aFile.delete() || !tmpFile.renameTo(aFile)) {
+			throw new IOException("Cannot rename " + tmpFile + " to " + aFile);
+		}
+		return count;
+	}
+
+	/**
+	 * Read snapshot file.
+	 *
+	 * @throws IOException if unreadable or not a snapshot of this version
+	 */
+	static SessionSnapshot read(File aFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(aFile), 65536));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a session snapshot: " + aFile);
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported session snapshot version " + version);
+			}
+			long savedTime = in.readLong();
+
+			int positionCount = EventCodec.readVarInt(in);
+			Map<String, Long> positions = new HashMap<String, Long>(positionCount * 2);
+			for (int i = 0; i < positionCount; i++) {
+				positions.put(EventCodec.readString(in), in.readLong());
+			}
+
+			Map<String, Event[]> sessions = new HashMap<String, Event[]>();
+			Map<String, Event[]> unacked = new HashMap<String, Event[]>();
+			Map<String, Event[]> pending = new HashMap<String, Event[]>();
+			while (in.readBoolean()) {
+				Event[] records = new Event[EventCodec.readVarInt(in) + 1];
+				for (int i = 0; i < records.length; i++) {
+					records[i] = EventCodec.readEvent(in);
+				}
+				sessions.put(records[0].getField(P_ID), records);
+				Event[] events = EventCodec.readEvents(in);
+				if (events.length > 0) {
+					unacked.put(records[0].getField(P_ID), events);
+				}
+				events = EventCodec.readEvents(in);
+				if (events.length > 0) {
+					pending.put(records[0].getField(P_ID), events);
+				}
+			}
+			return new SessionSnapshot(savedTime, positions, sessions, unacked, pending);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Last p_sseq per subject when saved, numbering continues after them.
+	 */
+	Map<String, Long> getReplayPositions() {
+		return replayPositions;
+	}
+
+	/**
+	 * Is a Session with this id waiting to be restored ?
+	 */
+	synchronized boolean contains(String anId) {
+		return sessions.containsKey(anId);
+	}
+
+	synchronized int getSize() {
+		return sessions.size();
+	}
+
+	/**
+	 * Are the saved Sessions beyond their lease ?
+	 */
+	boolean isExpired() {
+		return Sys.now() - savedTime > Config.getLongProperty(SESSION_TIMEOUT_MINS) * 60 * 1000;
+	}
+
+	/**
+	 * Create saved Session again, with its subscriptions and missed Events
+	 * since the replay positions; it is added to the SessionManager.
+	 *
+	 * @return Session or null if not saved or restored already
+	 */
+	Session restore(String anId) throws PushletException {
+		Event[] records;
+		Event[] unackedEvents;
+		Event[] pendingEvents;
+		synchronized (this) {
+			records = sessions.remove(anId);
+			unackedEvents = unacked.remove(anId);
+			pendingEvents = pending.remove(anId);
+		}
+		if (records == null) {
+			return null;
+		}
+
+		Event record = records[0];
+		Session session = Session.create(anId);
+		session.setFormat(record.getField(P_FORMAT, FORMAT_XML));
+		session.setAddress(record.getField(F_ADDRESS, "unknown"));
+		session.setUserAgent(record.getField(F_USER_AGENT));
+		session.start();
+
+		Subscriber subscriber = session.getSubscriber();
+		subscriber.setDeltaMode("true".equals(record.getField(P_DELTA)));
+		if ("true".equals(record.getField(P_DURABLE))) {
+			subscriber.setDurable(true);
+		}
+		Subscription[] subscriptions = new Subscription[records.length - 1];
+		for (int i = 1; i < records.length; i++) {
+			Subscription subscription = Subscription.create(records[i].getField(P_SUBJECT), records[i].getField(P_SUBSCRIPTION_LABEL));
+			subscription.setId(records[i].getField(P_SUBSCRIPTION_ID));
+			session.getController().setOptions(subscription, records[i]);
+			subscriptions[i - 1] = subscriber.addSubscription(subscription);
+		}
+
+		// Listening before: continue on refresh, or on a new listen
+		String mode = record.getField(P_MODE);
+		if (mode != null) {
+			subscriber.setMode(mode);
+			subscriber.start();
+		}
+
+		// Sent before the restart but not acknowledged: first thing to send
+		if (unackedEvents != null) {
+			subscriber.setUnacked(Arrays.asList(unackedEvents));
+			subscriber.redeliver();
+		}
+
+		// Queued before the restart: sent before anything published since
+		if (pendingEvents != null) {
+			subscriber.addReplay(Arrays.asList(pendingEvents));
+		}
+
+		// Subjects first published since the restart are replayed from the start
+		Map<String, Long> newSubjects = new HashMap<String, Long>();
+		for (String subject : Dispatcher.getInstance().getReplayPositions().keySet()) {
+			newSubjects.put(subject, 0L);
+		}
+		for (int i = 0; i < subscriptions.length; i++) {
+			String positions = records[i + 1].getField(P_LAST_SEQ, "");
+			String newPositions = getPositions(subscriptions[i], newSubjects, replayPositions);
+			if (newPositions.length() > 0) {
+				positions += (positions.length() > 0 ? "," : "") + newPositions;
+			}
+			session.getController().replayMissed(subscriptions[i], positions);
+		}
+		session.info("restored with " + subscriptions.length + " subscriptions");
+		return session;
+	}
+
+	private static Event toRecord(Session aSession) {
+		Subscriber subscriber = aSession.getSubscriber();
+		Event record = new Event(E_JOIN);
+		record.setField(P_ID, aSession.getId());
+		record.setField(P_FORMAT, aSession.getFormat());
+		record.setField(F_ADDRESS, aSession.getAddress());
+		if (aSession.getUserAgent() != null) {
+			record.setField(F_USER_AGENT, aSession.getUserAgent());
+		}
+		if (subscriber.isActive() && subscriber.getMode() != null) {
+			record.setField(P_MODE, subscriber.getMode());
+		}
+		if (subscriber.isDeltaMode()) {
+			record.setField(P_DELTA, "true");
+		}
+		if (subscriber.isDurable()) {
+			record.setField(P_DURABLE, "true");
+		}
+		return record;
+	}
+
+	private static Event toRecord(Subscription aSubscription, Map<String, Long> theReplayPositions) {
+		Event record = new Event(E_SUBSCRIBE);
+		record.setField(P_SUBSCRIPTION_ID, aSubscription.getId());
+		record.setField(P_SUBJECT, aSubscription.getSubject());
+		if (aSubscription.getLabel() != null) {
+			record.setField(P_SUBSCRIPTION_LABEL, aSubscription.getLabel());
+		}
+		if (aSubscription.getFilter() != null) {
+			record.setField(P_FILTER, aSubscription.getFilter().toString());
+		}
+		if (aSubscription.getFields() != null) {
+			record.setField(P_FIELDS, aSubscription.getFields().toString());
+		}
+		if (aSubscription.isConflating()) {
+			record.setField(P_CONFLATE, aSubscription.getConflateKeyField() == null ? "true" : aSubscription.getConflateKeyField());
+		}
+		if (aSubscription.isAcked()) {
+			record.setField(P_ACKED, "true");
+		}
+		if (aSubscription.getMaxRate() > 0) {
+			record.setField(P_RATE, String.valueOf(aSubscription.getMaxRate()));
+		}
+
+		// Same format as p_last of a reconnecting client
+		String positions = getPositions(aSubscription, theReplayPositions, null);
+		if (positions.length() > 0) {
+			record.setField(P_LAST_SEQ, positions);
+		}
+		return record;
+	}
+
+	/**
+	 * Positions of subjects matching the subscription as "subject:seq,...",
+	 * subjects in the exclusions are skipped.
+	 */
+	private static String getPositions(Subscription aSubscription, Map<String, Long> theReplayPositions, Map<String, Long> theExclusions) {
+		StringBuilder positions = new StringBuilder();
+		for (Map.Entry<String, Long> entry : theReplayPositions.entrySet()) {
+			if (aSubscription.matchSubject(entry.getKey()) && (theExclusions == null || !theExclusions.containsKey(entry.getKey()))) {
+				positions.append(positions.length() > 0 ? "," : "").append(entry.getKey()).append(':').append(entry.getValue());
+			}
+		}
+		return positions.toString();
+	}
+}
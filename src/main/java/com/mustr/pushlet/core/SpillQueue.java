@@ -0,0 +1,229 @@
+package com.mustr.pushlet.core;
+
+import com.mustr.pushlet.cluster.EventCodec;
+import com.mustr.pushlet.util.Sys;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Overflow of a durable Subscriber's event queue, in a memory-mapped file.
+ * <p/>
+ * The file starts with a header (magic, read and write position), followed
+ * by records of a 4-byte length, the 8-byte time added and the EventCodec
+ * encoded Event, read in the order added. The file is capped at maxBytes
+ * and the oldest unread Event may not be older than maxAgeMillis: add()
+ * fails beyond either, as a full queue does. Space of read records is
+ * reused by moving the unread ones to the start when the end is reached.
+ * <p/>
+ * Pages are only forced to disk by force(), when sessions are saved for a
+ * restart: open() then continues with the unread Events. Otherwise the
+ * spill only extends the in-memory queue and is deleted with its session.
+ */
+public class SpillQueue {
+	private static final int MAGIC = 0x5053504C;
+	private static final int HEADER_BYTES = 12;
+	private static final int RECORD_HEADER_BYTES = 12;
+
+	private final File file;
+	private final long maxAgeMillis;
+	private final MappedByteBuffer buffer;
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	/**
+	 * Read and write position, number of unread Events.
+	 */
+	private int head;
+	private int tail;
+	private int size;
+
+	public SpillQueue(File aFile, int aMaxBytes, long aMaxAgeMillis) throws IOException {
+		this(aFile, aMaxBytes, aMaxAgeMillis, false);
+	}
+
+	private SpillQueue(File aFile, int aMaxBytes, long aMaxAgeMillis, boolean isReopen) throws IOException {
+		file = aFile;
+		maxAgeMillis = aMaxAgeMillis;
+		RandomAccessFile raf = new RandomAccessFile(aFile, "rw");
+		try {
+			int length = (int) Math.min(raf.length(), Integer.MAX_VALUE);
+			if (!isReopen) {
+				raf.setLength(0);
+			}
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, isReopen ? Math.max(aMaxBytes, length) : aMaxBytes);
+		} finally {
+			raf.close();
+		}
+		head = HEADER_BYTES;
+		tail = HEADER_BYTES;
+		if (isReopen) {
+			recover();
+		}
+		buffer.putInt(0, MAGIC);
+		writePositions();
+	}
+
+	/**
+	 * Open spill file written before a restart, keeping its unread Events;
+	 * a file that is not a complete spill is started empty.
+	 */
+	public static SpillQueue open(File aFile, int aMaxBytes, long aMaxAgeMillis) throws IOException {
+		return new SpillQueue(aFile, aMaxBytes, aMaxAgeMillis, true);
+	}
+
+	/**
+	 * Append Event.
+	 *
+	 * @return false if the spill is full or its oldest Event too old
+	 */
+	public synchronized boolean add(Event anEvent) throws IOException {
+		long now = Sys.now();
+		if (size > 0 && now - buffer.getLong(head + 4) > maxAgeMillis) {
+			return false;
+		}
+
+		bytes.reset();
+		EventCodec.writeEvent(out, anEvent);
+		int length = bytes.size();
+		if (tail + RECORD_HEADER_BYTES + length > buffer.capacity()) {
+			compact();
+			if (tail + RECORD_HEADER_BYTES + length > buffer.capacity()) {
+				return false;
+			}
+		}
+
+		buffer.putInt(tail, length);
+		buffer.putLong(tail + 4, now);
+		ByteBuffer record = buffer.duplicate();
+		record.position(tail + RECORD_HEADER_BYTES);
+		record.put(bytes.toByteArray(), 0, length);
+		tail += RECORD_HEADER_BYTES + length;
+		size++;
+		writePositions();
+		return true;
+	}
+
+	/**
+	 * Remove and return the oldest Events, null if none.
+	 */
+	public synchronized List<Event> take(int aMaxEvents) throws IOException {
+		if (size == 0) {
+			return null;
+		}
+		List<Event> result = new ArrayList<Event>(Math.min(size, aMaxEvents));
+		while (size > 0 && result.size() < aMaxEvents) {
+			int length = buffer.getInt(head);
+			byte[] record = new byte[length];
+			ByteBuffer source = buffer.duplicate();
+			source.position(head + RECORD_HEADER_BYTES);
+			source.get(record);
+			result.add(EventCodec.readEvent(new DataInputStream(new ByteArrayInputStream(record))));
+			head += RECORD_HEADER_BYTES + length;
+			size--;
+		}
+		if (size == 0) {
+			head = HEADER_BYTES;
+			tail = HEADER_BYTES;
+		}
+		writePositions();
+		return result;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Number of unread Events.
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Bytes of unread Events.
+	 */
+	public synchronized int getBytes() {
+		return tail - head;
+	}
+
+	/**
+	 * Write unread Events to disk, to be opened again after a restart.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Drop all Events and delete the file.
+	 */
+	public synchronized void close() {
+		head = HEADER_BYTES;
+		tail = HEADER_BYTES;
+		size = 0;
+		file.delete();
+	}
+
+	/**
+	 * Move unread records to the start of the file.
+	 */
+	private void compact() {
+		if (head == HEADER_BYTES) {
+			return;
+		}
+		ByteBuffer records = buffer.duplicate();
+		records.position(HEADER_BYTES);
+		ByteBuffer unread = records.slice();
+		unread.position(head - HEADER_BYTES);
+		unread.limit(tail - HEADER_BYTES);
+		unread.compact();
+		tail -= head - HEADER_BYTES;
+		head = HEADER_BYTES;
+		writePositions();
+	}
+
+	private void writePositions() {
+		buffer.putInt(4, head);
+		buffer.putInt(8, tail);
+	}
+
+	/**
+	 * Take over positions of a previous run and count its unread records.
+	 */
+	private void recover() {
+		int savedHead = buffer.getInt(4);
+		int savedTail = buffer.getInt(8);
+		if (buffer.getInt(0) != MAGIC || savedHead < HEADER_BYTES || savedHead > savedTail || savedTail > buffer.capacity()) {
+			return;
+		}
+		int count = 0;
+		for (int position = savedHead; position < savedTail; count++) {
+			if (position + RECORD_HEADER_BYTES > savedTail) {
+				return;
+			}
+			int length = buffer.getInt(position);
+			if (length < 0 || length > savedTail - position - RECORD_HEADER_BYTES) {
+				return;
+			}
+			position += RECORD_HEADER_BYTES + length;
+		}
+		head = savedHead;
+		tail = savedTail;
+		size = count;
+	}
+
+	public String toString() {
+		return file.getName() + "[size=" + size + " bytes=" + (tail - head) + "]";
+	}
+}
@@ -0,0 +1,246 @@
+package com.mustr.pushlet.core;
+
+import com.mustr.pushlet.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Compacted state of keyed ("table") subjects.
+ * <p/>
+ * For configured subject prefixes the latest Event per (subject, key field
+ * value) is kept, e.g. one row per instrument under /stocks/aex keyed by
+ * field "symbol". An Event with p_tombstone=true deletes its row.
+ * New subscribers get a Snapshot of all rows followed by live deltas.
+ * <p/>
+ * Config: state.subjects=/stocks/aex:symbol,/fx:pair
+ */
+public class StateStore implements Protocol {
+	private final String[] prefixes;
+	private final String[] keyFields;
+	private final int maxKeys;
+
+	/**
+	 * subject -> (key -> latest Event), sorted for prefix lookups.
+	 */
+	private final ConcurrentSkipListMap<String, Map<String, Event>> tables = new ConcurrentSkipListMap<String, Map<String, Event>>();
+
+	/**
+	 * Construct from "prefix:keyField" definitions.
+	 */
+	public StateStore(String[] theDefinitions, int aMaxKeys) {
+		prefixes = new String[theDefinitions.length];
+		keyFields = new String[theDefinitions.length];
+		for (int i = 0; i < theDefinitions.length; i++) {
+			int colon = theDefinitions[i].lastIndexOf(':');
+			if (colon <= 0 || colon == theDefinitions[i].length() - 1) {
+				throw new IllegalArgumentException("Invalid state subject (expect prefix:keyField): " + theDefinitions[i]);
+			}
+			prefixes[i] = theDefinitions[i].substring(0, colon).trim();
+			keyFields[i] = theDefinitions[i].substring(colon + 1).trim();
+		}
+		maxKeys = aMaxKeys;
+	}
+
+	/**
+	 * Get key field for subject, null if not a state subject.
+	 */
+	public String getKeyField(String aSubject) {
+		if (aSubject == null) {
+			return null;
+		}
+		for (int i = 0; i < prefixes.length; i++) {
+			if (aSubject.startsWith(prefixes[i])) {
+				return keyFields[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Apply published Event to state.
+	 *
+	 * @return true if the Event is keyed state (stored or deleted)
+	 */
+	public boolean update(Event anEvent) {
+		String subject = anEvent.getSubject();
+		String keyField = getKeyField(subject);
+		if (keyField == null) {
+			return false;
+		}
+		String key = anEvent.getField(keyField);
+		if (key == null) {
+			return false;
+		}
+
+		Map<String, Event> table = tables.get(subject);
+		if (isTombstone(anEvent)) {
+			if (table != null) {
+				table.remove(key);
+			}
+			return true;
+		}
+
+		if (table == null) {
+			Map<String, Event> newTable = new ConcurrentHashMap<String, Event>();
+			table = tables.putIfAbsent(subject, newTable);
+			if (table == null) {
+				table = newTable;
+			}
+		}
+		if (table.size() >= maxKeys && !table.containsKey(key)) {
+			Log.warn("StateStore: max keys=" + maxKeys + " reached for subject=" + subject + ", not storing key=" + key);
+			return true;
+		}
+
+		// Own copy: the published event is personalized afterwards
+		table.put(key, (Event) anEvent.clone());
+		return true;
+	}
+
+	/**
+	 * Snapshot of all rows of subjects matching the subscription, null if none.
+	 */
+	public Snapshot snapshot(Subscription aSubscription) {
+		List<String[]> rows = new ArrayList<String[]>();
+		String[] subjects = aSubscription.getPrefixes();
+		for (int i = 0; i < subjects.length; i++) {
+			Map<String, Map<String, Event>> range = tables.subMap(subjects[i], subjects[i] + Character.MAX_VALUE);
+			for (Map.Entry<String, Map<String, Event>> table : range.entrySet()) {
+				if (isCoveredBefore(subjects, i, table.getKey())) {
+					continue;
+				}
+				if (aSubscription.getPatterns() != null && !aSubscription.matchSubject(table.getKey())) {
+					continue;
+				}
+				for (String key : table.getValue().keySet()) {
+					rows.add(new String[]{table.getKey(), key});
+				}
+			}
+		}
+		if (rows.isEmpty() && !isStateSubscription(subjects)) {
+			return null;
+		}
+		return new Snapshot(aSubscription, rows);
+	}
+
+	/**
+	 * Current row or null if deleted.
+	 */
+	public Event get(String aSubject, String aKey) {
+		Map<String, Event> table = tables.get(aSubject);
+		return table == null ? null : table.get(aKey);
+	}
+
+	public List<String> getSubjects() {
+		return new ArrayList<String>(tables.keySet());
+	}
+
+	/**
+	 * Current rows of subject, shared copies.
+	 */
+	public List<Event> getRows(String aSubject) {
+		List<Event> rows = new ArrayList<Event>();
+		Map<String, Event> table = tables.get(aSubject);
+		if (table != null) {
+			for (Event row : table.values()) {
+				rows.add(row.share());
+			}
+		}
+		return rows;
+	}
+
+	public void clear() {
+		tables.clear();
+	}
+
+	public static boolean isTombstone(Event anEvent) {
+		return "true".equals(anEvent.getField(P_TOMBSTONE));
+	}
+
+	/**
+	 * Does any subject overlap a state subject prefix ?
+	 */
+	private boolean isStateSubscription(String[] theSubjects) {
+		for (int i = 0; i < theSubjects.length; i++) {
+			for (int j = 0; j < prefixes.length; j++) {
+				if (theSubjects[i].startsWith(prefixes[j]) || prefixes[j].startsWith(theSubjects[i])) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isCoveredBefore(String[] theSubjects, int anIndex, String aSubject) {
+		for (int i = 0; i < anIndex; i++) {
+			if (aSubject.startsWith(theSubjects[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Cursor over the rows present when the snapshot was taken.
+	 * <p/>
+	 * Only row keys are captured: each row is read when it is sent, so it is
+	 * never older than a delta already delivered and deleted rows are skipped.
+	 * Rows are marked with p_snapshot=true, a snapshot-end event follows the last row.
+	 */
+	public class Snapshot {
+		private final Subscription subscription;
+		private final List<String[]> rows;
+		private int index;
+		private Event next;
+
+		Snapshot(Subscription aSubscription, List<String[]> theRows) {
+			subscription = aSubscription;
+			rows = theRows;
+		}
+
+		public Subscription getSubscription() {
+			return subscription;
+		}
+
+		/**
+		 * Next Event to send, null when done; repeated calls return the same Event.
+		 */
+		public Event peek() {
+			if (next != null || index > rows.size()) {
+				return next;
+			}
+
+			while (index < rows.size()) {
+				String[] subjectKey = rows.get(index++);
+				Event row = get(subjectKey[0], subjectKey[1]);
+				Filter filter = subscription.getFilter();
+				if (row != null && (filter == null || filter.match(row))) {
+					next = subscription.personalize(row);
+					next.setField(P_SNAPSHOT, "true");
+					return next;
+				}
+			}
+
+			// All rows sent
+			index++;
+			next = subscription.personalize(new Event(E_SNAPSHOT_END));
+			next.setField(P_SUBJECT, subscription.getSubject());
+			return next;
+		}
+
+		/**
+		 * Move past the Event returned by peek().
+		 */
+		public void skip() {
+			next = null;
+		}
+
+		public boolean isDone() {
+			return next == null && index > rows.size();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.mustr.pushlet.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared matching structure for subject patterns.
+ * <p/>
+ * A trie on subject segments: a subject is matched by walking its segments,
+ * following both the exact child and the "*" child at each level and
+ * collecting values of trailing-wildcard patterns on the way. Lookup cost
+ * depends on subject depth and the number of distinct wildcard branches,
+ * not on the number of patterns.
+ */
+public class SubjectIndex<T> {
+	private final Node<T> root = new Node<T>();
+	private int size;
+
+	/**
+	 * Add value under pattern.
+	 */
+	public synchronized void add(SubjectPattern aPattern, T aValue) {
+		Node<T> node = root;
+		String[] segments = aPattern.getSegments();
+		for (int i = 0; i < segments.length; i++) {
+			node = node.child(segments[i], true);
+		}
+		if (aPattern.isAnyTail()) {
+			node.tailValues = add(node.tailValues, aValue);
+		} else {
+			node.values = add(node.values, aValue);
+		}
+		size++;
+	}
+
+	/**
+	 * Remove value from pattern, pruning empty branches.
+	 *
+	 * @return true if found
+	 */
+	public synchronized boolean remove(SubjectPattern aPattern, T aValue) {
+		if (remove(root, aPattern, 0, aValue)) {
+			size--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Values of all patterns matching subject, in no particular order.
+	 */
+	public synchronized List<T> match(String aSubject) {
+		List<T> result = new ArrayList<T>();
+		match(root, SubjectPattern.split(aSubject), 0, result);
+		return result;
+	}
+
+	/**
+	 * Number of (pattern, value) entries.
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	private static <T> void match(Node<T> aNode, String[] theSegments, int anIndex, List<T> aResult) {
+		if (aNode.tailValues != null) {
+			aResult.addAll(aNode.tailValues);
+		}
+		if (anIndex == theSegments.length) {
+			if (aNode.values != null) {
+				aResult.addAll(aNode.values);
+			}
+			return;
+		}
+		if (aNode.children != null) {
+			Node<T> child = aNode.children.get(theSegments[anIndex]);
+			if (child != null) {
+				match(child, theSegments, anIndex + 1, aResult);
+			}
+		}
+		if (aNode.anyChild != null) {
+			match(aNode.anyChild, theSegments, anIndex + 1, aResult);
+		}
+	}
+
+	private static <T> boolean remove(Node<T> aNode, SubjectPattern aPattern, int anIndex, T aValue) {
+		String[] segments = aPattern.getSegments();
+		if (anIndex == segments.length) {
+			if (aPattern.isAnyTail()) {
+				if (aNode.tailValues == null || !aNode.tailValues.remove(aValue)) {
+					return false;
+				}
+				if (aNode.tailValues.isEmpty()) {
+					aNode.tailValues = null;
+				}
+			} else {
+				if (aNode.values == null || !aNode.values.remove(aValue)) {
+					return false;
+				}
+				if (aNode.values.isEmpty()) {
+					aNode.values = null;
+				}
+			}
+			return true;
+		}
+
+		Node<T> child = aNode.child(segments[anIndex], false);
+		if (child == null || !remove(child, aPattern, anIndex + 1, aValue)) {
+			return false;
+		}
+		if (child.isEmpty()) {
+			aNode.removeChild(segments[anIndex]);
+		}
+		return true;
+	}
+
+	private static <T> List<T> add(List<T> theValues, T aValue) {
+		List<T> values = theValues != null ? theValues : new ArrayList<T>(2);
+		values.add(aValue);
+		return values;
+	}
+
+	private static class Node<T> {
+		Map<String, Node<T>> children;
+		Node<T> anyChild;
+		List<T> values;
+		List<T> tailValues;
+
+		Node<T> child(String aSegment, boolean create) {
+			if (aSegment.equals(SubjectPattern.ANY_SEGMENT)) {
+				if (anyChild == null && create) {
+					anyChild = new Node<T>();
+				}
+				return anyChild;
+			}
+			Node<T> child = children == null ? null : children.get(aSegment);
+			if (child == null && create) {
+				if (children == null) {
+					children = new HashMap<String, Node<T>>(4);
+				}
+				child = new Node<T>();
+				children.put(aSegment, child);
+			}
+			return child;
+		}
+
+		void removeChild(String aSegment) {
+			if (aSegment.equals(SubjectPattern.ANY_SEGMENT)) {
+				anyChild = null;
+			} else {
+				children.remove(aSegment);
+				if (children.isEmpty()) {
+					children = null;
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return children == null && anyChild == null && values == null && tailValues == null;
+		}
+	}
+}
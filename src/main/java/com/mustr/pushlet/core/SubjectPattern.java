@@ -0,0 +1,118 @@
+package com.mustr.pushlet.core;
+
+/**
+ * Subject pattern with wildcards, used with subject.match.mode=pattern.
+ * <p/>
+ * Subjects are '/'-separated segments. In a pattern a "*" segment matches
+ * exactly one segment and a trailing "#" or "**" segment matches zero or
+ * more segments: "/stocks/&#42;/price" matches "/stocks/aex/price",
+ * "/stocks/#" matches "/stocks" and everything below it. Other segments
+ * must match exactly, so "/stocks/a" no longer matches "/stocks/aex".
+ * <p/>
+ * Patterns are parsed once into segment arrays, see also SubjectIndex.
+ */
+public class SubjectPattern {
+	public static final String SEPARATOR = "/";
+	public static final String ANY_SEGMENT = "*";
+	public static final String ANY_SEGMENTS = "#";
+	public static final String ANY_SEGMENTS_ALT = "**";
+
+	private final String pattern;
+
+	/**
+	 * Segments without a trailing multi-segment wildcard.
+	 */
+	private final String[] segments;
+	private final boolean anyTail;
+
+	private SubjectPattern(String aPattern, String[] theSegments, boolean isAnyTail) {
+		pattern = aPattern;
+		segments = theSegments;
+		anyTail = isAnyTail;
+	}
+
+	/**
+	 * Parse pattern.
+	 *
+	 * @throws IllegalArgumentException if a multi-segment wildcard is not last
+	 */
+	public static SubjectPattern parse(String aPattern) {
+		String[] all = split(aPattern);
+		boolean anyTail = all.length > 0 && isAnySegments(all[all.length - 1]);
+		int count = anyTail ? all.length - 1 : all.length;
+		for (int i = 0; i < count; i++) {
+			if (isAnySegments(all[i])) {
+				throw new IllegalArgumentException("Multi-segment wildcard must be last: " + aPattern);
+			}
+		}
+		String[] segments = new String[count];
+		System.arraycopy(all, 0, segments, 0, count);
+		return new SubjectPattern(aPattern, segments, anyTail);
+	}
+
+	/**
+	 * Split subject into segments, ignoring a leading separator.
+	 */
+	public static String[] split(String aSubject) {
+		String subject = aSubject.startsWith(SEPARATOR) ? aSubject.substring(1) : aSubject;
+		if (subject.length() == 0) {
+			return new String[0];
+		}
+		return subject.split(SEPARATOR, -1);
+	}
+
+	public static boolean isAnySegments(String aSegment) {
+		return aSegment.equals(ANY_SEGMENTS) || aSegment.equals(ANY_SEGMENTS_ALT);
+	}
+
+	/**
+	 * Does subject match ?
+	 */
+	public boolean match(String aSubject) {
+		return match(split(aSubject));
+	}
+
+	/**
+	 * Does subject, split into segments, match ?
+	 */
+	public boolean match(String[] theSegments) {
+		if (theSegments.length < segments.length || (!anyTail && theSegments.length != segments.length)) {
+			return false;
+		}
+		for (int i = 0; i < segments.length; i++) {
+			if (!segments[i].equals(ANY_SEGMENT) && !segments[i].equals(theSegments[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Segments before the trailing multi-segment wildcard, if any.
+	 */
+	public String[] getSegments() {
+		return segments;
+	}
+
+	public boolean isAnyTail() {
+		return anyTail;
+	}
+
+	/**
+	 * Longest literal subject prefix of all matching subjects, for range lookups.
+	 */
+	public String getLiteralPrefix() {
+		StringBuilder prefix = new StringBuilder(pattern.length());
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i].equals(ANY_SEGMENT)) {
+				break;
+			}
+			prefix.append(SEPARATOR).append(segments[i]);
+		}
+		return prefix.toString();
+	}
+
+	public String toString() {
+		return pattern;
+	}
+}
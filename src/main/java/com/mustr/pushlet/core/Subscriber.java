@@ -7,7 +7,17 @@ import com.mustr.pushlet.util.PushletException;
 import com.mustr.pushlet.util.Rand;
 import com.mustr.pushlet.util.Sys;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -20,6 +30,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Subscriber implements Protocol, ConfigDefs, Serializable {
     private static final long serialVersionUID = -2236781601053413059L;
 
+	/**
+	 * Max spilled Events sent per fetch round.
+	 */
+	private static final int SPILL_BATCH = 256;
+
     private Session session;
 
 	/**
@@ -27,6 +42,11 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	 */
 	private EventQueue eventQueue = new EventQueue(Config.getIntProperty(QUEUE_SIZE));
 
+	/**
+	 * High-priority lane, drained before the event queue.
+	 */
+	private EventQueue urgentQueue = new EventQueue(Config.getIntProperty(QUEUE_URGENT_SIZE, 8));
+
 	/**
 	 * URL to be used in refresh requests in pull/poll modes.
 	 */
@@ -50,6 +70,44 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	 */
 	private String mode;
 
+	/**
+	 * Wakes up event-driven data channels, see AsyncDataChannel.
+	 */
+	private transient volatile Runnable dataListener;
+
+	/**
+	 * State snapshots still to be sent, guarded by this.
+	 */
+	private transient LinkedList<StateStore.Snapshot> snapshots;
+
+	/**
+	 * Missed Events to send before anything queued, guarded by this.
+	 */
+	private transient volatile List<Event> replay;
+
+	/**
+	 * Send data events as deltas, see toDelta().
+	 */
+	private volatile boolean deltaMode;
+
+	/**
+	 * Last sent data fields per subject in delta mode, guarded by this.
+	 */
+	private transient Map<String, Map<String, String>> deltaFields;
+
+	/**
+	 * Durable mode: overflow of the event queue, null if not durable.
+	 */
+	private transient volatile SpillQueue spillQueue;
+
+	/**
+	 * Acknowledged delivery: sent Events of acked subscriptions in p_aseq
+	 * order until acknowledged, guarded by this.
+	 */
+	private transient ArrayDeque<Unacked> unacked;
+	private transient long ackSeq;
+	private int ackWindowSize = Config.getIntProperty(ACK_WINDOW_SIZE, 1000);
+
 
 	/**
 	 * Protected constructor as we create through factory method.
@@ -83,6 +141,17 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	public void stop() {
 		removeSubscriptions();
 		active = false;
+		synchronized (this) {
+			snapshots = null;
+			replay = null;
+			unacked = null;
+
+			// Saved for a restart: the restored session continues with the spill
+			if (SessionManager.getInstance().isSnapshotSaved()) {
+				spillQueue = null;
+			}
+		}
+		setDurable(false);
 	}
 
 	public void bailout() {
@@ -122,10 +191,18 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	 * Add a subscription.
 	 */
 	public Subscription addSubscription(String aSubject, String aLabel) throws PushletException {
-		Subscription subscription = Subscription.create(aSubject, aLabel);
-		subscriptions.put(subscription.getId(), subscription);
-		info("Subscription added subject=" + aSubject + " sid=" + subscription.getId() + " label=" + aLabel);
-		return subscription;
+		return addSubscription(Subscription.create(aSubject, aLabel));
+	}
+
+	/**
+	 * Add a subscription with its options set, Events are matched from now on.
+	 */
+	public Subscription addSubscription(Subscription aSubscription) {
+		aSubscription.setSubscriber(this);
+		subscriptions.put(aSubscription.getId(), aSubscription);
+		Dispatcher.getInstance().addSubscription(aSubscription);
+		info("Subscription added subject=" + aSubscription.getSubject() + " sid=" + aSubscription.getId() + " label=" + aSubscription.getLabel());
+		return aSubscription;
 	}
 
 	/**
@@ -137,6 +214,7 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 			warn("No subscription found sid=" + aSubscriptionId);
 			return null;
 		}
+		release(subscription);
 		info("Subscription removed subject=" + subscription.getSubject() + " sid=" + subscription.getId() + " label=" + subscription.getLabel());
 		return subscription;
 	}
@@ -145,6 +223,9 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	 * Remove all subscriptions.
 	 */
 	public void removeSubscriptions() {
+		for (Subscription subscription : subscriptions.values()) {
+			release(subscription);
+		}
 		subscriptions.clear();
 	}
 
@@ -152,6 +233,68 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 		return mode;
 	}
 
+	/**
+	 * Enable/disable delta mode, (re)starting with full events.
+	 */
+	public synchronized void setDeltaMode(boolean aDeltaMode) {
+		deltaMode = aDeltaMode;
+		deltaFields = null;
+	}
+
+	/**
+	 * Durable mode: when the event queue is full Events are spilled to disk
+	 * instead of bailing out, see SpillQueue. Spilled Events are kept when
+	 * durable mode is set again on a later listen, and across a restart when
+	 * the session is saved, see SessionSnapshot.
+	 */
+	public synchronized void setDurable(boolean aDurable) {
+		if (aDurable && spillQueue == null) {
+			String dir = Config.getProperty(QUEUE_SPILL_DIR, "").trim();
+			if (dir.length() == 0) {
+				warn("durable mode requested but no " + QUEUE_SPILL_DIR + " configured");
+				return;
+			}
+			try {
+				new File(dir).mkdirs();
+				File file = new File(dir, session.getId() + ".spill");
+				int maxBytes = Config.getIntProperty(QUEUE_SPILL_MAX_BYTES, 64 * 1024 * 1024);
+				long maxAgeMillis = Config.getLongProperty(QUEUE_SPILL_MAX_AGE_MILLIS, 600000);
+
+				// Left by this session before a restart: continue with it
+				if (file.exists()) {
+					spillQueue = SpillQueue.open(file, maxBytes, maxAgeMillis);
+					info("durable, reopened spill " + spillQueue);
+				} else {
+					spillQueue = new SpillQueue(file, maxBytes, maxAgeMillis);
+					info("durable, spill " + spillQueue);
+				}
+			} catch (IOException e) {
+				warn("cannot create spill file in " + dir + ": " + e);
+			}
+		} else if (!aDurable && spillQueue != null) {
+			spillQueue.close();
+			spillQueue = null;
+		}
+	}
+
+	public boolean isDurable() {
+		return spillQueue != null;
+	}
+
+	/**
+	 * Write spilled Events to disk before the session is saved.
+	 */
+	void forceSpill() {
+		SpillQueue spill = spillQueue;
+		if (spill != null) {
+			spill.force();
+		}
+	}
+
+	public boolean isDeltaMode() {
+		return deltaMode;
+	}
+
 	public void setMode(String aMode) {
 		mode = aMode;
 	}
@@ -172,8 +315,29 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	 * Get events from queue and push to client.
 	 */
 	public void fetchEvents(Command aCommand) throws PushletException {
+		if (!startFetch(aCommand)) {
+			return;
+		}
 
-		String refreshURL = aCommand.httpReq.getRequestURI() + "?" + P_ID + "=" + session.getId() + "&" + P_EVENT + "=" + E_REFRESH;
+		// Event-driven transports continue from their own callbacks
+		if (aCommand.pushletRsp instanceof AsyncDataChannel) {
+			((AsyncDataChannel) aCommand.pushletRsp).startAsync(this, aCommand);
+			return;
+		}
+
+		// Main loop: as long as connected, get events and push to client
+		while (fetchNext(aCommand, queueReadTimeoutMillis)) {
+		}
+	}
+
+	/**
+	 * Start data channel: send response headers and response event.
+	 *
+	 * @return true if events should follow, false if this round is done
+	 */
+	public boolean startFetch(Command aCommand) throws PushletException {
+
+		aCommand.refreshURL = aCommand.pushletReq.getRequestURI() + "?" + P_ID + "=" + session.getId() + "&" + P_EVENT + "=" + E_REFRESH;
 
 		// This is the only thing required to support "poll" mode
 		if (mode.equals(MODE_POLL)) {
@@ -182,7 +346,7 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 		}
 
 		// Required for fast bailout (tomcat)
-		aCommand.httpRsp.setBufferSize(128);
+		aCommand.pushletRsp.setBufferSize(128);
 
 		// Try to prevent caching in any form.
 		aCommand.sendResponseHeaders();
@@ -202,91 +366,505 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 			// This is usually when loading the browser app for the first time
 			if ((mode.equals(MODE_POLL) || mode.equals(MODE_PULL))
 					&& responseEvent.getEventType().endsWith(Protocol.E_LISTEN_ACK)) {
-				sendRefresh(clientAdapter, refreshURL);
+				sendRefresh(clientAdapter, aCommand.refreshURL);
 
 				// We should come back later with refresh event...
-				return;
+				return false;
 			}
 		} catch (Throwable t) {
 			bailout();
-			return;
+			return false;
 		}
+		return true;
+	}
 
+	/**
+	 * Push next events to client, waiting at most maxWaitMillis for events.
+	 * <p/>
+	 * Sends a heartbeat when no events arrive within that time.
+	 *
+	 * @return true if the data channel stays open (stream mode)
+	 */
+	public boolean fetchNext(Command aCommand, long aMaxWaitMillis) throws PushletException {
+		if (!isActive()) {
+			return false;
+		}
 
+		ClientAdapter clientAdapter = aCommand.getClientAdapter();
 		Event[] events = null;
+		List<Event> replayed = takeReplay();
+
+		// Full ack window: only send what was pushed back and urgent events,
+		// others wait in the bounded queue until acknowledged
+		boolean isHeldBack = isAckWindowFull();
+
+		// Spilled events are older than anything queued
+		List<Event> spilled = isHeldBack ? null : takeSpilled();
+		if (spilled != null) {
+			if (replayed == null) {
+				replayed = spilled;
+			} else {
+				replayed.addAll(spilled);
+			}
+		}
 
-		// Main loop: as long as connected, get events and push to client
-		long eventSeqNr = 1;
-		while (isActive()) {
-			// Indicate we are still alive
-			lastAlive = Sys.now();
+		// Indicate we are still alive
+		lastAlive = Sys.now();
 
-			// Update session time to live
-			session.kick();
+		// Update session time to live
+		session.kick();
 
-			// Get next events; blocks until timeout or entire contents
-			// of event queue is returned. Note that "poll" mode
-			// will return immediately when queue is empty.
-			try {
-				// Put heartbeat in queue when starting to listen in stream mode
-				// This speeds up the return of *_LISTEN_ACK
-				if (mode.equals(MODE_STREAM) && eventSeqNr == 1) {
-					eventQueue.enQueue(new Event(E_HEARTBEAT));
+		// Get next events; blocks until timeout or entire contents
+		// of event queue is returned. Note that "poll" mode
+		// will return immediately when queue is empty.
+		try {
+			// Put heartbeat in queue when starting to listen in stream mode
+			// This speeds up the return of *_LISTEN_ACK
+			// (not needed if already filled, e.g. by cached values)
+			if (mode.equals(MODE_STREAM) && aCommand.eventSeqNr == 1) {
+				eventQueue.offer(new Event(E_HEARTBEAT));
+			}
+
+			// Next chunk of pending snapshots, as far as the queue has room
+			sendSnapshots();
+
+			// Do not wait when there are replayed or urgent events to send
+			if (!isHeldBack) {
+				events = eventQueue.deQueueAll(replayed == null && urgentQueue.isEmpty() ? aMaxWaitMillis : 0);
+			}
+
+			// Urgent events go first, including those that woke us up;
+			// held back stream mode waits here for them or an ack, see ack()
+			Event[] urgent = urgentQueue.deQueueAll(isHeldBack && mode.equals(MODE_STREAM) ? aMaxWaitMillis : 0);
+			if (urgent != null) {
+				List<Event> first = new ArrayList<Event>();
+				for (int i = 0; i < urgent.length; i++) {
+					first.add(urgent[i]);
+				}
+				if (replayed != null) {
+					first.addAll(replayed);
 				}
+				replayed = first;
+			}
+		} catch (InterruptedException ie) {
+			warn("interrupted");
+			bailout();
+		}
+
+		// Replayed events go first: all queued events are more recent
+		if (replayed != null) {
+			if (events != null) {
+				for (int i = 0; i < events.length; i++) {
+					replayed.add(events[i]);
+				}
+			}
+			events = replayed.toArray(new Event[replayed.size()]);
+		}
+
+		// Send heartbeat when no events received
+		if (events == null) {
+			events = new Event[1];
+			events[0] = new Event(E_HEARTBEAT);
+		}
 
-				events = eventQueue.deQueueAll(queueReadTimeoutMillis);
-			} catch (InterruptedException ie) {
-				warn("interrupted");
+		// ASSERT: one or more events available
+
+		// Send events to client using adapter
+		// debug("received event count=" + events.length);
+		for (int i = 0; i < events.length; i++) {
+			// Check for abort event
+			if (events[i].getEventType().equals(E_ABORT)) {
+				warn("Aborting Subscriber");
 				bailout();
 			}
 
-			// Send heartbeat when no events received
-			if (events == null) {
-				events = new Event[1];
-				events[0] = new Event(E_HEARTBEAT);
+			// Keep Events of acked subscriptions until acknowledged, the rest
+			// is sent after the client acknowledges (on refresh or ack request)
+			if (!track(events[i])) {
+				pushBack(new ArrayList<Event>(Arrays.asList(events).subList(i, events.length)));
+				debug("ack window full (" + ackWindowSize + " unacknowledged), holding back " + (events.length - i) + " events");
+				break;
 			}
 
-			// ASSERT: one or more events available
+			// Push next Event to client
+			try {
+				// Set sequence number
+				events[i].setField(P_SEQ, aCommand.eventSeqNr++);
 
-			// Send events to client using adapter
-			// debug("received event count=" + events.length);
-			for (int i = 0; i < events.length; i++) {
-				// Check for abort event
-				if (events[i].getEventType().equals(E_ABORT)) {
-					warn("Aborting Subscriber");
-					bailout();
+				// Push to client through client adapter
+				clientAdapter.push(deltaMode ? toDelta(events[i]) : events[i]);
+			} catch (Throwable t) {
+				bailout();
+				return false;
+			}
+		}
+
+		// Refill from pending snapshots, wakes up event-driven transports
+		sendSnapshots();
+
+		// Force client refresh request in pull or poll modes
+		if (mode.equals(MODE_PULL) || mode.equals(MODE_POLL)) {
+			sendRefresh(clientAdapter, aCommand.refreshURL);
+
+			// Always leave loop in pull/poll mode
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reduce data event to the fields changed since the previous event sent on
+	 * its subject; the first event per subject is sent in full.
+	 */
+	protected synchronized Event toDelta(Event anEvent) {
+		String subject = anEvent.getSubject();
+		if (!E_DATA.equals(anEvent.getEventType()) || subject == null) {
+			return anEvent;
+		}
+
+		Map<String, String> fields = new HashMap<String, String>();
+		for (Iterator<String> iter = anEvent.getFieldNames(); iter.hasNext();) {
+			String name = iter.next();
+			if (!Event.isProtocolField(name)) {
+				fields.put(name, anEvent.getField(name));
+			}
+		}
+
+		if (deltaFields == null) {
+			final int maxSubjects = Config.getIntProperty(DELTA_MAX_SUBJECTS, 1000);
+			deltaFields = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> anEldest) {
+					return size() > maxSubjects;
 				}
+			};
+		}
+		Map<String, String> previous = deltaFields.put(subject, fields);
+		if (previous == null) {
+			return anEvent;
+		}
 
-				// Push next Event to client
-				try {
-					// Set sequence number
-					events[i].setField(P_SEQ, eventSeqNr++);
+		// Protocol fields and changed data fields
+		Map<String, String> attributes = new HashMap<String, String>();
+		for (Iterator<String> iter = anEvent.getFieldNames(); iter.hasNext();) {
+			String name = iter.next();
+			String value = anEvent.getField(name);
+			if (Event.isProtocolField(name) || value == null || !value.equals(previous.get(name))) {
+				attributes.put(name, value);
+			}
+		}
+		attributes.put(P_DELTA, "true");
 
-					// Push to client through client adapter
-					clientAdapter.push(events[i]);
-				} catch (Throwable t) {
-					bailout();
-					return;
+		StringBuilder removed = new StringBuilder();
+		for (String name : previous.keySet()) {
+			if (!fields.containsKey(name)) {
+				removed.append(removed.length() > 0 ? "," : "").append(name);
+			}
+		}
+		if (removed.length() > 0) {
+			attributes.put(P_REMOVED, removed.toString());
+		}
+		return new Event(attributes);
+	}
+
+	/**
+	 * Send state snapshot to client, rows are queued as the event queue drains.
+	 */
+	public void addSnapshot(StateStore.Snapshot aSnapshot) {
+		synchronized (this) {
+			if (snapshots == null) {
+				snapshots = new LinkedList<StateStore.Snapshot>();
+			}
+			snapshots.add(aSnapshot);
+		}
+		sendSnapshots();
+	}
+
+	/**
+	 * Send missed Events (see ReplayStore) ahead of all queued Events.
+	 */
+	public void addReplay(List<Event> theEvents) {
+		addReplay(theEvents, false);
+	}
+
+	/**
+	 * Send Events ahead of all queued Events, optionally also ahead of
+	 * Events still to be replayed.
+	 */
+	private void addReplay(List<Event> theEvents, boolean isFirst) {
+		if (theEvents.isEmpty()) {
+			return;
+		}
+		synchronized (this) {
+			if (replay == null) {
+				replay = new ArrayList<Event>(theEvents.size());
+			}
+			replay.addAll(isFirst ? 0 : replay.size(), theEvents);
+		}
+
+		// Wake up data channel: event-driven or blocked on empty queue
+		notifyDataListener();
+		if (eventQueue.isEmpty()) {
+			eventQueue.offer(new Event(E_HEARTBEAT));
+		}
+	}
+
+	/**
+	 * Number data Event of an acked subscription (p_aseq) and keep it until
+	 * acknowledged; Events sent again already have their number. Urgent
+	 * Events may exceed the ack window up to twice its size.
+	 *
+	 * @return false if the ack window is full
+	 */
+	private synchronized boolean track(Event anEvent) {
+		if (!E_DATA.equals(anEvent.getEventType()) || anEvent.getField(P_ACK_SEQ) != null) {
+			return true;
+		}
+		String subscriptionId = anEvent.getField(P_SUBSCRIPTION_ID);
+		Subscription subscription = subscriptionId == null ? null : subscriptions.get(subscriptionId);
+		if (subscription == null || !subscription.isAcked()) {
+			return true;
+		}
+
+		if (unacked == null) {
+			unacked = new ArrayDeque<Unacked>();
+		}
+		if (unacked.size() >= (anEvent.isUrgent() ? 2 * ackWindowSize : ackWindowSize)) {
+			return false;
+		}
+		anEvent.setField(P_ACK_SEQ, ++ackSeq);
+		unacked.addLast(new Unacked(ackSeq, anEvent.share(), Sys.now()));
+		AckMetrics.getInstance().onSent();
+		return true;
+	}
+
+	private synchronized boolean isAckWindowFull() {
+		return unacked != null && unacked.size() >= ackWindowSize;
+	}
+
+	/**
+	 * Put unsent Events back to be sent first on the next fetch.
+	 */
+	private synchronized void pushBack(List<Event> theEvents) {
+		if (replay == null) {
+			replay = new ArrayList<Event>(theEvents.size());
+		}
+		replay.addAll(0, theEvents);
+	}
+
+	/**
+	 * Cumulative acknowledgement from the client: drop Events up to p_aseq.
+	 *
+	 * @return number of Events acknowledged
+	 */
+	public int ack(long anAckSeq) {
+		long now = Sys.now();
+		int count = 0;
+		boolean wasFull;
+		synchronized (this) {
+			wasFull = isAckWindowFull();
+			while (unacked != null && !unacked.isEmpty() && unacked.peekFirst().seq <= anAckSeq) {
+				AckMetrics.getInstance().onAcked(now - unacked.removeFirst().sentTime);
+				count++;
+			}
+		}
+
+		// Wake up held back stream channel: event-driven or waiting in fetchNext()
+		if (wasFull && count > 0 && MODE_STREAM.equals(mode)) {
+			urgentQueue.offer(new Event(E_HEARTBEAT));
+			notifyDataListener();
+		}
+		return count;
+	}
+
+	/**
+	 * Send unacknowledged Events again ahead of all others, e.g. on a new data
+	 * channel; the client skips those it already has by p_aseq.
+	 */
+	public void redeliver() {
+		List<Event> events;
+		synchronized (this) {
+			if (unacked == null || unacked.isEmpty()) {
+				return;
+			}
+			events = new ArrayList<Event>(unacked.size());
+			for (Unacked entry : unacked) {
+				events.add(entry.event.share());
+			}
+		}
+		AckMetrics.getInstance().onRedelivered(events.size());
+		info("redelivering " + events.size() + " unacknowledged events");
+		addReplay(events, true);
+	}
+
+	/**
+	 * Copies of Events not sent yet, in the order fetchNext() sends them:
+	 * urgent, to be replayed, queued. Spilled Events stay in the spill.
+	 */
+	public List<Event> getPending() {
+		List<Event> events = new ArrayList<Event>();
+		addPending(events, urgentQueue.toArray());
+		synchronized (this) {
+			if (replay != null) {
+				for (int i = 0; i < replay.size(); i++) {
+					events.add(replay.get(i).share());
 				}
 			}
+		}
+		addPending(events, eventQueue.toArray());
+		return events;
+	}
 
-			// Force client refresh request in pull or poll modes
-			if (mode.equals(MODE_PULL) || mode.equals(MODE_POLL)) {
-				sendRefresh(clientAdapter, refreshURL);
+	private static void addPending(List<Event> theEvents, Event[] theQueued) {
+		for (int i = 0; i < theQueued.length; i++) {
+			if (!theQueued[i].getEventType().equals(E_HEARTBEAT) && !theQueued[i].getEventType().equals(E_ABORT)) {
+				theEvents.add(theQueued[i].share());
+			}
+		}
+	}
 
-				// Always leave loop in pull/poll mode
-				break;
+	/**
+	 * Copies of unacknowledged Events, oldest first.
+	 */
+	public synchronized List<Event> getUnacked() {
+		List<Event> events = new ArrayList<Event>(unacked == null ? 0 : unacked.size());
+		if (unacked != null) {
+			for (Unacked entry : unacked) {
+				events.add(entry.event.share());
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Take over unacknowledged Events (with p_aseq) saved before a restart.
+	 */
+	synchronized void setUnacked(List<Event> theEvents) {
+		unacked = new ArrayDeque<Unacked>(theEvents.size());
+		long now = Sys.now();
+		for (int i = 0; i < theEvents.size(); i++) {
+			long seq = Long.parseLong(theEvents.get(i).getField(P_ACK_SEQ));
+			unacked.addLast(new Unacked(seq, theEvents.get(i), now));
+			ackSeq = Math.max(ackSeq, seq);
+		}
+	}
+
+	private synchronized List<Event> takeReplay() {
+		List<Event> result = replay;
+		replay = null;
+		return result;
+	}
+
+	/**
+	 * Next spilled Events, null if none.
+	 */
+	private List<Event> takeSpilled() {
+		SpillQueue spill = spillQueue;
+		if (spill == null) {
+			return null;
+		}
+		try {
+			return spill.take(SPILL_BATCH);
+		} catch (IOException e) {
+			warn("cannot read spill " + spill + ": " + e);
+			bailout();
+			return null;
+		}
+	}
+
+	/**
+	 * Are Events waiting in the spill ? Then nothing may overtake them.
+	 */
+	private boolean isSpilling() {
+		SpillQueue spill = spillQueue;
+		return spill != null && !spill.isEmpty();
+	}
+
+	/**
+	 * Move pending snapshot rows into the event queue until it is full.
+	 */
+	protected void sendSnapshots() {
+		// Rows would overtake older spilled deltas
+		if (isSpilling()) {
+			return;
+		}
+
+		boolean queued = false;
+		synchronized (this) {
+			while (snapshots != null && !snapshots.isEmpty()) {
+				StateStore.Snapshot snapshot = snapshots.getFirst();
+				Event event = snapshot.peek();
+
+				// Done or unsubscribed meanwhile
+				if (event == null || !subscriptions.containsKey(snapshot.getSubscription().getId())) {
+					snapshots.removeFirst();
+					continue;
+				}
+
+				// Continue when the queue drains
+				if (!eventQueue.offer(event)) {
+					break;
+				}
+				snapshot.skip();
+				queued = true;
 			}
 		}
+
+		if (queued) {
+			notifyDataListener();
+		}
+	}
+
+	/**
+	 * Are events waiting to be fetched ?
+	 */
+	public boolean hasEvents() {
+		return !eventQueue.isEmpty() || !urgentQueue.isEmpty() || replay != null || isSpilling();
+	}
+
+	/**
+	 * Is the event queue full (next enqueue would wait) ?
+	 */
+	public boolean isQueueFull() {
+		return eventQueue.isFull();
+	}
+
+	/**
+	 * Max time fetchEvents() waits for events before sending a heartbeat.
+	 */
+	public long getQueueReadTimeoutMillis() {
+		return queueReadTimeoutMillis;
+	}
+
+	/**
+	 * Set callback invoked after each enqueued Event, for event-driven transports.
+	 */
+	public synchronized void setDataListener(Runnable aListener) {
+		dataListener = aListener;
+	}
+
+	/**
+	 * Remove callback if it is still the current one.
+	 */
+	public synchronized void removeDataListener(Runnable aListener) {
+		if (dataListener == aListener) {
+			dataListener = null;
+		}
 	}
 
 	/**
 	 * Determine if we should receive event.
 	 */
 	public Subscription match(Event event) {
+		return match(event, 0);
+	}
+
+	/**
+	 * Determine if we should receive event of a multicast, see Filter.
+	 */
+	public Subscription match(Event event, long aDispatchId) {
 		Subscription[] subscriptions = getSubscriptions();
 		for (int i = 0; i < subscriptions.length; i++) {
-			if (subscriptions[i].match(event)) {
+			if (subscriptions[i].match(event, aDispatchId)) {
 				return subscriptions[i];
 			}
 		}
@@ -297,9 +875,63 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	 * Event from Dispatcher: enqueue it.
 	 */
 	public void onEvent(Event theEvent) {
-		if (!isActive()) {
+		if (theEvent.isUrgent()) {
+			enqueue(theEvent);
 			return;
 		}
+		RateLimiter rateLimiter = getRateLimiter(theEvent);
+		if (rateLimiter != null) {
+			rateLimiter.offer(theEvent);
+			return;
+		}
+		enqueue(theEvent);
+	}
+
+	/**
+	 * Rate limiter of the subscription the data Event was matched for, null if none.
+	 */
+	private RateLimiter getRateLimiter(Event theEvent) {
+		if (!Conflation.isConflatable(theEvent)) {
+			return null;
+		}
+		String subscriptionId = theEvent.getField(P_SUBSCRIPTION_ID);
+		Subscription subscription = subscriptionId == null ? null : subscriptions.get(subscriptionId);
+		if (subscription == null || subscription.getMaxRate() <= 0) {
+			return null;
+		}
+		synchronized (subscription) {
+			if (subscription.getRateLimiter() == null) {
+				subscription.setRateLimiter(new RateLimiter(this, Dispatcher.getInstance().getRateWheel(), subscription.getMaxRate()));
+			}
+			return subscription.getRateLimiter();
+		}
+	}
+
+	/**
+	 * Release shared resources of removed subscription.
+	 */
+	private static void release(Subscription aSubscription) {
+		Dispatcher.getInstance().removeSubscription(aSubscription);
+		synchronized (aSubscription) {
+			if (aSubscription.getRateLimiter() != null) {
+				aSubscription.getRateLimiter().cancel();
+				aSubscription.setRateLimiter(null);
+			}
+		}
+		if (aSubscription.getFilter() != null) {
+			aSubscription.getFilter().release();
+		}
+	}
+
+	/**
+	 * Enqueue Event for sending to client.
+	 *
+	 * @return true if queued, false if not active or dropped
+	 */
+	public boolean enqueue(Event theEvent) {
+		if (!isActive()) {
+			return false;
+		}
 
 		// p("send: queue event: "+theEvent.getSubject());
 
@@ -310,22 +942,116 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 		if (now - lastAlive > refreshTimeoutMillis) {
 			warn("not alive for at least: " + refreshTimeoutMillis + "ms, leaving...");
 			bailout();
-			return;
+			return false;
+		}
+
+		// Urgent lane: never waits behind data events
+		if (theEvent.isUrgent()) {
+			if (!urgentQueue.offer(theEvent)) {
+				warn("urgent queue full, bailing out...");
+				bailout();
+				return false;
+			}
+
+			// Wake up data channel: event-driven or blocked on empty queue
+			notifyDataListener();
+			if (eventQueue.isEmpty()) {
+				eventQueue.offer(new Event(E_HEARTBEAT));
+			}
+			return true;
+		}
+
+		SpillQueue spill = spillQueue;
+		if (spill != null) {
+			return enqueueDurable(theEvent, spill);
 		}
 
 		// Put event in queue; leave if queue full
 		try {
-			if (!eventQueue.enQueue(theEvent, queueWriteTimeoutMillis)) {
+			if (!eventQueue.enQueue(theEvent, getConflationKey(theEvent), queueWriteTimeoutMillis)) {
 				warn("queue full, bailing out...");
 				bailout();
+				return false;
 			}
 
 			// ASSERTION : Event in queue.
 			// see fetchEvents() where Events are dequeued and pushed to the client.
+			notifyDataListener();
+			return true;
+		} catch (InterruptedException ie) {
+			bailout();
+			return false;
+		}
+
+	}
+
+	/**
+	 * Enqueue in durable mode: once the queue is full, it and all Events after
+	 * it go to the spill until fetchNext() has drained it, keeping their order.
+	 */
+	private boolean enqueueDurable(Event theEvent, SpillQueue aSpill) {
+		try {
+			synchronized (aSpill) {
+				if (aSpill.isEmpty() && eventQueue.enQueue(theEvent, getConflationKey(theEvent), queueWriteTimeoutMillis)) {
+					notifyDataListener();
+					return true;
+				}
+
+				// Queued Events are older: they go first
+				if (aSpill.isEmpty()) {
+					Event[] queued = eventQueue.deQueueAll(0);
+					for (int i = 0; queued != null && i < queued.length; i++) {
+						if (!queued[i].getEventType().equals(E_HEARTBEAT)) {
+							aSpill.add(queued[i]);
+						}
+					}
+					info("queue full, spilling to " + aSpill);
+				}
+				if (!aSpill.add(theEvent)) {
+					warn("spill full or too old, bailing out: " + aSpill);
+					bailout();
+					return false;
+				}
+			}
 		} catch (InterruptedException ie) {
 			bailout();
+			return false;
+		} catch (IOException e) {
+			warn("cannot spill, bailing out: " + e);
+			bailout();
+			return false;
+		}
+
+		// Wake up data channel: event-driven or blocked on empty queue
+		notifyDataListener();
+		if (eventQueue.isEmpty()) {
+			eventQueue.offer(new Event(E_HEARTBEAT));
+		}
+		return true;
+	}
+
+	/**
+	 * Key under which a queued Event is replaced by newer ones, null if none.
+	 */
+	protected String getConflationKey(Event theEvent) {
+		if (!Conflation.isConflatable(theEvent)) {
+			return null;
 		}
 
+		// Subscription setting goes before configured subjects
+		String subscriptionId = theEvent.getField(P_SUBSCRIPTION_ID);
+		Subscription subscription = subscriptionId == null ? null : subscriptions.get(subscriptionId);
+		if (subscription != null && subscription.isConflating()) {
+			return Conflation.getKey(theEvent, subscription.getConflateKeyField());
+		}
+		return Dispatcher.getInstance().getConflationKey(theEvent);
+	}
+
+	private void notifyDataListener() {
+		Runnable listener = dataListener;
+		if (listener != null) {
+			listener.run();
+		}
 	}
 
 	/**
@@ -375,5 +1101,20 @@ public class Subscriber implements Protocol, ConfigDefs, Serializable {
 	public String toString() {
 		return session.toString();
 	}
+
+	/**
+	 * Sent Event waiting for acknowledgement.
+	 */
+	private static class Unacked {
+		final long seq;
+		final Event event;
+		final long sentTime;
+
+		Unacked(long aSeq, Event anEvent, long aSentTime) {
+			seq = aSeq;
+			event = anEvent;
+			sentTime = aSentTime;
+		}
+	}
 }
 
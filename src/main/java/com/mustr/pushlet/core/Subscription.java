@@ -24,11 +24,53 @@ public class Subscription implements ConfigDefs, Serializable {
 	private String subject;
 	private String[] subjects;
 
+	/**
+	 * Parsed subjects with subject.match.mode=pattern, null for prefix matching.
+	 */
+	private SubjectPattern[] patterns;
+
+	/**
+	 * Literal prefixes of all matching subjects, for range lookups.
+	 */
+	private String[] prefixes;
+
+	/**
+	 * Owner, set when added to a Subscriber.
+	 */
+	private transient Subscriber subscriber;
+
 	/**
 	 * Optional label, a user supplied token.
 	 */
 	private String label;
 
+	/**
+	 * Conflate queued Events, per subject or per subject and key field.
+	 */
+	private boolean conflate;
+	private String conflateKeyField;
+
+	/**
+	 * Max data Events per second, 0 for no limit.
+	 */
+	private double maxRate;
+	private transient RateLimiter rateLimiter;
+
+	/**
+	 * Acknowledged delivery of data Events, see Subscriber.ack().
+	 */
+	private boolean acked;
+
+	/**
+	 * Optional field predicates, null to match on subject only.
+	 */
+	private transient Filter filter;
+
+	/**
+	 * Fields to send besides protocol fields, null for all.
+	 */
+	private FieldSet fields;
+
 
 	/**
 	 * Protected constructor as we create through factory method.
@@ -75,6 +117,17 @@ public class Subscription implements ConfigDefs, Serializable {
 		// We may subscribe to multiple subjects by separating
 		// them with SUBJECT_SEPARATOR, e.g. "/stocks/aex,/system/memory,..").
 		subscription.subjects = aSubject.split(SUBJECT_SEPARATOR);
+		subscription.prefixes = subscription.subjects;
+
+		// Wildcard patterns instead of legacy "startsWith" matching
+		if (Config.getProperty(SUBJECT_MATCH_MODE, SUBJECT_MATCH_MODE_PREFIX).equals(SUBJECT_MATCH_MODE_PATTERN)) {
+			subscription.patterns = new SubjectPattern[subscription.subjects.length];
+			subscription.prefixes = new String[subscription.subjects.length];
+			for (int i = 0; i < subscription.subjects.length; i++) {
+				subscription.patterns[i] = SubjectPattern.parse(subscription.subjects[i]);
+				subscription.prefixes[i] = subscription.patterns[i].getLiteralPrefix();
+			}
+		}
 
 		subscription.label = aLabel;
 		return subscription;
@@ -85,6 +138,10 @@ public class Subscription implements ConfigDefs, Serializable {
 		return id;
 	}
 
+	void setId(String anId) {
+		id = anId;
+	}
+
 	public String getLabel() {
 		return label;
 	}
@@ -93,17 +150,158 @@ public class Subscription implements ConfigDefs, Serializable {
 		return subject;
 	}
 
+	/**
+	 * Subjects (prefixes or patterns) this subscription matches, do not modify.
+	 */
+	public String[] getSubjects() {
+		return subjects;
+	}
+
+	/**
+	 * Subject patterns, null with legacy prefix matching; do not modify.
+	 */
+	public SubjectPattern[] getPatterns() {
+		return patterns;
+	}
+
+	/**
+	 * Literal prefixes of all subjects this subscription may match, do not
+	 * modify. Candidates still need matchSubject() with patterns.
+	 */
+	public String[] getPrefixes() {
+		return prefixes;
+	}
+
+	Subscriber getSubscriber() {
+		return subscriber;
+	}
+
+	void setSubscriber(Subscriber aSubscriber) {
+		subscriber = aSubscriber;
+	}
+
+	/**
+	 * Let newer Events replace queued ones with same subject, or with same
+	 * subject and key field value if key field not null.
+	 */
+	public void setConflation(boolean aConflate, String aKeyField) {
+		conflate = aConflate;
+		conflateKeyField = aConflate ? aKeyField : null;
+	}
+
+	public boolean isConflating() {
+		return conflate;
+	}
+
+	/**
+	 * Key field for conflation, null to conflate per subject.
+	 */
+	public String getConflateKeyField() {
+		return conflateKeyField;
+	}
+
+	/**
+	 * Limit data Events to at most maxRate per second (latest in each
+	 * window wins), 0 for no limit.
+	 */
+	public void setMaxRate(double aMaxRate) {
+		maxRate = aMaxRate;
+	}
+
+	public double getMaxRate() {
+		return maxRate;
+	}
+
+	/**
+	 * Number data Events (p_aseq) and keep them until the client acknowledges.
+	 */
+	public void setAcked(boolean anAcked) {
+		acked = anAcked;
+	}
+
+	public boolean isAcked() {
+		return acked;
+	}
+
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Also require Events to match filter (null for none).
+	 */
+	public void setFilter(Filter aFilter) {
+		filter = aFilter;
+	}
+
+	public FieldSet getFields() {
+		return fields;
+	}
+
+	/**
+	 * Send only these fields besides protocol fields (null for all).
+	 */
+	public void setFields(FieldSet aFieldSet) {
+		fields = aFieldSet;
+	}
+
+	/**
+	 * Copy of Event to send for this subscription: projected to the
+	 * subscription fields, with subscription id and optional label.
+	 */
+	public Event personalize(Event anEvent) {
+		Event event = fields != null ? anEvent.project(fields) : anEvent.share();
+		event.setField(Protocol.P_SUBSCRIPTION_ID, id);
+		if (label != null) {
+			event.setField(Protocol.P_SUBSCRIPTION_LABEL, label);
+		}
+		return event;
+	}
+
+	RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	void setRateLimiter(RateLimiter aRateLimiter) {
+		rateLimiter = aRateLimiter;
+	}
+
 	/**
 	 * Determine if Event matches subscription.
 	 */
 	public boolean match(Event event) {
-		String eventSubject = event.getSubject();
+		return match(event, 0);
+	}
 
+	/**
+	 * Determine if Event of a multicast matches subscription, see Filter.
+	 */
+	public boolean match(Event event, long aDispatchId) {
+		if (!matchSubject(event.getSubject())) {
+			return false;
+		}
+		return filter == null || filter.match(event, aDispatchId);
+	}
+
+	/**
+	 * Determine if subject matches subscription, regardless of filter.
+	 */
+	public boolean matchSubject(String eventSubject) {
 		// Silly case but check anyway
 		if (eventSubject == null || eventSubject.length() == 0) {
 			return false;
 		}
 
+		if (patterns != null) {
+			String[] segments = SubjectPattern.split(eventSubject);
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].match(segments)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
 		// Test if one of the subjects matches
 		for (int i = 0; i < subjects.length; i++) {
 			if (eventSubject.startsWith(subjects[i])) {
@@ -0,0 +1,67 @@
+package com.mustr.pushlet.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk unicast: which session ids were delivered, forwarded, missing or dropped.
+ * <p/>
+ * Delivered means the Event was queued for the session. Forwarded means the
+ * session lives on another cluster node and the Event was sent there. Missing means no
+ * session with that id exists (left or expired). Dropped means the session
+ * exists but did not accept the Event, e.g. inactive or its queue was full.
+ */
+public class UnicastResult {
+	private final List<String> delivered = new ArrayList<String>();
+	private final List<String> forwarded = new ArrayList<String>(0);
+	private final List<String> missing = new ArrayList<String>(0);
+	private final List<String> dropped = new ArrayList<String>(0);
+
+	public List<String> getDelivered() {
+		return Collections.unmodifiableList(delivered);
+	}
+
+	public List<String> getForwarded() {
+		return Collections.unmodifiableList(forwarded);
+	}
+
+	public List<String> getMissing() {
+		return Collections.unmodifiableList(missing);
+	}
+
+	public List<String> getDropped() {
+		return Collections.unmodifiableList(dropped);
+	}
+
+	public int getDeliveredCount() {
+		return delivered.size();
+	}
+
+	/**
+	 * Were all addressed sessions delivered to ?
+	 */
+	public boolean isComplete() {
+		return missing.isEmpty() && dropped.isEmpty();
+	}
+
+	void addDelivered(String aSessionId) {
+		delivered.add(aSessionId);
+	}
+
+	void addForwarded(String aSessionId) {
+		forwarded.add(aSessionId);
+	}
+
+	void addMissing(String aSessionId) {
+		missing.add(aSessionId);
+	}
+
+	void addDropped(String aSessionId) {
+		dropped.add(aSessionId);
+	}
+
+	public String toString() {
+		return "delivered=" + delivered.size() + " forwarded=" + forwarded.size() + " missing=" + missing.size() + " dropped=" + dropped.size();
+	}
+}
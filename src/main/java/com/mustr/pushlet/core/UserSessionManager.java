@@ -1,12 +1,12 @@
 package com.mustr.pushlet.core;
 
+import com.mustr.pushlet.cluster.SessionDirectory;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
 
@@ -14,19 +14,34 @@ public class UserSessionManager {
 
     private static UserSessionManager instance = new UserSessionManager();
 
-    private Map<String, List<String>> continer;
+    /**
+     * jsessionid -> pushlet session ids of that user.
+     */
+    private Map<String, Set<String>> continer = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Reverse index: pushlet session id -> jsessionid.
+     */
+    private Map<String, String> reverseContiner = new ConcurrentHashMap<String, String>();
 
-	private Map<String, List<String>> getSessionContiner() {
+	private Map<String, Set<String>> getSessionContiner() {
 		//可以放入redis 或 ehcache..等缓存中，支持集群等...
 		
 		//直接放在内存中
 		if (continer == null) {
-			continer = new ConcurrentHashMap<String, List<String>>();
+			continer = new ConcurrentHashMap<String, Set<String>>();
 		}
 		return continer;
 
 	}
 
+	private Map<String, String> getReverseContiner() {
+		if (reverseContiner == null) {
+			reverseContiner = new ConcurrentHashMap<String, String>();
+		}
+		return reverseContiner;
+	}
+
     public static UserSessionManager getInstance() {
         return instance;
     }
@@ -35,40 +50,77 @@ public class UserSessionManager {
         if (jsessionid == null || "".equals(jsessionid) || sessionId == null || "".equals(sessionId)) {
             return;
         }
-        List<String> list = getSessionContiner().get(jsessionid);
-        if (list == null) {
-            list = new Vector<String>();
-            list.add(sessionId);
-            getSessionContiner().put(jsessionid, list);
-        } else {
-            list.add(sessionId);
+
+        // A session belongs to one user only
+        String previous = getReverseContiner().put(sessionId, jsessionid);
+        if (previous != null && !previous.equals(jsessionid)) {
+            removeFromUser(previous, sessionId);
         }
-        
+
+        Map<String, Set<String>> sessionContiner = getSessionContiner();
+        while (true) {
+            Set<String> set = sessionContiner.get(jsessionid);
+            if (set == null) {
+                Set<String> newSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+                set = sessionContiner.putIfAbsent(jsessionid, newSet);
+                if (set == null) {
+                    set = newSet;
+                }
+            }
+            set.add(sessionId);
+
+            // Set may have been dropped as empty concurrently: retry
+            if (sessionContiner.get(jsessionid) == set) {
+                break;
+            }
+        }
+
         //如果是放入第三方缓存，这里需要重新放入缓存
+        SessionDirectory directory = Dispatcher.getInstance().getSessionDirectory();
+        if (directory != null) {
+            directory.addUserSession(sessionId, jsessionid);
+        }
     }
     
     public List<String> getUserSessionIds(String jsessionid) {
-        List<String> list = getSessionContiner().get(jsessionid);
-        if (list != null) {
-            return new ArrayList<String>(list);
+        if (jsessionid == null) {
+            return Collections.emptyList();
+        }
+        Set<String> set = getSessionContiner().get(jsessionid);
+        if (set != null) {
+            return new ArrayList<String>(set);
         }
         return Collections.emptyList();
     }
-    
-    public synchronized void clearUserSessionId(String sessionId) {
-        Map<String, List<String>> sessionContiner = getSessionContiner();
-        Set<Entry<String, List<String>>> entrySet = sessionContiner.entrySet();
-        List<String> value = null;
-        for (Entry<String, List<String>> entry : entrySet) {
-            value = entry.getValue();
-            if (value.contains(sessionId)) {
-                value.remove(sessionId);
-                if (value.size() == 0) {
-                    sessionContiner.remove(entry.getKey());
-                }
-                break;
-            }
+
+    /**
+     * Get jsessionid for pushlet session id, null if not registered.
+     */
+    public String getUserSessionId(String sessionId) {
+        return sessionId == null ? null : getReverseContiner().get(sessionId);
+    }
+
+    public void clearUserSessionId(String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        String jsessionid = getReverseContiner().remove(sessionId);
+        if (jsessionid != null) {
+            removeFromUser(jsessionid, sessionId);
         }
       //如果是放入第三方缓存，这里需要重新放入缓存
     }
+
+    private void removeFromUser(String jsessionid, String sessionId) {
+        Map<String, Set<String>> sessionContiner = getSessionContiner();
+        Set<String> set = sessionContiner.get(jsessionid);
+        if (set == null) {
+            return;
+        }
+        set.remove(sessionId);
+        if (set.isEmpty()) {
+            // Only removes if not replaced; concurrent registers retry
+            sessionContiner.remove(jsessionid, set);
+        }
+    }
 }
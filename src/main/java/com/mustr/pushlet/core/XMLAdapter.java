@@ -5,11 +5,11 @@ package com.mustr.pushlet.core;
 
 import com.mustr.pushlet.util.Log;
 
-//import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * ClientAdapter that sends Events as XML.
@@ -22,24 +22,30 @@ class XMLAdapter implements ClientAdapter {
 	 * Header for strict XML
 	 */
 	// public static final String XML_HEAD = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private String contentType = "text/plain;charset=UTF-8";
-	//private ServletOutputStream out = null;
-    private PrintWriter pw = null;
-	private HttpServletResponse servletRsp;
+	private PushletResponse pushletRsp;
 	private boolean strictXML;
 
 	/**
 	 * Initialize.
 	 */
 	public XMLAdapter(HttpServletResponse aServletResponse) {
-		this(aServletResponse, false);
+		this(new ServletPushletResponse(aServletResponse), false);
 	}
 
 	/**
 	 * Initialize.
 	 */
-	public XMLAdapter(HttpServletResponse aServletResponse, boolean useStrictXML) {
-		servletRsp = aServletResponse;
+	public XMLAdapter(PushletResponse aPushletResponse) {
+		this(aPushletResponse, false);
+	}
+
+	/**
+	 * Initialize.
+	 */
+	public XMLAdapter(PushletResponse aPushletResponse, boolean useStrictXML) {
+		pushletRsp = aPushletResponse;
 
 		// Strict XML implies returning a complete XML document
 		strictXML = useStrictXML;
@@ -54,18 +60,11 @@ class XMLAdapter implements ClientAdapter {
 		// then this is not a complete XML document, but rather
 		// a stream of XML documents where each document is
 		// an Event. In strict XML mode a complete document is returned.
-		servletRsp.setContentType(contentType);
-
-		//out = servletRsp.getOutputStream();
-		 pw = servletRsp.getWriter();
-
-		// Don't need this further
-		servletRsp = null;
+		pushletRsp.setContentType(contentType);
 
 		// Start XML document if strict XML mode
 		if (strictXML) {
-			//out.print("<pushlet>");
-			pw.print("<pushlet>");
+			send("<pushlet>");
 		}
 	}
 
@@ -76,10 +75,7 @@ class XMLAdapter implements ClientAdapter {
 		debug("event=" + anEvent);
 
 		// Send the event as XML to the client and flush.
-		//out.print(anEvent.toXML(strictXML));
-		//out.flush();
-		pw.print(anEvent.toXML(strictXML));
-        pw.flush();
+		send(anEvent.toXML(strictXML));
 	}
 
 	/**
@@ -88,13 +84,14 @@ class XMLAdapter implements ClientAdapter {
 	public void stop() throws IOException {
 		// Close XML document if strict XML mode
 		if (strictXML) {
-		    pw.print("</pushlet>");
-            pw.flush();
-			//out.print("</pushlet>");
-			//out.flush();
+			send("</pushlet>");
 		}
 	}
 
+	private void send(String s) throws IOException {
+		pushletRsp.write(ByteBuffer.wrap(s.getBytes(UTF_8)));
+	}
+
 	private void debug(String s) {
 		Log.debug("[XMLAdapter]" + s);
 	}
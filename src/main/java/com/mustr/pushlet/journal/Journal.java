@@ -0,0 +1,283 @@
+package com.mustr.pushlet.journal;
+
+import com.mustr.pushlet.cluster.EventCodec;
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.core.Protocol;
+import com.mustr.pushlet.util.Log;
+import com.mustr.pushlet.util.Sys;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of published Events on disk.
+ * <p/>
+ * Each Event gets the next offset (0, 1, ...) and is written to the current
+ * memory-mapped Segment; a full segment is closed and a new one started,
+ * named after its first offset. The oldest segments are deleted beyond
+ * maxSegments.
+ * <p/>
+ * append() only puts the Event in a bounded ring (ArrayBlockingQueue) and
+ * never blocks: when the writer falls behind Events are dropped and counted.
+ * A single writer thread drains the ring in batches, encodes with EventCodec
+ * and writes sequentially. Mapped pages are forced to disk after every batch
+ * (fsyncMillis=0), at most every fsyncMillis, or left to the OS (-1).
+ * A restart continues after the last complete record. Events without a
+ * valid P_TIME are stamped with the time written, which is the time indexed.
+ * <p/>
+ * query() finds Events by subject prefix and P_TIME range through the time
+ * and subject indexes of the segments, passing them on one by one.
+ */
+public class Journal implements Runnable {
+	private static final int MAX_BATCH = 1024;
+	private static final long POLL_MILLIS = 100;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final int indexInterval;
+	private final long fsyncMillis;
+	private final int maxSegments;
+	private final ArrayBlockingQueue<Event> queue;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+	private final DataOutputStream out = new DataOutputStream(buffer);
+
+	/**
+	 * Segments, oldest first; the last one is written.
+	 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private Thread thread;
+	private volatile boolean stopped;
+	private long lastForce;
+	private boolean dirty;
+	private long dropped;
+
+	public Journal(File aDir, int aSegmentBytes, int anIndexInterval, long anFsyncMillis, int aMaxSegments, int aQueueSize) {
+		dir = aDir;
+		segmentBytes = aSegmentBytes;
+		indexInterval = anIndexInterval;
+		fsyncMillis = anFsyncMillis;
+		maxSegments = aMaxSegments;
+		queue = new ArrayBlockingQueue<Event>(aQueueSize);
+	}
+
+	/**
+	 * Open existing segments and start the writer thread.
+	 */
+	public void start() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal dir " + dir);
+		}
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File aDir, String aName) {
+				return aName.endsWith(".log");
+			}
+		});
+		Arrays.sort(files);
+		synchronized (segments) {
+			for (int i = 0; i < files.length; i++) {
+				segments.add(Segment.open(files[i], indexInterval));
+			}
+			if (segments.isEmpty()) {
+				segments.add(Segment.create(dir, 0, segmentBytes, indexInterval));
+			}
+			current = segments.get(segments.size() - 1);
+		}
+		Log.info("Journal: dir=" + dir + " segments=" + segments.size() + " nextOffset=" + current.getNextOffset()
+				+ " fsyncMillis=" + fsyncMillis);
+
+		lastForce = Sys.now();
+		thread = new Thread(this, "Journal-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Write what is queued, force to disk and stop the writer thread.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			thread.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.info("Journal: stopped at offset " + getNextOffset() + " dropped=" + dropped);
+	}
+
+	/**
+	 * Queue Event for writing, called on the dispatch path.
+	 *
+	 * @return false if dropped because the writer is behind
+	 */
+	public boolean append(Event anEvent) {
+		if (queue.offer(anEvent)) {
+			return true;
+		}
+		synchronized (this) {
+			if (dropped++ % 1000 == 0) {
+				Log.warn("Journal: queue full, dropped=" + dropped);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read Events from offset on, from the segment holding that offset.
+	 * An offset before the oldest segment reads from its start.
+	 *
+	 * @return offset after the Events read
+	 */
+	public long read(long anOffset, int aMaxEvents, List<Event> theEvents) throws IOException {
+		Segment segment = null;
+		synchronized (segments) {
+			for (int i = segments.size() - 1; i >= 0 && segment == null; i--) {
+				if (segments.get(i).getBaseOffset() <= anOffset) {
+					segment = segments.get(i);
+				}
+			}
+			if (segment == null && !segments.isEmpty()) {
+				segment = segments.get(0);
+			}
+		}
+		return segment == null ? anOffset : segment.read(anOffset, aMaxEvents, theEvents);
+	}
+
+	/**
+	 * Pass Events with subject prefix and P_TIME (seconds) in [from, to] to the
+	 * listener in journal order, until it returns false.
+	 */
+	public void query(String aPrefix, long aFromTime, long aToTime, QueryListener aListener) throws IOException {
+		List<Segment> candidates;
+		synchronized (segments) {
+			candidates = new ArrayList<Segment>(segments);
+		}
+		for (int i = 0; i < candidates.size(); i++) {
+			Segment segment = candidates.get(i);
+			long[] range = segment.getTimeRange();
+			if (range[1] < aFromTime || range[0] > aToTime) {
+				continue;
+			}
+			if (!segment.query(aPrefix, aFromTime, aToTime, aListener)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Offset of the oldest Event still on disk.
+	 */
+	public long getFirstOffset() {
+		synchronized (segments) {
+			return segments.isEmpty() ? 0 : segments.get(0).getBaseOffset();
+		}
+	}
+
+	/**
+	 * Offset the next Event written gets.
+	 */
+	public long getNextOffset() {
+		synchronized (segments) {
+			return segments.isEmpty() ? 0 : segments.get(segments.size() - 1).getNextOffset();
+		}
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public void run() {
+		List<Event> batch = new ArrayList<Event>(MAX_BATCH);
+		long pollMillis = fsyncMillis > 0 ? Math.min(fsyncMillis, POLL_MILLIS) : POLL_MILLIS;
+		while (!stopped || !queue.isEmpty()) {
+			try {
+				Event event = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (event != null) {
+					batch.add(event);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					for (int i = 0; i < batch.size(); i++) {
+						write(batch.get(i));
+					}
+					batch.clear();
+				}
+				if (fsyncMillis == 0 || (fsyncMillis > 0 && Sys.now() - lastForce >= fsyncMillis)) {
+					force();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Throwable t) {
+				Log.error("Journal: write failed, " + batch.size() + " events lost", t);
+				batch.clear();
+			}
+		}
+		force();
+	}
+
+	private void write(Event anEvent) throws IOException {
+		// query() checks P_TIME of the record against the indexed time
+		long time = Segment.getTime(anEvent, -1);
+		if (time < 0) {
+			time = Sys.now() / 1000;
+			anEvent.setField(Protocol.P_TIME, time);
+		}
+
+		buffer.reset();
+		EventCodec.writeEvent(out, anEvent);
+		int length = buffer.size();
+		if (!current.hasRoom(length)) {
+			if (length + Segment.HEADER_BYTES + Segment.RECORD_HEADER_BYTES + 4 > segmentBytes) {
+				Log.warn("Journal: event of " + length + " bytes larger than segment, not written: " + anEvent.getSubject());
+				return;
+			}
+			roll();
+		}
+
+		current.append(buffer.toByteArray(), length, anEvent.getSubject(), time);
+		dirty = true;
+	}
+
+	/**
+	 * Close full segment and start the next one.
+	 */
+	private void roll() throws IOException {
+		force();
+		current.seal();
+		Segment next = Segment.create(dir, current.getNextOffset(), segmentBytes, indexInterval);
+		synchronized (segments) {
+			segments.add(next);
+			current = next;
+			while (maxSegments > 0 && segments.size() > maxSegments) {
+				Segment oldest = segments.remove(0);
+				oldest.delete();
+				Log.info("Journal: deleted " + oldest);
+			}
+		}
+	}
+
+	private void force() {
+		if (dirty) {
+			current.force();
+			dirty = false;
+		}
+		lastForce = Sys.now();
+	}
+
+	/**
+	 * Receives query results.
+	 */
+	public interface QueryListener {
+		/**
+		 * @return false to stop the query
+		 */
+		boolean onEvent(Event anEvent) throws IOException;
+	}
+}
@@ -0,0 +1,535 @@
+package com.mustr.pushlet.journal;
+
+import com.mustr.pushlet.cluster.EventCodec;
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.core.Protocol;
+import com.mustr.pushlet.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped journal file with its sparse offset index.
+ * <p/>
+ * The log file is a header (magic, version, base offset) followed by
+ * records: a 4-byte length, a 4-byte CRC32 and the EventCodec encoded Event.
+ * A zero length marks the end. Every indexInterval bytes an index entry
+ * (record number relative to the base offset, file position, min and max
+ * P_TIME of the block of records up to the next entry) is written to the
+ * mapped .idx file, so a read starts near its offset or time instead of at
+ * the beginning of the segment.
+ * <p/>
+ * The subject index maps each subject to the blocks holding its Events. It
+ * is kept in memory while the segment is written and saved to a .sub file
+ * when the segment is full; without that file it is rebuilt by a scan.
+ * <p/>
+ * Only the Journal writer thread appends; readers see records up to end.
+ */
+class Segment implements Protocol {
+	static final int MAGIC = 0x504A4E4C;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int RECORD_HEADER_BYTES = 8;
+	static final int INDEX_ENTRY_BYTES = 24;
+
+	private final long baseOffset;
+	private final File file;
+	private final File indexFile;
+	private final File subjectFile;
+	private final int indexInterval;
+	private final MappedByteBuffer data;
+	private final MappedByteBuffer index;
+
+	/**
+	 * Write position and number of records, writer thread only.
+	 */
+	private int position;
+	private int count;
+	private int lastIndexed;
+
+	/**
+	 * Position after the last complete record, and its record count, for readers.
+	 */
+	private volatile int end;
+	private volatile int size;
+	private volatile int indexEntries;
+
+	/**
+	 * subject -> blocks (index entries) with its Events, null until loaded.
+	 */
+	private TreeMap<String, BitSet> subjects;
+
+	private Segment(long aBaseOffset, File aDir, int anIndexInterval, MappedByteBuffer aData, MappedByteBuffer anIndex) {
+		baseOffset = aBaseOffset;
+		file = new File(aDir, getName(aBaseOffset) + ".log");
+		indexFile = new File(aDir, getName(aBaseOffset) + ".idx");
+		subjectFile = new File(aDir, getName(aBaseOffset) + ".sub");
+		indexInterval = anIndexInterval;
+		data = aData;
+		index = anIndex;
+	}
+
+	/**
+	 * Create empty segment starting at offset.
+	 */
+	static Segment create(File aDir, long aBaseOffset, int aSegmentBytes, int anIndexInterval) throws IOException {
+		Segment segment = new Segment(aBaseOffset, aDir, anIndexInterval,
+				map(new File(aDir, getName(aBaseOffset) + ".log"), aSegmentBytes),
+				map(new File(aDir, getName(aBaseOffset) + ".idx"), getIndexBytes(aSegmentBytes, anIndexInterval)));
+		segment.data.putInt(0, MAGIC);
+		segment.data.putInt(4, VERSION);
+		segment.data.putLong(8, aBaseOffset);
+		segment.position = HEADER_BYTES;
+		segment.end = HEADER_BYTES;
+		segment.subjects = new TreeMap<String, BitSet>();
+		return segment;
+	}
+
+	/**
+	 * Open existing segment, finding the end after the last complete record.
+	 */
+	static Segment open(File aFile, int anIndexInterval) throws IOException {
+		String name = aFile.getName();
+		long baseOffset = Long.parseLong(name.substring(0, name.indexOf('.')));
+		int length = (int) aFile.length();
+		File dir = aFile.getParentFile();
+		Segment segment = new Segment(baseOffset, dir, anIndexInterval, map(aFile, length),
+				map(new File(dir, getName(baseOffset) + ".idx"), getIndexBytes(length, anIndexInterval)));
+		if (length < HEADER_BYTES || segment.data.getInt(0) != MAGIC || segment.data.getLong(8) != baseOffset) {
+			throw new IOException("Not a journal segment: " + aFile);
+		}
+		segment.recover();
+		return segment;
+	}
+
+	/**
+	 * Scan from the last valid index entry; a torn or corrupt record ends the segment.
+	 */
+	private void recover() {
+		int entries = index.capacity() / INDEX_ENTRY_BYTES;
+		int i = 0;
+		count = 0;
+		position = HEADER_BYTES;
+		for (; i < entries; i++) {
+			int recordPosition = index.getInt(i * INDEX_ENTRY_BYTES + 4);
+			if (recordPosition == 0 || readRecord(recordPosition, null) < 0) {
+				break;
+			}
+			count = index.getInt(i * INDEX_ENTRY_BYTES);
+			position = recordPosition;
+			lastIndexed = recordPosition;
+		}
+
+		// Drop index entries beyond what survived
+		indexEntries = i;
+		byte[] empty = new byte[INDEX_ENTRY_BYTES];
+		for (int j = i; j < entries && index.getInt(j * INDEX_ENTRY_BYTES + 4) != 0; j++) {
+			ByteBuffer entry = index.duplicate();
+			entry.position(j * INDEX_ENTRY_BYTES);
+			entry.put(empty);
+		}
+
+		int next;
+		while ((next = readRecord(position, null)) > 0) {
+			position = next;
+			count++;
+		}
+		if (position + 4 <= data.capacity()) {
+			data.putInt(position, 0);
+		}
+		end = position;
+		size = count;
+	}
+
+	/**
+	 * Room for a record of this many encoded bytes ?
+	 */
+	boolean hasRoom(int aLength) {
+		return position + RECORD_HEADER_BYTES + aLength + 4 <= data.capacity();
+	}
+
+	/**
+	 * Append encoded Event, caller checked hasRoom().
+	 *
+	 * @param aTime P_TIME of the Event
+	 */
+	void append(byte[] theBytes, int aLength, String aSubject, long aTime) {
+		if (position - lastIndexed >= indexInterval || count == 0) {
+			int entry = indexEntries;
+			if ((entry + 1) * INDEX_ENTRY_BYTES <= index.capacity()) {
+				index.putInt(entry * INDEX_ENTRY_BYTES, count);
+				index.putInt(entry * INDEX_ENTRY_BYTES + 4, position);
+				index.putLong(entry * INDEX_ENTRY_BYTES + 8, aTime);
+				index.putLong(entry * INDEX_ENTRY_BYTES + 16, aTime);
+				lastIndexed = position;
+				indexEntries = entry + 1;
+			}
+		}
+
+		// Time range of the current block
+		int block = indexEntries - 1;
+		if (aTime < index.getLong(block * INDEX_ENTRY_BYTES + 8)) {
+			index.putLong(block * INDEX_ENTRY_BYTES + 8, aTime);
+		}
+		if (aTime > index.getLong(block * INDEX_ENTRY_BYTES + 16)) {
+			index.putLong(block * INDEX_ENTRY_BYTES + 16, aTime);
+		}
+		addSubject(aSubject, block);
+
+		CRC32 crc = new CRC32();
+		crc.update(theBytes, 0, aLength);
+		ByteBuffer buffer = data.duplicate();
+		buffer.position(position + 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(theBytes, 0, aLength);
+
+		// End marker first, length last: a record is complete once its length is set
+		buffer.putInt(0);
+		data.putInt(position, aLength);
+		position += RECORD_HEADER_BYTES + aLength;
+		count++;
+		end = position;
+		size = count;
+	}
+
+	/**
+	 * Read Events from offset on.
+	 *
+	 * @return next offset to read
+	 */
+	long read(long anOffset, int aMaxEvents, List<Event> theEvents) throws IOException {
+		int limit = end;
+		long offset = Math.max(anOffset, baseOffset);
+		int recordPosition = seek(offset);
+		while (recordPosition < limit && theEvents.size() < aMaxEvents) {
+			int next = readRecord(recordPosition, theEvents);
+			if (next < 0) {
+				throw new IOException("Corrupt record in " + file + " at " + recordPosition);
+			}
+			recordPosition = next;
+			offset++;
+		}
+		return offset;
+	}
+
+	/**
+	 * Pass Events with subject prefix and P_TIME in [from, to] to the listener,
+	 * only scanning blocks that hold such subjects within that time range.
+	 *
+	 * @return false if the listener stopped the query
+	 */
+	boolean query(String aPrefix, long aFromTime, long aToTime, Journal.QueryListener aListener) throws IOException {
+		BitSet blocks = getBlocks(aPrefix);
+		int limit = end;
+		int entries = indexEntries;
+		List<Event> events = new ArrayList<Event>(1);
+		for (int block = blocks.nextSetBit(0); block >= 0 && block < entries; block = blocks.nextSetBit(block + 1)) {
+			if (index.getLong(block * INDEX_ENTRY_BYTES + 16) < aFromTime || index.getLong(block * INDEX_ENTRY_BYTES + 8) > aToTime) {
+				continue;
+			}
+
+			int recordPosition = index.getInt(block * INDEX_ENTRY_BYTES + 4);
+			int blockEnd = block + 1 < entries ? index.getInt((block + 1) * INDEX_ENTRY_BYTES + 4) : limit;
+			while (recordPosition < blockEnd) {
+				events.clear();
+				int next = readRecord(recordPosition, events);
+				if (next <= 0) {
+					throw new IOException("Corrupt record in " + file + " at " + recordPosition);
+				}
+				recordPosition = next;
+
+				Event event = events.get(0);
+				String subject = event.getSubject();
+				long time = getTime(event, -1);
+				if (subject != null && subject.startsWith(aPrefix) && time >= aFromTime && time <= aToTime && !aListener.onEvent(event)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Blocks holding subjects starting with prefix.
+	 */
+	private BitSet getBlocks(String aPrefix) throws IOException {
+		BitSet blocks = new BitSet();
+		synchronized (this) {
+			if (subjects == null) {
+				subjects = loadSubjects();
+			}
+			for (BitSet subjectBlocks : subjects.subMap(aPrefix, aPrefix + Character.MAX_VALUE).values()) {
+				blocks.or(subjectBlocks);
+			}
+		}
+		return blocks;
+	}
+
+	private synchronized void addSubject(String aSubject, int aBlock) {
+		if (aSubject == null) {
+			return;
+		}
+		if (subjects == null) {
+			subjects = scanSubjects();
+		}
+		BitSet blocks = subjects.get(aSubject);
+		if (blocks == null) {
+			blocks = new BitSet();
+			subjects.put(aSubject, blocks);
+		}
+		blocks.set(aBlock);
+	}
+
+	/**
+	 * Read saved subject index, or rebuild it.
+	 */
+	private TreeMap<String, BitSet> loadSubjects() {
+		if (!subjectFile.exists()) {
+			return scanSubjects();
+		}
+		TreeMap<String, BitSet> result = new TreeMap<String, BitSet>();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(subjectFile)));
+			try {
+				int subjectCount = in.readInt();
+				for (int i = 0; i < subjectCount; i++) {
+					String subject = in.readUTF();
+					long[] words = new long[in.readInt()];
+					for (int j = 0; j < words.length; j++) {
+						words[j] = in.readLong();
+					}
+					result.put(subject, BitSet.valueOf(words));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.warn("Journal: cannot read " + subjectFile + ", rebuilding: " + e);
+			return scanSubjects();
+		}
+		return result;
+	}
+
+	/**
+	 * Rebuild subject index from the records.
+	 */
+	private TreeMap<String, BitSet> scanSubjects() {
+		TreeMap<String, BitSet> result = new TreeMap<String, BitSet>();
+		List<Event> events = new ArrayList<Event>(1);
+		int entries = indexEntries;
+		int limit = end;
+		for (int block = 0; block < entries; block++) {
+			int recordPosition = index.getInt(block * INDEX_ENTRY_BYTES + 4);
+			int blockEnd = block + 1 < entries ? index.getInt((block + 1) * INDEX_ENTRY_BYTES + 4) : limit;
+			while (recordPosition < blockEnd) {
+				events.clear();
+				int next = readRecord(recordPosition, events);
+				if (next <= 0) {
+					break;
+				}
+				recordPosition = next;
+				String subject = events.get(0).getSubject();
+				if (subject != null) {
+					BitSet blocks = result.get(subject);
+					if (blocks == null) {
+						blocks = new BitSet();
+						result.put(subject, blocks);
+					}
+					blocks.set(block);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Segment is full: save its subject index.
+	 */
+	synchronized void seal() {
+		if (subjects == null) {
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(subjectFile)));
+			try {
+				out.writeInt(subjects.size());
+				for (Map.Entry<String, BitSet> entry : subjects.entrySet()) {
+					out.writeUTF(entry.getKey());
+					long[] words = entry.getValue().toLongArray();
+					out.writeInt(words.length);
+					for (int i = 0; i < words.length; i++) {
+						out.writeLong(words[i]);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.warn("Journal: cannot write " + subjectFile + ": " + e);
+			subjectFile.delete();
+		}
+	}
+
+	/**
+	 * Position of the record with offset, via the sparse index.
+	 */
+	private int seek(long anOffset) {
+		int target = (int) (anOffset - baseOffset);
+		int relative = 0;
+		int recordPosition = HEADER_BYTES;
+		int low = 0;
+		int high = indexEntries - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entryRelative = index.getInt(mid * INDEX_ENTRY_BYTES);
+			if (entryRelative <= target) {
+				relative = entryRelative;
+				recordPosition = index.getInt(mid * INDEX_ENTRY_BYTES + 4);
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		int limit = end;
+		while (relative < target && recordPosition < limit) {
+			recordPosition += RECORD_HEADER_BYTES + data.getInt(recordPosition);
+			relative++;
+		}
+		return recordPosition;
+	}
+
+	/**
+	 * Validate (and decode if a list is given) the record at position.
+	 *
+	 * @return position of the next record, 0 at end, -1 if torn or corrupt
+	 */
+	private int readRecord(int aPosition, List<Event> theEvents) {
+		if (aPosition + RECORD_HEADER_BYTES > data.capacity()) {
+			return 0;
+		}
+		int length = data.getInt(aPosition);
+		if (length == 0) {
+			return 0;
+		}
+		if (length < 0 || aPosition + RECORD_HEADER_BYTES + length > data.capacity()) {
+			return -1;
+		}
+
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = data.duplicate();
+		buffer.position(aPosition + RECORD_HEADER_BYTES);
+		buffer.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		if ((int) crc.getValue() != data.getInt(aPosition + 4)) {
+			return -1;
+		}
+		if (theEvents != null) {
+			try {
+				theEvents.add(EventCodec.readEvent(new DataInputStream(new ByteArrayInputStream(bytes))));
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+		return aPosition + RECORD_HEADER_BYTES + length;
+	}
+
+	/**
+	 * Write mapped pages to disk.
+	 */
+	void force() {
+		data.force();
+		index.force();
+	}
+
+	void delete() {
+		subjectFile.delete();
+		if (!file.delete() || !indexFile.delete()) {
+			file.deleteOnExit();
+			indexFile.deleteOnExit();
+		}
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	/**
+	 * Offset after the last record.
+	 */
+	long getNextOffset() {
+		return baseOffset + size;
+	}
+
+	/**
+	 * Lowest and highest P_TIME in this segment, {Long.MAX_VALUE, Long.MIN_VALUE} if empty.
+	 */
+	long[] getTimeRange() {
+		long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+		int entries = indexEntries;
+		for (int i = 0; i < entries; i++) {
+			range[0] = Math.min(range[0], index.getLong(i * INDEX_ENTRY_BYTES + 8));
+			range[1] = Math.max(range[1], index.getLong(i * INDEX_ENTRY_BYTES + 16));
+		}
+		return range;
+	}
+
+	public String toString() {
+		return file.getName() + "[" + baseOffset + ".." + getNextOffset() + ")";
+	}
+
+	/**
+	 * P_TIME of Event (seconds since 1970), default if missing.
+	 */
+	static long getTime(Event anEvent, long aDefault) {
+		String time = anEvent.getField(P_TIME);
+		if (time != null) {
+			try {
+				return Long.parseLong(time);
+			} catch (NumberFormatException ignore) {
+			}
+		}
+		return aDefault;
+	}
+
+	static String getName(long anOffset) {
+		String digits = String.valueOf(anOffset);
+		StringBuilder name = new StringBuilder(20);
+		for (int i = digits.length(); i < 20; i++) {
+			name.append('0');
+		}
+		return name.append(digits).toString();
+	}
+
+	private static int getIndexBytes(int aSegmentBytes, int anIndexInterval) {
+		return (aSegmentBytes / anIndexInterval + 2) * INDEX_ENTRY_BYTES;
+	}
+
+	private static MappedByteBuffer map(File aFile, int aLength) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(aFile, "rw");
+		try {
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, aLength);
+		} finally {
+			// The mapping stays valid after closing
+			file.close();
+		}
+	}
+}
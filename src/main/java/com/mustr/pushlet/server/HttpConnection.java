@@ -0,0 +1,249 @@
+package com.mustr.pushlet.server;
+
+import com.mustr.pushlet.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Client connection of the embedded server.
+ * <p/>
+ * Reading and parsing run on the selector thread, one request at a time;
+ * the next (pipelined) request is only parsed once the current response
+ * has finished. Writes may come from any thread: they go straight to the
+ * socket and only what the socket cannot take is queued for the selector.
+ */
+class HttpConnection {
+	private final PushletServer server;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final String remoteAddr;
+
+	/**
+	 * Input bytes not yet parsed, buffer is in write mode.
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+	/**
+	 * Response of the request in progress, null when idle.
+	 */
+	private volatile HttpResponse response;
+
+	/**
+	 * Output the socket could not take yet, guarded by itself.
+	 */
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private long pendingBytes;
+	private boolean closeWhenWritten;
+	private volatile boolean closed;
+
+	HttpConnection(PushletServer aServer, SocketChannel aChannel, SelectionKey aKey) {
+		server = aServer;
+		channel = aChannel;
+		key = aKey;
+		Socket socket = aChannel.socket();
+		remoteAddr = ((InetSocketAddress) socket.getRemoteSocketAddress()).getAddress().getHostAddress();
+	}
+
+	/**
+	 * Selector callback: input available.
+	 */
+	void onReadable() throws IOException {
+		if (!readBuffer.hasRemaining()) {
+			if (readBuffer.capacity() >= server.getRequestMaxBytes()) {
+				// Only when a single request does not fit
+				reject(413, "Request Entity Too Large");
+				return;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, server.getRequestMaxBytes()));
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+
+		if (channel.read(readBuffer) < 0) {
+			close();
+			return;
+		}
+		parseNext();
+	}
+
+	/**
+	 * Selector callback: socket can take queued output.
+	 */
+	void onWritable() throws IOException {
+		synchronized (outbound) {
+			if (!outbound.isEmpty()) {
+				channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+				while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+					pendingBytes -= outbound.poll().limit();
+				}
+			}
+			if (!outbound.isEmpty()) {
+				return;
+			}
+			pendingBytes = 0;
+			key.interestOps(SelectionKey.OP_READ);
+			if (!closeWhenWritten) {
+				return;
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Write buffers to client, queueing what cannot be written now.
+	 *
+	 * @throws IOException when closed or when the client does not keep up
+	 */
+	void send(ByteBuffer[] theBuffers) throws IOException {
+		synchronized (outbound) {
+			if (closed) {
+				throw new IOException("Connection closed");
+			}
+
+			// Keep order: write directly only when nothing is queued
+			if (outbound.isEmpty()) {
+				channel.write(theBuffers);
+			}
+
+			boolean wasEmpty = outbound.isEmpty();
+			for (int i = 0; i < theBuffers.length; i++) {
+				if (theBuffers[i].hasRemaining()) {
+					// Own copy of the limit for pendingBytes accounting
+					ByteBuffer pending = theBuffers[i].slice();
+					outbound.add(pending);
+					pendingBytes += pending.limit();
+				}
+			}
+
+			if (pendingBytes > server.getWriteMaxBytes()) {
+				Log.warn("HttpConnection: client too slow, closing " + remoteAddr + " pending=" + pendingBytes);
+				server.invokeLater(new Runnable() {
+					public void run() {
+						close();
+					}
+				});
+				throw new IOException("Client too slow");
+			}
+
+			if (wasEmpty && !outbound.isEmpty()) {
+				server.invokeLater(new Runnable() {
+					public void run() {
+						if (key.isValid()) {
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Called by the response when it has been fully written.
+	 */
+	void responseDone(boolean keepAlive) {
+		response = null;
+		if (!keepAlive) {
+			closeWhenWritten();
+			return;
+		}
+
+		// Continue with pipelined requests on the selector thread
+		server.invokeLater(new Runnable() {
+			public void run() {
+				try {
+					parseNext();
+				} catch (IOException e) {
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Close connection, safe to call from any thread.
+	 */
+	void close() {
+		synchronized (outbound) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			outbound.clear();
+		}
+
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+
+		HttpResponse current = response;
+		if (current != null) {
+			current.onClose();
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	private void closeWhenWritten() {
+		synchronized (outbound) {
+			if (!outbound.isEmpty()) {
+				closeWhenWritten = true;
+				return;
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Parse and dispatch next complete request, if any and if idle.
+	 */
+	private void parseNext() throws IOException {
+		if (closed || response != null) {
+			return;
+		}
+
+		HttpRequest request;
+		try {
+			request = HttpRequest.parse(readBuffer.array(), readBuffer.position(), remoteAddr);
+		} catch (Exception e) {
+			Log.debug("HttpConnection: bad request from " + remoteAddr + " " + e);
+			reject(400, "Bad Request");
+			return;
+		}
+		if (request == null) {
+			return;
+		}
+
+		// Drop consumed bytes, keep anything pipelined
+		byte[] bytes = readBuffer.array();
+		int remaining = readBuffer.position() - request.getLength();
+		System.arraycopy(bytes, request.getLength(), bytes, 0, remaining);
+		readBuffer.position(remaining);
+
+		final HttpRequest nextRequest = request;
+		final HttpResponse nextResponse = new HttpResponse(server, this, request);
+		response = nextResponse;
+		server.execute(new Runnable() {
+			public void run() {
+				server.service(nextRequest, nextResponse);
+			}
+		});
+	}
+
+	private void reject(int aStatus, String aMessage) throws IOException {
+		HttpResponse errorResponse = new HttpResponse(server, this, null);
+		response = errorResponse;
+		errorResponse.sendError(aStatus, aMessage);
+	}
+}
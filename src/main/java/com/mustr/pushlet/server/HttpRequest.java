@@ -0,0 +1,175 @@
+package com.mustr.pushlet.server;
+
+import com.mustr.pushlet.core.PushletRequest;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP/1.x request parsed by the embedded server.
+ * <p/>
+ * Only what the Pushlet protocol needs: request line, headers,
+ * query parameters and an optional body with Content-Length.
+ */
+class HttpRequest implements PushletRequest {
+	private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+	private String method;
+	private String requestURI;
+	private String version;
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+	private byte[] body;
+	private final String remoteAddr;
+
+	/**
+	 * Number of input bytes taken by this request.
+	 */
+	private int length;
+
+	private HttpRequest(String aRemoteAddr) {
+		remoteAddr = aRemoteAddr;
+	}
+
+	/**
+	 * Parse request from start of buffer.
+	 *
+	 * @return request or null if not yet complete
+	 * @throws IOException on malformed request
+	 */
+	static HttpRequest parse(byte[] aBuffer, int aLength, String aRemoteAddr) throws IOException {
+		int headerEnd = indexOf(aBuffer, aLength, HEADER_END);
+		if (headerEnd < 0) {
+			return null;
+		}
+
+		HttpRequest request = new HttpRequest(aRemoteAddr);
+		String[] lines = new String(aBuffer, 0, headerEnd, "ISO-8859-1").split("\r\n");
+
+		// Request line e.g. GET /pushlet/pushlet.srv?p_event=join HTTP/1.1
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) {
+			throw new IOException("Malformed request line: " + lines[0]);
+		}
+		request.method = requestLine[0];
+		request.version = requestLine[2];
+		String uri = requestLine[1];
+		int query = uri.indexOf('?');
+		if (query >= 0) {
+			request.parseParameters(uri.substring(query + 1));
+			uri = uri.substring(0, query);
+		}
+		request.requestURI = uri;
+
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0) {
+				throw new IOException("Malformed header: " + lines[i]);
+			}
+			request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+		}
+
+		int bodyStart = headerEnd + HEADER_END.length;
+		int contentLength = 0;
+		String contentLengthHeader = request.getHeader("Content-Length");
+		if (contentLengthHeader != null) {
+			try {
+				contentLength = Integer.parseInt(contentLengthHeader);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad Content-Length: " + contentLengthHeader);
+			}
+		}
+		if (contentLength < 0 || request.getHeader("Transfer-Encoding") != null) {
+			throw new IOException("Unsupported request body");
+		}
+		if (aLength < bodyStart + contentLength) {
+			return null;
+		}
+
+		request.body = new byte[contentLength];
+		System.arraycopy(aBuffer, bodyStart, request.body, 0, contentLength);
+		request.length = bodyStart + contentLength;
+		return request;
+	}
+
+	public String getRequestURI() {
+		return requestURI;
+	}
+
+	public String getRemoteAddr() {
+		return remoteAddr;
+	}
+
+	public String getHeader(String aName) {
+		return headers.get(aName.toLowerCase());
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Query parameters in order of appearance.
+	 */
+	Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	String getParameter(String aName) {
+		return parameters.get(aName);
+	}
+
+	byte[] getBody() {
+		return body;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * HTTP/1.1 without "Connection: close"; HTTP/1.0 responses always close.
+	 */
+	boolean isKeepAlive() {
+		return version.equals("HTTP/1.1") && !"close".equalsIgnoreCase(getHeader("Connection"));
+	}
+
+	private void parseParameters(String aQuery) throws UnsupportedEncodingException {
+		String[] pairs = aQuery.split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			if (pairs[i].length() == 0) {
+				continue;
+			}
+			int eq = pairs[i].indexOf('=');
+			String name = eq < 0 ? pairs[i] : pairs[i].substring(0, eq);
+			String value = eq < 0 ? "" : pairs[i].substring(eq + 1);
+			name = URLDecoder.decode(name, "UTF-8");
+
+			// First value wins like ServletRequest.getParameter()
+			if (!parameters.containsKey(name)) {
+				parameters.put(name, URLDecoder.decode(value, "UTF-8"));
+			}
+		}
+	}
+
+	private static int indexOf(byte[] aBuffer, int aLength, byte[] aPattern) {
+		for (int i = 0; i <= aLength - aPattern.length; i++) {
+			int j = 0;
+			while (j < aPattern.length && aBuffer[i + j] == aPattern[j]) {
+				j++;
+			}
+			if (j == aPattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,377 @@
+package com.mustr.pushlet.server;
+
+import com.mustr.pushlet.core.AsyncDataChannel;
+import com.mustr.pushlet.core.Command;
+import com.mustr.pushlet.core.Protocol;
+import com.mustr.pushlet.core.PushletResponse;
+import com.mustr.pushlet.core.Subscriber;
+import com.mustr.pushlet.util.Log;
+import com.mustr.pushlet.util.TimingWheel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP response of the embedded server.
+ * <p/>
+ * HTTP/1.1 responses use chunked transfer encoding so the connection can
+ * be kept alive; HTTP/1.0 responses are ended by closing the connection.
+ * Each write() is a single gathering write of chunk header, caller buffers
+ * and chunk trailer (plus the response headers on the first write), without
+ * copying the caller buffers.
+ * <p/>
+ * As AsyncDataChannel the response keeps listen/refresh requests open without
+ * holding a thread: Subscriber.fetchNext() is run on a worker when events are
+ * enqueued or when the queue read timeout passes (heartbeat/refresh).
+ */
+class HttpResponse implements PushletResponse, AsyncDataChannel {
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+	private final PushletServer server;
+	private final HttpConnection connection;
+	private final boolean chunked;
+	private boolean keepAlive;
+
+	private int status = 200;
+	private String contentType;
+	private final List<String[]> headers = new ArrayList<String[]>(8);
+	private BodyStream bodyStream;
+	private boolean committed;
+	private boolean finished;
+	private volatile DataChannel dataChannel;
+
+	HttpResponse(PushletServer aServer, HttpConnection aConnection, HttpRequest aRequest) {
+		server = aServer;
+		connection = aConnection;
+		chunked = aRequest != null && aRequest.getVersion().equals("HTTP/1.1");
+		keepAlive = aRequest != null && aRequest.isKeepAlive();
+	}
+
+	public synchronized void setStatus(int aStatus) {
+		status = aStatus;
+	}
+
+	public synchronized void setContentType(String aContentType) {
+		contentType = aContentType;
+	}
+
+	public synchronized void setHeader(String aName, String aValue) {
+		for (int i = 0; i < headers.size(); i++) {
+			if (headers.get(i)[0].equalsIgnoreCase(aName)) {
+				headers.remove(i--);
+			}
+		}
+		addHeader(aName, aValue);
+	}
+
+	public synchronized void addHeader(String aName, String aValue) {
+		if (aName.equalsIgnoreCase("Connection")) {
+			// Only "close" is meaningful, keep-alive is ours to decide
+			if (aValue.equalsIgnoreCase("close")) {
+				keepAlive = false;
+			}
+			return;
+		}
+		headers.add(new String[]{aName, aValue});
+	}
+
+	public void setBufferSize(int aSize) {
+		// Unbuffered: write() goes to the socket
+	}
+
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (bodyStream == null) {
+			bodyStream = new BodyStream();
+		}
+		return bodyStream;
+	}
+
+	public synchronized void write(ByteBuffer... theBuffers) throws IOException {
+		if (finished) {
+			throw new IOException("Response already finished");
+		}
+
+		int length = 0;
+		for (int i = 0; i < theBuffers.length; i++) {
+			length += theBuffers[i].remaining();
+		}
+		if (length == 0) {
+			flushBuffer();
+			return;
+		}
+
+		ByteBuffer[] buffers = new ByteBuffer[theBuffers.length + 3];
+		int count = 0;
+		if (!committed) {
+			buffers[count++] = encodeHeaders(-1);
+		}
+		if (chunked) {
+			buffers[count++] = ascii(Integer.toHexString(length) + "\r\n");
+		}
+		for (int i = 0; i < theBuffers.length; i++) {
+			// Leave caller positions alone, buffers may be shared
+			buffers[count++] = theBuffers[i].duplicate();
+		}
+		if (chunked) {
+			buffers[count++] = ByteBuffer.wrap(CRLF);
+		}
+		send(buffers, count);
+	}
+
+	public synchronized void flushBuffer() throws IOException {
+		if (bodyStream != null && bodyStream.size() > 0) {
+			byte[] bytes = bodyStream.toByteArray();
+			bodyStream.reset();
+			write(ByteBuffer.wrap(bytes));
+			return;
+		}
+		if (!committed && !finished) {
+			send(new ByteBuffer[]{encodeHeaders(-1)}, 1);
+		}
+	}
+
+	public void startAsync(Subscriber aSubscriber, Command aCommand) {
+		DataChannel channel = new DataChannel(aSubscriber, aCommand);
+		dataChannel = channel;
+		channel.start();
+	}
+
+	/**
+	 * Is the data channel running asynchronously ?
+	 */
+	boolean isAsync() {
+		return dataChannel != null;
+	}
+
+	/**
+	 * Complete the response and release the connection for the next request.
+	 */
+	synchronized void finish() {
+		if (finished || connection.isClosed()) {
+			return;
+		}
+		try {
+			if (bodyStream != null && bodyStream.size() > 0) {
+				flushBuffer();
+			}
+			if (!committed) {
+				send(new ByteBuffer[]{encodeHeaders(0)}, 1);
+			} else if (chunked) {
+				send(new ByteBuffer[]{ByteBuffer.wrap(LAST_CHUNK)}, 1);
+			}
+		} catch (IOException e) {
+			Log.debug("HttpResponse: cannot finish response " + e);
+			keepAlive = false;
+		}
+		finished = true;
+		connection.responseDone(keepAlive && chunked);
+	}
+
+	/**
+	 * Send complete error response, if not too late.
+	 */
+	synchronized void sendError(int aStatus, String aMessage) {
+		if (committed) {
+			keepAlive = false;
+			finish();
+			return;
+		}
+		try {
+			status = aStatus;
+			contentType = "text/plain";
+			byte[] body = (aMessage + "\r\n").getBytes("UTF-8");
+			send(new ByteBuffer[]{encodeHeaders(body.length), ByteBuffer.wrap(body)}, 2);
+		} catch (IOException e) {
+			keepAlive = false;
+		}
+		finished = true;
+		connection.responseDone(keepAlive && chunked);
+	}
+
+	/**
+	 * Connection closed by client or server.
+	 */
+	void onClose() {
+		DataChannel channel = dataChannel;
+		if (channel != null) {
+			channel.detach();
+		}
+	}
+
+	private void send(ByteBuffer[] theBuffers, int aCount) throws IOException {
+		ByteBuffer[] buffers = theBuffers;
+		if (aCount < theBuffers.length) {
+			buffers = new ByteBuffer[aCount];
+			System.arraycopy(theBuffers, 0, buffers, 0, aCount);
+		}
+		committed = true;
+		connection.send(buffers);
+	}
+
+	/**
+	 * Status line and headers, with Content-Length if known (>= 0).
+	 */
+	private ByteBuffer encodeHeaders(int aContentLength) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+		sb.append("Server: Pushlet\r\n");
+		if (contentType != null) {
+			sb.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		for (int i = 0; i < headers.size(); i++) {
+			String[] header = headers.get(i);
+			sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+		}
+		if (aContentLength >= 0) {
+			sb.append("Content-Length: ").append(aContentLength).append("\r\n");
+		} else if (chunked) {
+			sb.append("Transfer-Encoding: chunked\r\n");
+		} else {
+			// Body ends with connection
+			keepAlive = false;
+		}
+		if (!keepAlive || !chunked) {
+			sb.append("Connection: close\r\n");
+		}
+		sb.append("\r\n");
+		return ascii(sb.toString());
+	}
+
+	private static ByteBuffer ascii(String aString) {
+		int length = aString.length();
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) aString.charAt(i);
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static String reason(int aStatus) {
+		switch (aStatus) {
+			case 200:
+				return "OK";
+			case 400:
+				return "Bad Request";
+			case 404:
+				return "Not Found";
+			case 405:
+				return "Method Not Allowed";
+			case 413:
+				return "Request Entity Too Large";
+			case 500:
+				return "Internal Server Error";
+			case 503:
+				return "Service Unavailable";
+			default:
+				return "Status";
+		}
+	}
+
+	/**
+	 * Buffers raw body bytes (serialized Java objects) until flushed.
+	 */
+	private class BodyStream extends ByteArrayOutputStream {
+		public void flush() throws IOException {
+			flushBuffer();
+		}
+	}
+
+	/**
+	 * Runs the Subscriber data channel from Subscriber/timer callbacks.
+	 * <p/>
+	 * A work-in-progress counter makes sure fetchNext() runs on at most one
+	 * worker at a time, while no wake-up between runs gets lost.
+	 */
+	private class DataChannel extends TimingWheel.Timeout implements Runnable {
+		private final Subscriber subscriber;
+		private final Command command;
+		private final long readTimeoutMillis;
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean timedOut;
+		private volatile boolean done;
+
+		private final Runnable drainTask = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+
+		DataChannel(Subscriber aSubscriber, Command aCommand) {
+			subscriber = aSubscriber;
+			command = aCommand;
+			readTimeoutMillis = aSubscriber.getQueueReadTimeoutMillis();
+		}
+
+		void start() {
+			subscriber.setDataListener(this);
+
+			// Stream mode starts with a heartbeat, poll mode returns at once
+			if (readTimeoutMillis <= 0 || subscriber.getMode().equals(Protocol.MODE_STREAM)) {
+				timedOut = true;
+				run();
+				return;
+			}
+			server.getTimer().schedule(this, readTimeoutMillis);
+			if (subscriber.hasEvents()) {
+				run();
+			}
+		}
+
+		/**
+		 * Subscriber callback: event enqueued.
+		 */
+		public void run() {
+			if (!done && wip.getAndIncrement() == 0) {
+				server.execute(drainTask);
+			}
+		}
+
+		/**
+		 * Timer callback: no events within read timeout.
+		 */
+		protected void expire() {
+			timedOut = true;
+			run();
+		}
+
+		void detach() {
+			done = true;
+			subscriber.removeDataListener(this);
+			server.getTimer().cancel(this);
+		}
+
+		private void drain() {
+			int missed = 1;
+			do {
+				if (done) {
+					return;
+				}
+				if (timedOut || subscriber.hasEvents()) {
+					timedOut = false;
+					boolean open;
+					try {
+						open = subscriber.fetchNext(command, 0);
+					} catch (Throwable t) {
+						Log.warn("HttpResponse: error in data channel", t);
+						open = false;
+					}
+					if (!open) {
+						detach();
+						finish();
+						return;
+					}
+
+					// Heartbeat after a quiet period
+					server.getTimer().schedule(this, readTimeoutMillis);
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package com.mustr.pushlet.server;
+
+import com.mustr.pushlet.Version;
+import com.mustr.pushlet.core.*;
+import com.mustr.pushlet.util.Log;
+import com.mustr.pushlet.util.PushletException;
+import com.mustr.pushlet.util.Sys;
+import com.mustr.pushlet.util.TimingWheel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Standalone Pushlet server, no servlet container needed.
+ * <p/>
+ * Speaks the same protocol (p_event etc) as the Pushlet servlet and handles
+ * requests through the same Controller, Subscriber and ClientAdapters, so
+ * existing clients (ajax-pushlet-client.js, PushletClient) work unchanged.
+ * <p/>
+ * <b>Implementation</b><br>
+ * A single selector thread accepts connections and parses requests. Requests
+ * are handled on worker threads (virtual threads with listen.thread.mode=virtual).
+ * Listen/refresh responses are AsyncDataChannels: idle listeners hold no
+ * thread, only their connection and a timer entry for the next heartbeat.
+ * <p/>
+ * Usage: PushletServer [configDir]
+ */
+public class PushletServer implements Runnable, ConfigDefs, Protocol {
+	private final String configDir;
+	private final int port;
+	private final String uri;
+	private final int requestMaxBytes;
+	private final long writeMaxBytes;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private ExecutorService workers;
+	private TimingWheel timer;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running;
+
+	/**
+	 * Construct from loaded Config.
+	 */
+	public PushletServer(String aConfigDir) {
+		configDir = aConfigDir;
+		port = Config.getIntProperty(SERVER_PORT, 8080);
+		uri = Config.getProperty(SERVER_URI, DEFAULT_SERVLET_URI);
+		requestMaxBytes = Config.getIntProperty(SERVER_REQUEST_MAX_BYTES, 65536);
+		writeMaxBytes = Config.getLongProperty(SERVER_WRITE_MAX_BYTES, 1024 * 1024);
+	}
+
+	/**
+	 * Start Pushlet framework and open server socket.
+	 */
+	public void start() throws IOException, PushletException {
+		Log.info("PushletServer: start() version=" + Version.SOFTWARE_VERSION + " built=" + Version.BUILD_DATE);
+
+		// Start session manager
+		SessionManager.getInstance().start();
+
+		// Start event Dispatcher
+		Dispatcher.getInstance().start();
+
+		String threadMode = Config.getProperty(LISTEN_THREAD_MODE, LISTEN_THREAD_MODE_PLATFORM);
+		if (threadMode.equals(LISTEN_THREAD_MODE_VIRTUAL)) {
+			workers = Sys.newVirtualThreadExecutor();
+			if (workers == null) {
+				Log.warn("PushletServer: virtual threads not supported by this VM (Java 21+ required), using platform threads");
+			}
+		}
+		if (workers == null) {
+			int workerCount = Config.getIntProperty(SERVER_WORKERS, 2 * Runtime.getRuntime().availableProcessors());
+			workers = Executors.newFixedThreadPool(workerCount, new WorkerFactory());
+		}
+
+		// Heartbeat/refresh timeouts of idle data channels
+		timer = new TimingWheel("PushletServer", 100, 1024);
+		timer.start();
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		running = true;
+		selectorThread = new Thread(this, "PushletServer-selector");
+		selectorThread.start();
+
+		if (Config.getBoolProperty(SOURCES_ACTIVATE)) {
+			EventSourceManager.start(configDir);
+		} else {
+			Log.info("Not starting local event sources");
+		}
+	}
+
+	/**
+	 * Stop Pushlet framework and close all connections.
+	 */
+	public void stop() {
+		Log.info("PushletServer: stop()");
+
+		if (Config.getBoolProperty(SOURCES_ACTIVATE)) {
+			EventSourceManager.stop();
+		}
+
+		// Save sessions for a warm restart while still intact
+		SessionManager.getInstance().saveSnapshot();
+
+		// Should abort all subscribers
+		Dispatcher.getInstance().stop();
+
+		// Should stop all sessions
+		SessionManager.getInstance().stop();
+
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+		if (selectorThread != null) {
+			try {
+				selectorThread.join(2000);
+			} catch (InterruptedException ie) {
+				// Ignore
+			}
+		}
+		if (timer != null) {
+			timer.stop();
+		}
+		if (workers != null) {
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Selector loop.
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Log.warn("PushletServer: select failed", e);
+				break;
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				HttpConnection connection = (HttpConnection) key.attachment();
+				try {
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					if (key.isReadable()) {
+						connection.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.onWritable();
+					}
+				} catch (CancelledKeyException e) {
+					// Closed by other thread
+				} catch (IOException e) {
+					if (connection != null) {
+						connection.close();
+					}
+				} catch (Throwable t) {
+					Log.warn("PushletServer: error in selector loop", t);
+					if (connection != null) {
+						connection.close();
+					}
+				}
+			}
+		}
+
+		// Close all connections
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null) {
+				((HttpConnection) key.attachment()).close();
+			}
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * Run task on selector thread.
+	 */
+	void invokeLater(Runnable aTask) {
+		tasks.add(aTask);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run task on worker thread.
+	 */
+	void execute(Runnable aTask) {
+		try {
+			workers.execute(aTask);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			Log.debug("PushletServer: task rejected " + e);
+		}
+	}
+
+	TimingWheel getTimer() {
+		return timer;
+	}
+
+	int getRequestMaxBytes() {
+		return requestMaxBytes;
+	}
+
+	long getWriteMaxBytes() {
+		return writeMaxBytes;
+	}
+
+	/**
+	 * Handle request on worker thread, see also Pushlet servlet.
+	 */
+	void service(HttpRequest request, HttpResponse response) {
+		try {
+			if (!request.getRequestURI().equals(uri)) {
+				response.sendError(404, "Not found: " + request.getRequestURI());
+				return;
+			}
+
+			Event event = createEvent(request);
+			if (event == null || event.getEventType() == null) {
+				Log.warn("PushletServer: bad request, no event specified");
+				response.sendError(400, "No eventType specified");
+				return;
+			}
+
+			Session session = getSession(event, request);
+			if (session == null) {
+				response.sendError(400, "Invalid or expired id: " + event.getField(P_ID));
+				return;
+			}
+
+			// Let Controller handle request further including exceptions
+			Command command = Command.create(session, event, request, response);
+			session.getController().doCommand(command);
+		} catch (Throwable t) {
+			Log.warn("PushletServer: exception in service()", t);
+			response.sendError(500, "Internal error");
+		} finally {
+			if (!response.isAsync()) {
+				response.finish();
+			}
+		}
+	}
+
+	/**
+	 * Event from GET parameters or POSTed XML.
+	 */
+	private Event createEvent(HttpRequest request) throws IOException {
+		if (request.getMethod().equals("POST") && request.getBody().length > 0) {
+			return EventParser.parse(new InputStreamReader(new ByteArrayInputStream(request.getBody()), "UTF-8"));
+		}
+
+		String eventType = request.getParameter(P_EVENT);
+		if (eventType == null) {
+			return null;
+		}
+		Event event = new Event(eventType);
+		for (Map.Entry<String, String> entry : request.getParameters().entrySet()) {
+			event.setField(entry.getKey(), entry.getValue());
+		}
+		return event;
+	}
+
+	/**
+	 * Create session on join, otherwise lookup by id.
+	 */
+	private Session getSession(Event anEvent, HttpRequest request) throws PushletException {
+		String eventType = anEvent.getEventType();
+		if (!eventType.startsWith(E_JOIN)) {
+			String id = anEvent.getField(P_ID);
+			if (id == null) {
+				Log.warn("PushletServer: bad request, no id specified event=" + eventType);
+				return null;
+			}
+			Session session = SessionManager.getInstance().getSession(id);
+			if (session == null) {
+				Log.warn("PushletServer: bad request, no session found id=" + id + " event=" + eventType);
+			}
+			return session;
+		}
+
+		// Join request: create new subscriber
+		Session session = SessionManager.getInstance().createSession(anEvent);
+		String userAgent = request.getHeader("User-Agent");
+		session.setUserAgent(userAgent != null ? userAgent.toLowerCase() : "unknown");
+		String jsessionid = anEvent.getField("jsessionid");
+		if (jsessionid != null && !"".equals(jsessionid)) {
+			UserSessionManager.getInstance().registerUserSession(jsessionid, session.getId());
+		}
+		return session;
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new HttpConnection(this, channel, key));
+		}
+	}
+
+	/**
+	 * Daemon worker threads in platform mode.
+	 */
+	private static class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable aRunnable) {
+			Thread thread = new Thread(aRunnable, "PushletServer-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	public static void main(String[] args) {
+		long startTime = Sys.now();
+		String configDir = args.length > 0 ? args[0] : ".";
+		Config.load(configDir);
+		Log.init();
+
+		final PushletServer server = new PushletServer(configDir);
+		try {
+			server.start();
+		} catch (Throwable t) {
+			Log.fatal("PushletServer: cannot start", t);
+			System.exit(1);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop();
+			}
+		});
+		Log.info("PushletServer: listening on port " + server.port + " uri=" + server.uri
+				+ " started in " + (Sys.now() - startTime) + "ms");
+	}
+}
@@ -6,8 +6,10 @@ package com.mustr.pushlet.servlet;
 import com.mustr.pushlet.core.*;
 import com.mustr.pushlet.util.Log;
 import com.mustr.pushlet.util.Servlets;
+import com.mustr.pushlet.util.Sys;
 import com.mustr.pushlet.Version;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -16,6 +18,8 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Servlet runs a Subscriber per request.
@@ -26,6 +30,11 @@ import java.util.Enumeration;
 public class Pushlet extends HttpServlet implements Protocol {
     private static final long serialVersionUID = -4497281136924424781L;
 
+	/**
+	 * Runs listen/refresh requests on virtual threads, null in platform mode.
+	 */
+	private transient ExecutorService listenExecutor;
+
     public void init() throws ServletException {
 		try {
 			// Load configuration (from classpath or WEB-INF root path)
@@ -43,6 +52,17 @@ public class Pushlet extends HttpServlet implements Protocol {
 			// Start event Dispatcher
 			Dispatcher.getInstance().start();
 
+			// Optional virtual threads for the (blocking) data channel
+			String threadMode = Config.getProperty(Config.LISTEN_THREAD_MODE, Config.LISTEN_THREAD_MODE_PLATFORM);
+			if (threadMode.equals(Config.LISTEN_THREAD_MODE_VIRTUAL)) {
+				listenExecutor = Sys.newVirtualThreadExecutor();
+				if (listenExecutor == null) {
+					Log.warn("init() virtual threads not supported by this VM (Java 21+ required), using platform threads");
+				} else {
+					Log.info("init() listen/refresh requests run on virtual threads");
+				}
+			}
+
 
 			if (Config.getBoolProperty(Config.SOURCES_ACTIVATE)) {
 				EventSourceManager.start(webInfPath);
@@ -64,11 +84,19 @@ public class Pushlet extends HttpServlet implements Protocol {
 			Log.info("No local event sources to stop");
 		}
 
+		// Save sessions for a warm restart while still intact
+		SessionManager.getInstance().saveSnapshot();
+
 		// Should abort all subscribers
 		Dispatcher.getInstance().stop();
 
 		// Should stop all sessions
 		SessionManager.getInstance().stop();
+
+		if (listenExecutor != null) {
+			listenExecutor.shutdown();
+			listenExecutor = null;
+		}
 	}
 
 	/**
@@ -141,6 +169,49 @@ public class Pushlet extends HttpServlet implements Protocol {
 	 * Generic request handler (GET+POST).
 	 */
 	protected void doRequest(Event anEvent, HttpServletRequest request, HttpServletResponse response) {
+		// Data channel requests block until events arrive: in virtual
+		// thread mode release the container thread.
+		String eventType = anEvent.getEventType();
+		if (listenExecutor != null && request.isAsyncSupported()
+				&& (eventType.endsWith(Protocol.E_LISTEN) || eventType.equals(Protocol.E_REFRESH))) {
+			handOff(anEvent, request, response);
+			return;
+		}
+
+		handleRequest(anEvent, request, response);
+	}
+
+	/**
+	 * Continue request on a virtual thread using servlet async processing.
+	 */
+	protected void handOff(final Event anEvent, final HttpServletRequest request, final HttpServletResponse response) {
+		final AsyncContext asyncContext = request.startAsync();
+
+		// Streaming responses never end by themselves
+		asyncContext.setTimeout(0);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					handleRequest(anEvent, request, response);
+				} finally {
+					asyncContext.complete();
+				}
+			}
+		};
+
+		try {
+			listenExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// E.g. executor shut down: run on container thread
+			Log.warn("Pushlet: cannot hand off event=" + anEvent.getEventType() + " ex=" + e);
+			task.run();
+		}
+	}
+
+	/**
+	 * Handle request on the current thread.
+	 */
+	protected void handleRequest(Event anEvent, HttpServletRequest request, HttpServletResponse response) {
 		// Must have valid event type.
 		String eventType = anEvent.getEventType();
 		//System.out.println(eventType);
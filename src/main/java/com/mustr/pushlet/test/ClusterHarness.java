@@ -0,0 +1,375 @@
+package com.mustr.pushlet.test;
+
+import com.mustr.pushlet.client.PushletClient;
+import com.mustr.pushlet.client.PushletClientListener;
+import com.mustr.pushlet.core.ConfigDefs;
+import com.mustr.pushlet.core.Controller;
+import com.mustr.pushlet.core.Dispatcher;
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.core.Protocol;
+import com.mustr.pushlet.core.Session;
+import com.mustr.pushlet.core.SessionManager;
+import com.mustr.pushlet.core.Subscriber;
+import com.mustr.pushlet.core.Subscription;
+import com.mustr.pushlet.util.DefaultLogger;
+import com.mustr.pushlet.util.Sys;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Loopback multi-JVM test of the cluster bus.
+ * <p/>
+ * Starts a PushletServer JVM per node on localhost, each with its own
+ * pushlet.properties first on the classpath (ports, node id and all nodes
+ * as TcpClusterBus peers). A PushletClient listens on every node, then
+ * events are published to all nodes in parallel; each listener must get
+ * every event exactly once. Reports counts, duplicates and delivery latency.
+ * Then each client sends events to the session on the next node (p_to),
+ * which must arrive through the session directory.
+ * <p/>
+ * With "owner" the test subject is partitioned (cluster.owner.subjects):
+ * all listeners must then also get the events in the same order.
+ * <p/>
+ * Usage: ClusterHarness [nodes] [eventsPerNode] [basePort] [owner]
+ * <br>
+ * e.g. java ... ClusterHarness 3 1000 18080 (HTTP ports 18080.., bus ports 18180..)
+ */
+public class ClusterHarness implements Protocol, ConfigDefs {
+	private static final String SUBJECT = "/cluster/test";
+	private static final String PROBE_SUBJECT = "/cluster/probe";
+	private static final String UNICAST_SUBJECT = "/cluster/unicast";
+	private static final long TIMEOUT_MILLIS = 60000;
+
+	private final int nodeCount;
+	private final int eventCount;
+	private final int basePort;
+	private final boolean isOwnerMode;
+	private final Process[] processes;
+	private final PushletClient[] clients;
+	private final Receiver[] receivers;
+
+	public ClusterHarness(int aNodeCount, int anEventCount, int aBasePort, boolean anOwnerMode) {
+		nodeCount = aNodeCount;
+		eventCount = anEventCount;
+		basePort = aBasePort;
+		isOwnerMode = anOwnerMode;
+		processes = new Process[nodeCount];
+		clients = new PushletClient[nodeCount];
+		receivers = new Receiver[nodeCount];
+	}
+
+	public boolean run() throws Exception {
+		try {
+			startNodes();
+			for (int i = 0; i < nodeCount; i++) {
+				clients[i] = new PushletClient("localhost", basePort + i);
+				clients[i].join();
+				receivers[i] = new Receiver(i);
+				clients[i].listen(receivers[i], MODE_STREAM, "/cluster/");
+			}
+			waitForMesh();
+			boolean ok = publish();
+			ok &= unicast();
+			p(ok ? "PASS" : "FAIL");
+			return ok;
+		} finally {
+			for (int i = 0; i < nodeCount; i++) {
+				if (clients[i] != null) {
+					try {
+						clients[i].leave();
+					} catch (Throwable ignore) {
+					}
+				}
+			}
+			for (int i = 0; i < nodeCount; i++) {
+				if (processes[i] != null) {
+					processes[i].destroy();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start a server JVM per node and wait until all accept HTTP.
+	 */
+	private void startNodes() throws Exception {
+		StringBuilder peers = new StringBuilder();
+		for (int i = 0; i < nodeCount; i++) {
+			peers.append(i == 0 ? "" : ",").append("localhost:").append(basePort + 100 + i);
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (int i = 0; i < nodeCount; i++) {
+			File dir = new File(System.getProperty("java.io.tmpdir"), "pushlet-cluster-node" + i);
+			dir.mkdirs();
+
+			Properties properties = Sys.loadPropertiesResource("pushlet.properties");
+
+			// Shipped class names may point at another package
+			properties.setProperty(CONTROLLER_CLASS, Controller.class.getName());
+			properties.setProperty(DISPATCHER_CLASS, Dispatcher.class.getName());
+			properties.setProperty(LOGGER_CLASS, DefaultLogger.class.getName());
+			properties.setProperty(SESSION_MANAGER_CLASS, SessionManager.class.getName());
+			properties.setProperty(SESSION_CLASS, Session.class.getName());
+			properties.setProperty(SUBSCRIBER_CLASS, Subscriber.class.getName());
+			properties.setProperty(SUBSCRIPTION_CLASS, Subscription.class.getName());
+			properties.setProperty(SERVER_PORT, String.valueOf(basePort + i));
+			properties.setProperty(CLUSTER_BUS_CLASS, "com.mustr.pushlet.cluster.TcpClusterBus");
+			properties.setProperty(CLUSTER_NODE_ID, "node" + i);
+			properties.setProperty(CLUSTER_PORT, String.valueOf(basePort + 100 + i));
+			properties.setProperty(CLUSTER_PEERS, peers.toString());
+			properties.setProperty(CLUSTER_CONNECT_RETRY_MILLIS, "200");
+			properties.setProperty(SOURCES_ACTIVATE, "false");
+			properties.setProperty(LASTVALUE_CACHE_MAX_ENTRIES, "0");
+			properties.setProperty(QUEUE_SIZE, String.valueOf(Math.max(1000, nodeCount * eventCount)));
+			properties.setProperty(CLUSTER_OWNER_SUBJECTS, isOwnerMode ? SUBJECT : "");
+			OutputStream out = new FileOutputStream(new File(dir, "pushlet.properties"));
+			try {
+				properties.store(out, "ClusterHarness node" + i);
+			} finally {
+				out.close();
+			}
+
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+					dir.getPath() + File.pathSeparator + System.getProperty("java.class.path"),
+					"com.mustr.pushlet.server.PushletServer", dir.getPath());
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(new File(dir, "server.log"));
+			processes[i] = builder.start();
+			p("node" + i + ": http=" + (basePort + i) + " bus=" + (basePort + 100 + i) + " log=" + new File(dir, "server.log"));
+		}
+
+		long deadline = Sys.now() + TIMEOUT_MILLIS;
+		for (int i = 0; i < nodeCount; i++) {
+			while (!isListening(basePort + i)) {
+				if (Sys.now() > deadline || !processes[i].isAlive()) {
+					throw new IOException("node" + i + " did not start");
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Publish probes until every listener has seen one from every node.
+	 */
+	private void waitForMesh() throws Exception {
+		long startTime = Sys.now();
+		while (true) {
+			boolean complete = true;
+			for (int i = 0; i < nodeCount; i++) {
+				complete &= receivers[i].getProbeCount() == nodeCount;
+			}
+			if (complete) {
+				break;
+			}
+			if (Sys.now() - startTime > TIMEOUT_MILLIS) {
+				throw new IOException("cluster bus connections not complete");
+			}
+			for (int i = 0; i < nodeCount; i++) {
+				Map<String, String> attributes = new HashMap<String, String>();
+				attributes.put("node", String.valueOf(i));
+				clients[i].publish(PROBE_SUBJECT, attributes);
+			}
+			Thread.sleep(200);
+		}
+		p("mesh complete after " + (Sys.now() - startTime) + "ms");
+	}
+
+	private boolean publish() throws Exception {
+		long startTime = System.nanoTime();
+		Thread[] publishers = new Thread[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			final int node = i;
+			publishers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Map<String, String> attributes = new HashMap<String, String>();
+						for (int n = 0; n < eventCount; n++) {
+							attributes.put("node", String.valueOf(node));
+							attributes.put("n", String.valueOf(n));
+							attributes.put("t", String.valueOf(System.nanoTime()));
+							clients[node].publish(SUBJECT, attributes);
+						}
+					} catch (Throwable t) {
+						p("node" + node + ": publish failed: " + t);
+					}
+				}
+			});
+			publishers[i].start();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			publishers[i].join();
+		}
+		long publishNanos = System.nanoTime() - startTime;
+
+		// Wait for delivery on all nodes
+		int expected = nodeCount * eventCount;
+		long deadline = Sys.now() + TIMEOUT_MILLIS;
+		for (int i = 0; i < nodeCount; i++) {
+			while (receivers[i].getCount() < expected && Sys.now() < deadline) {
+				Thread.sleep(50);
+			}
+		}
+		long totalNanos = System.nanoTime() - startTime;
+
+		boolean ok = true;
+		for (int i = 0; i < nodeCount; i++) {
+			ok &= receivers[i].report(expected);
+		}
+		if (isOwnerMode) {
+			for (int i = 1; i < nodeCount; i++) {
+				boolean same = receivers[i].getOrder().equals(receivers[0].getOrder());
+				p("node" + i + ": same order as node0=" + same);
+				ok &= same;
+			}
+		}
+		p("published " + expected + " events in " + (publishNanos / 1000000) + "ms, all delivered after "
+				+ (totalNanos / 1000000) + "ms");
+		return ok;
+	}
+
+	/**
+	 * Send to the session of the next node, i.e. on another JVM.
+	 */
+	private boolean unicast() throws Exception {
+		int count = Math.min(eventCount, 100);
+		for (int i = 0; i < nodeCount; i++) {
+			String to = clients[(i + 1) % nodeCount].getId();
+			for (int n = 0; n < count; n++) {
+				Map<String, String> attributes = new HashMap<String, String>();
+				attributes.put(P_TO, to);
+				attributes.put("node", String.valueOf(i));
+				clients[i].publish(UNICAST_SUBJECT, attributes);
+			}
+		}
+
+		long deadline = Sys.now() + TIMEOUT_MILLIS;
+		boolean ok = true;
+		for (int i = 0; i < nodeCount; i++) {
+			while (receivers[i].getUnicastCount() < count && Sys.now() < deadline) {
+				Thread.sleep(50);
+			}
+			p("node" + i + ": unicast received=" + receivers[i].getUnicastCount() + "/" + count);
+			ok &= receivers[i].getUnicastCount() == count;
+		}
+		return ok;
+	}
+
+	private static boolean isListening(int aPort) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress("localhost", aPort), 500);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	public static void p(String s) {
+		System.out.println(s);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int eventCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int basePort = args.length > 2 ? Integer.parseInt(args[2]) : 18080;
+		boolean isOwnerMode = args.length > 3 && args[3].equals("owner");
+		boolean ok = new ClusterHarness(nodeCount, eventCount, basePort, isOwnerMode).run();
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Counts events on one node's listener.
+	 */
+	private static class Receiver implements PushletClientListener {
+		private final int node;
+		private final Set<String> probes = new HashSet<String>();
+		private final Set<String> seen = new HashSet<String>();
+		private final List<String> order = new ArrayList<String>();
+		private int count;
+		private int unicastCount;
+		private int duplicates;
+		private long latencyNanos;
+		private long maxLatencyNanos;
+
+		Receiver(int aNode) {
+			node = aNode;
+		}
+
+		public synchronized void onData(Event theEvent) {
+			if (PROBE_SUBJECT.equals(theEvent.getSubject())) {
+				probes.add(theEvent.getField("node"));
+				return;
+			}
+			if (UNICAST_SUBJECT.equals(theEvent.getSubject())) {
+				unicastCount++;
+				return;
+			}
+			if (!SUBJECT.equals(theEvent.getSubject())) {
+				return;
+			}
+			String key = theEvent.getField("node") + ":" + theEvent.getField("n");
+			if (!seen.add(key)) {
+				duplicates++;
+				return;
+			}
+			order.add(key);
+			count++;
+			long latency = System.nanoTime() - Long.parseLong(theEvent.getField("t"));
+			latencyNanos += latency;
+			maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+		}
+
+		public void onHeartbeat(Event theEvent) {
+		}
+
+		public void onAbort(Event theEvent) {
+			p("node" + node + ": abort " + theEvent);
+		}
+
+		public void onError(String message) {
+			p("node" + node + ": error " + message);
+		}
+
+		synchronized int getProbeCount() {
+			return probes.size();
+		}
+
+		synchronized int getCount() {
+			return count;
+		}
+
+		synchronized List<String> getOrder() {
+			return new ArrayList<String>(order);
+		}
+
+		synchronized int getUnicastCount() {
+			return unicastCount;
+		}
+
+		synchronized boolean report(int anExpected) {
+			p("node" + node + ": received=" + count + "/" + anExpected + " duplicates=" + duplicates
+					+ " latency avg=" + (count == 0 ? 0 : latencyNanos / count / 1000) + "us"
+					+ " max=" + (maxLatencyNanos / 1000) + "us");
+			return count == anExpected && duplicates == 0;
+		}
+	}
+}
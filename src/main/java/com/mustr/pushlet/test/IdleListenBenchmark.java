@@ -0,0 +1,156 @@
+package com.mustr.pushlet.test;
+
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.core.EventQueue;
+import com.mustr.pushlet.core.Protocol;
+import com.mustr.pushlet.util.Sys;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Benchmark for idle streaming listeners in platform vs virtual thread mode.
+ * <p/>
+ * Simulates the Subscriber.fetchEvents() blocking model in-process: each
+ * listener parks in EventQueue.deQueueAll() and loops on heartbeat timeouts.
+ * Reports start-up time, heap and thread usage with all listeners idle, and
+ * the time to wake all of them with a single broadcast round.
+ * <p/>
+ * Usage: IdleListenBenchmark [platform|virtual] [listeners] [readTimeoutMillis]
+ * <br>
+ * e.g. java -Xss256k ... IdleListenBenchmark platform 100000 20000
+ */
+public class IdleListenBenchmark implements Protocol {
+	private final boolean virtual;
+	private final int listenerCount;
+	private final long readTimeoutMillis;
+	private EventQueue[] queues;
+	private volatile boolean running = true;
+
+	public IdleListenBenchmark(boolean useVirtual, int aListenerCount, long aReadTimeoutMillis) {
+		virtual = useVirtual;
+		listenerCount = aListenerCount;
+		readTimeoutMillis = aReadTimeoutMillis;
+	}
+
+	public void run() throws InterruptedException {
+		ExecutorService executor = null;
+		if (virtual) {
+			executor = Sys.newVirtualThreadExecutor();
+			if (executor == null) {
+				p("virtual threads not supported by this VM (Java 21+ required)");
+				return;
+			}
+		}
+
+		long heapBefore = usedHeap();
+		int threadsBefore = Thread.activeCount();
+
+		// Start listeners, each blocking on its own queue
+		queues = new EventQueue[listenerCount];
+		CountDownLatch started = new CountDownLatch(listenerCount);
+		CountDownLatch received = new CountDownLatch(listenerCount);
+		long startTime = Sys.now();
+		int startedCount = 0;
+		try {
+			for (int i = 0; i < listenerCount; i++) {
+				queues[i] = new EventQueue(24);
+				Listener listener = new Listener(queues[i], started, received);
+				if (virtual) {
+					executor.execute(listener);
+				} else {
+					Thread thread = new Thread(listener);
+					thread.setDaemon(true);
+					thread.start();
+				}
+				startedCount++;
+			}
+		} catch (Throwable t) {
+			// Usually "unable to create native thread" in platform mode
+			p("could only start " + startedCount + " listeners: " + t);
+			running = false;
+			return;
+		}
+		started.await();
+		long startMillis = Sys.now() - startTime;
+
+		// Let everything settle in idle state
+		Thread.sleep(2000);
+		long heapIdle = usedHeap();
+
+		// Wake all listeners once, like a multicast
+		long wakeTime = Sys.now();
+		Event event = Event.createDataEvent("/bench/idle");
+		for (int i = 0; i < listenerCount; i++) {
+			queues[i].enQueue(event.share());
+		}
+		received.await();
+		long wakeMillis = Sys.now() - wakeTime;
+
+		p("mode=" + (virtual ? "virtual" : "platform") + " listeners=" + listenerCount);
+		p("start=" + startMillis + "ms threads=" + (Thread.activeCount() - threadsBefore)
+				+ " heap=" + ((heapIdle - heapBefore) / (1024 * 1024)) + "MB"
+				+ " (" + ((heapIdle - heapBefore) / listenerCount) + " bytes/listener)");
+		p("broadcast wake-up=" + wakeMillis + "ms");
+
+		running = false;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Generic print.
+	 */
+	public static void p(String s) {
+		System.out.println("[IdleListenBenchmark] " + s);
+	}
+
+	/**
+	 * Mimics the fetchEvents() loop without the network write.
+	 */
+	private class Listener implements Runnable {
+		private final EventQueue queue;
+		private final CountDownLatch started;
+		private final CountDownLatch received;
+
+		Listener(EventQueue aQueue, CountDownLatch aStartedLatch, CountDownLatch aReceivedLatch) {
+			queue = aQueue;
+			started = aStartedLatch;
+			received = aReceivedLatch;
+		}
+
+		public void run() {
+			started.countDown();
+			try {
+				while (running) {
+					Event[] events = queue.deQueueAll(readTimeoutMillis);
+					if (events != null) {
+						received.countDown();
+					}
+				}
+			} catch (InterruptedException ie) {
+				// Leave
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		boolean virtual = args.length > 0 && args[0].equals("virtual");
+		int listeners = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		long readTimeout = args.length > 2 ? Long.parseLong(args[2]) : 20000;
+		try {
+			new IdleListenBenchmark(virtual, listeners, readTimeout).run();
+		} catch (InterruptedException ie) {
+			p("interrupted");
+		}
+	}
+}
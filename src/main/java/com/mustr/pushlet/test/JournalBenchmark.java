@@ -0,0 +1,118 @@
+package com.mustr.pushlet.test;
+
+import com.mustr.pushlet.core.Event;
+import com.mustr.pushlet.journal.Journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark for the event journal: append rate, drops and read back.
+ * <p/>
+ * Appends events as the Dispatcher does (never blocking), stops the journal,
+ * then opens it again as after a restart and reads every event back to
+ * check that nothing written was lost or reordered. Finally queries a
+ * subject prefix over all time, which must find the same events as the read.
+ * Subjects include the start time so earlier runs in the dir do not count.
+ * <p/>
+ * Usage: JournalBenchmark [dir] [events] [fsyncMillis] [segmentBytes]
+ * <br>
+ * e.g. java ... JournalBenchmark /tmp/journal 1000000 1000 16777216
+ */
+public class JournalBenchmark {
+	private final File dir;
+	private final int eventCount;
+	private final long fsyncMillis;
+	private final int segmentBytes;
+
+	public JournalBenchmark(File aDir, int anEventCount, long anFsyncMillis, int aSegmentBytes) {
+		dir = aDir;
+		eventCount = anEventCount;
+		fsyncMillis = anFsyncMillis;
+		segmentBytes = aSegmentBytes;
+	}
+
+	public boolean run() throws Exception {
+		String subject = "/journal/" + System.currentTimeMillis() + "/s";
+		String prefix = subject + "7";
+		Journal journal = createJournal();
+		journal.start();
+		long firstOffset = journal.getNextOffset();
+
+		long startTime = System.nanoTime();
+		int appended = 0;
+		for (int i = 0; i < eventCount; i++) {
+			Event event = Event.createDataEvent(subject + (i % 100));
+			event.setField("n", i);
+			event.setField("price", "12.34");
+			if (journal.append(event)) {
+				appended++;
+			}
+		}
+		long appendNanos = System.nanoTime() - startTime;
+		journal.stop();
+		long totalNanos = System.nanoTime() - startTime;
+		p("appended=" + appended + "/" + eventCount + " in " + (appendNanos / 1000000) + "ms ("
+				+ (appendNanos / eventCount) + "ns/event), written after " + (totalNanos / 1000000) + "ms");
+
+		// Reopen as after a restart
+		journal = createJournal();
+		journal.start();
+		startTime = System.nanoTime();
+		List<Event> events = new ArrayList<Event>();
+		long offset = firstOffset;
+		int read = 0;
+		int previous = -1;
+		int subjectCount = 0;
+		boolean ordered = true;
+		while (offset < journal.getNextOffset()) {
+			events.clear();
+			offset = journal.read(offset, 1000, events);
+			for (int i = 0; i < events.size(); i++) {
+				int n = Integer.parseInt(events.get(i).getField("n"));
+				ordered &= n > previous;
+				previous = n;
+				if (events.get(i).getSubject().startsWith(prefix)) {
+					subjectCount++;
+				}
+			}
+			read += events.size();
+		}
+		long readNanos = System.nanoTime() - startTime;
+		p("read=" + read + " ordered=" + ordered + " in " + (readNanos / 1000000) + "ms, offsets "
+				+ journal.getFirstOffset() + ".." + journal.getNextOffset());
+
+		startTime = System.nanoTime();
+		final int[] queryCount = new int[1];
+		journal.query(prefix, 0, Long.MAX_VALUE, new Journal.QueryListener() {
+			public boolean onEvent(Event anEvent) throws IOException {
+				queryCount[0]++;
+				return true;
+			}
+		});
+		long queryNanos = System.nanoTime() - startTime;
+		journal.stop();
+		p("query " + prefix + "=" + queryCount[0] + "/" + subjectCount + " in " + (queryNanos / 1000000) + "ms");
+		return read == appended && ordered && queryCount[0] == subjectCount;
+	}
+
+	private Journal createJournal() {
+		return new Journal(dir, segmentBytes, 4096, fsyncMillis, 0, 65536);
+	}
+
+	public static void p(String s) {
+		System.out.println(s);
+	}
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir") + File.separator + "pushlet-journal");
+		int eventCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		long fsyncMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		int segmentBytes = args.length > 3 ? Integer.parseInt(args[3]) : 16 * 1024 * 1024;
+		boolean ok = new JournalBenchmark(dir, eventCount, fsyncMillis, segmentBytes).run();
+		p(ok ? "PASS" : "FAIL");
+		System.exit(ok ? 0 : 1);
+	}
+}
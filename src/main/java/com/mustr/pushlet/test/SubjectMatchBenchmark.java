@@ -0,0 +1,132 @@
+package com.mustr.pushlet.test;
+
+import com.mustr.pushlet.core.SubjectIndex;
+import com.mustr.pushlet.core.SubjectPattern;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark for subject matching with many subscriptions, prefix vs pattern mode.
+ * <p/>
+ * Prefix mode does what multicast does with subject.match.mode=prefix: test
+ * every subscription with startsWith(). Pattern mode looks up the subject in
+ * a SubjectIndex as with subject.match.mode=pattern. Subscriptions are mostly
+ * exact subjects like /stocks/m7/s123/price, every 10th uses a "*" segment
+ * and every 100th a trailing "#" (a plain prefix in prefix mode).
+ * <p/>
+ * Usage: SubjectMatchBenchmark [subscriptions] [events]
+ * <br>
+ * e.g. java ... SubjectMatchBenchmark 100000 10000
+ */
+public class SubjectMatchBenchmark {
+	private static final int MARKETS = 100;
+
+	private final int subscriptionCount;
+	private final int eventCount;
+	private final String[] subscriptions;
+	private final String[] subjects;
+
+	public SubjectMatchBenchmark(int aSubscriptionCount, int anEventCount) {
+		subscriptionCount = aSubscriptionCount;
+		eventCount = anEventCount;
+
+		subscriptions = new String[subscriptionCount];
+		for (int i = 0; i < subscriptionCount; i++) {
+			String market = "/stocks/m" + (i % MARKETS);
+			if (i % 100 == 0) {
+				subscriptions[i] = market + "/#";
+			} else if (i % 10 == 0) {
+				subscriptions[i] = market + "/*/price";
+			} else {
+				subscriptions[i] = market + "/s" + i + "/price";
+			}
+		}
+
+		Random random = new Random(42);
+		subjects = new String[eventCount];
+		for (int i = 0; i < eventCount; i++) {
+			subjects[i] = "/stocks/m" + random.nextInt(MARKETS) + "/s" + random.nextInt(subscriptionCount) + "/price";
+		}
+	}
+
+	public void runPrefix() {
+		// Prefix mode cannot express "*": subscribe to the market instead
+		long heapBefore = usedHeap();
+		long startTime = System.nanoTime();
+		String[] prefixes = new String[subscriptionCount];
+		for (int i = 0; i < subscriptionCount; i++) {
+			String subject = subscriptions[i];
+			int wildcard = subject.indexOf("/*");
+			if (wildcard < 0) {
+				wildcard = subject.indexOf("/#");
+			}
+			prefixes[i] = wildcard < 0 ? subject : subject.substring(0, wildcard + 1);
+		}
+		long buildNanos = System.nanoTime() - startTime;
+		long heap = usedHeap() - heapBefore;
+
+		long matches = 0;
+		startTime = System.nanoTime();
+		for (int i = 0; i < eventCount; i++) {
+			for (int j = 0; j < prefixes.length; j++) {
+				if (subjects[i].startsWith(prefixes[j])) {
+					matches++;
+				}
+			}
+		}
+		report("prefix", buildNanos, System.nanoTime() - startTime, matches, heap);
+	}
+
+	public void runPattern() {
+		long heapBefore = usedHeap();
+		long startTime = System.nanoTime();
+		SubjectIndex<Integer> index = new SubjectIndex<Integer>();
+		for (int i = 0; i < subscriptionCount; i++) {
+			index.add(SubjectPattern.parse(subscriptions[i]), i);
+		}
+		long buildNanos = System.nanoTime() - startTime;
+		long heap = usedHeap() - heapBefore;
+
+		long matches = 0;
+		startTime = System.nanoTime();
+		for (int i = 0; i < eventCount; i++) {
+			List<Integer> result = index.match(subjects[i]);
+			matches += result.size();
+		}
+		report("pattern", buildNanos, System.nanoTime() - startTime, matches, heap);
+	}
+
+	private void report(String aMode, long theBuildNanos, long theMatchNanos, long theMatches, long aHeap) {
+		p(aMode + ": subscriptions=" + subscriptionCount
+				+ " build=" + (theBuildNanos / 1000000) + "ms"
+				+ " heap=" + (aHeap / (1024 * 1024)) + "MB"
+				+ " events=" + eventCount
+				+ " match=" + (theMatchNanos / eventCount) + "ns/event"
+				+ " matches=" + theMatches);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void p(String s) {
+		System.out.println(s);
+	}
+
+	public static void main(String[] args) {
+		int subscriptionCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int eventCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		SubjectMatchBenchmark benchmark = new SubjectMatchBenchmark(subscriptionCount, eventCount);
+
+		// First rounds warm up the JIT
+		for (int i = 0; i < 2; i++) {
+			benchmark.runPrefix();
+			benchmark.runPattern();
+		}
+	}
+}
@@ -4,7 +4,6 @@
 package com.mustr.pushlet.util;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 
 
 /**
@@ -33,23 +32,4 @@ public class Servlets {
 		return value;
 	}
 
-	/**
-	 * Set HTTP headers to prevent caching.
-	 */
-	public static void setNoCacheHeaders(HttpServletResponse aResponse) {
-		// Set to expire far in the past.
-		aResponse.setHeader("Expires", "Sat, 6 May 1995 12:00:00 GMT");
-
-		// Set standard HTTP/1.1 no-cache headers.
-		aResponse.setHeader("Cache-Control", "no-store, no-cache, must-revalidate");
-
-		// Set IE extended HTTP/1.1 no-cache headers (use addHeader).
-		aResponse.addHeader("Cache-Control", "post-check=0, pre-check=0");
-
-		// Set standard HTTP/1.0 no-cache header.
-		aResponse.setHeader("Pragma", "no-cache");
-
-	}
-
 }
-
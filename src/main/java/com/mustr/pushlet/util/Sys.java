@@ -6,9 +6,12 @@ package com.mustr.pushlet.util;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Utilities that interact with the underlying OS/JVM.
@@ -110,4 +113,21 @@ public class Sys {
 		return System.currentTimeMillis();
 	}
 
+	/**
+	 * Create an executor running each task on a new virtual thread.
+	 * <p/>
+	 * Virtual threads require Java 21+; looked up reflectively such that
+	 * we still run on older VMs.
+	 *
+	 * @return the executor or null if virtual threads are not supported
+	 */
+	static public ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,240 @@
+package com.mustr.pushlet.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Hashed timing wheel for large numbers of cancellable timeouts.
+ * <p/>
+ * <b>Implementation</b><br>
+ * Each wheel slot holds a doubly linked list of Timeout objects, so
+ * scheduling, rescheduling and cancelling are O(1). A single Timer thread
+ * advances the wheel once per tick and only visits the slot whose tick has
+ * come. Timeouts further away than one revolution stay in their slot until
+ * their round comes up, so the wheel itself needs no resizing.
+ * <p/>
+ * Timeouts are intrusive list nodes: derive from Timeout and keep a single
+ * instance per timed object to keep per-object overhead small.
+ */
+public class TimingWheel {
+
+	/**
+	 * Node in a wheel slot, extend to receive the expiry callback.
+	 */
+	public static abstract class Timeout {
+		private Timeout prev;
+		private Timeout next;
+		private int slot = -1;
+		private volatile long deadlineTick = -1;
+
+		/**
+		 * Is this timeout currently pending in a wheel ?
+		 */
+		public boolean isScheduled() {
+			return deadlineTick >= 0;
+		}
+
+		/**
+		 * Callback from the wheel thread when the timeout expires.
+		 */
+		protected abstract void expire();
+	}
+
+	private final String name;
+	private final long tickMillis;
+	private final Timeout[] slots;
+	private final int mask;
+
+	/**
+	 * Ticks processed since start, all list access is through mutex.
+	 */
+	private volatile long currentTick;
+	private long startTime;
+	private Timer timer;
+	private int size;
+	private final Object mutex = new Object();
+
+	/**
+	 * Construct wheel with tick duration and number of slots (rounded up to a power of two).
+	 */
+	public TimingWheel(String aName, long theTickMillis, int aWheelSize) {
+		if (theTickMillis <= 0 || aWheelSize <= 0) {
+			throw new IllegalArgumentException("Tick and wheel size must be positive");
+		}
+		name = aName;
+		tickMillis = theTickMillis;
+
+		int wheelSize = 1;
+		while (wheelSize < aWheelSize) {
+			wheelSize <<= 1;
+		}
+		slots = new Timeout[wheelSize];
+		mask = wheelSize - 1;
+	}
+
+	/**
+	 * Start the wheel thread.
+	 */
+	public void start() {
+		synchronized (mutex) {
+			if (timer != null) {
+				return;
+			}
+			startTime = Sys.now() - currentTick * tickMillis;
+			timer = new Timer("TimingWheel-" + name, true);
+			timer.scheduleAtFixedRate(new TickTask(), tickMillis, tickMillis);
+		}
+	}
+
+	/**
+	 * Stop the wheel thread and drop all pending timeouts.
+	 */
+	public void stop() {
+		synchronized (mutex) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			for (int i = 0; i < slots.length; i++) {
+				Timeout timeout = slots[i];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					timeout.prev = timeout.next = null;
+					timeout.slot = -1;
+					timeout.deadlineTick = -1;
+					timeout = next;
+				}
+				slots[i] = null;
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * (Re)schedule timeout to expire after delay; O(1).
+	 */
+	public void schedule(Timeout aTimeout, long aDelayMillis) {
+		long ticks = (aDelayMillis + tickMillis - 1) / tickMillis;
+		if (ticks < 1) {
+			ticks = 1;
+		}
+
+		// Frequent rescheduling within the same tick needs no locking
+		if (aTimeout.deadlineTick == currentTick + ticks) {
+			return;
+		}
+
+		synchronized (mutex) {
+			unlink(aTimeout);
+			link(aTimeout, currentTick + ticks);
+		}
+	}
+
+	/**
+	 * Remove timeout from wheel, no effect if not scheduled.
+	 */
+	public void cancel(Timeout aTimeout) {
+		if (!aTimeout.isScheduled()) {
+			return;
+		}
+
+		synchronized (mutex) {
+			unlink(aTimeout);
+		}
+	}
+
+	/**
+	 * Number of pending timeouts.
+	 */
+	public int getSize() {
+		synchronized (mutex) {
+			return size;
+		}
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Process all ticks elapsed since the previous call.
+	 */
+	protected void advance() {
+		List<Timeout> expired = null;
+		long targetTick = (Sys.now() - startTime) / tickMillis;
+
+		synchronized (mutex) {
+			while (currentTick < targetTick) {
+				long tick = currentTick + 1;
+				Timeout timeout = slots[(int) (tick & mask)];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.deadlineTick <= tick) {
+						unlink(timeout);
+						if (expired == null) {
+							expired = new ArrayList<Timeout>();
+						}
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+				currentTick = tick;
+			}
+		}
+
+		if (expired == null) {
+			return;
+		}
+
+		// Callbacks outside lock: they may reschedule
+		for (int i = 0; i < expired.size(); i++) {
+			try {
+				expired.get(i).expire();
+			} catch (Throwable t) {
+				Log.warn("TimingWheel-" + name + ": error in expire()", t);
+			}
+		}
+	}
+
+	private void link(Timeout aTimeout, long aDeadlineTick) {
+		int slot = (int) (aDeadlineTick & mask);
+		aTimeout.slot = slot;
+		aTimeout.deadlineTick = aDeadlineTick;
+		aTimeout.prev = null;
+		aTimeout.next = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].prev = aTimeout;
+		}
+		slots[slot] = aTimeout;
+		size++;
+	}
+
+	private void unlink(Timeout aTimeout) {
+		if (aTimeout.slot < 0) {
+			return;
+		}
+		if (aTimeout.prev != null) {
+			aTimeout.prev.next = aTimeout.next;
+		} else {
+			slots[aTimeout.slot] = aTimeout.next;
+		}
+		if (aTimeout.next != null) {
+			aTimeout.next.prev = aTimeout.prev;
+		}
+		aTimeout.prev = aTimeout.next = null;
+		aTimeout.slot = -1;
+		aTimeout.deadlineTick = -1;
+		size--;
+	}
+
+	/**
+	 * Clock tick callback from Timer.
+	 */
+	private class TickTask extends TimerTask {
+		public void run() {
+			advance();
+		}
+	}
+}
@@ -58,6 +58,16 @@ var PL = {
 	STATE_LISTENING: 3,
 	state: 1,
 	jsessionid:'',
+	lastSeqs: {},
+	// Set to true before (join)listen to receive data events as deltas
+	delta: false,
+	_deltaFields: {},
+	// Set to true before (join)listen/subscribe for acknowledged delivery
+	acked: false,
+	// Acknowledge at least every this many events, within the server's window
+	ACK_BATCH: 64,
+	_ackSeq: 0,
+	_ackSentSeq: 0,
 
 /************** START PUBLIC FUNCTIONS  **************/
 
@@ -66,9 +76,18 @@ var PL = {
 		PL._doRequest('hb');
 	},
 
+/** Acknowledge all events received (acked delivery), also done on hb, refresh and every ACK_BATCH events. */
+	ack: function() {
+		if (PL._ackSeq > PL._ackSentSeq) {
+			PL._ackSentSeq = PL._ackSeq;
+			PL._doRequest('ack', 'p_ack=' + PL._ackSeq);
+		}
+	},
+
 /** Join. */
 	join: function() {
 		PL.sessionId = null;
+		PL._ackSeq = PL._ackSentSeq = 0;
 
 		// Streaming is only supported in Mozilla. E.g. IE does not allow access to responseText on readyState == 3
 		PL._doRequest('join', PL.NV_P_FORMAT + '&' + PL.NV_P_MODE);
@@ -81,12 +100,19 @@ var PL = {
 		// PL.listen(aSubject);
 
 		PL.sessionId = null;
+		PL._ackSeq = PL._ackSentSeq = 0;
 		// Create event URI for listen
 		var query = PL.NV_P_FORMAT + '&' + PL.NV_P_MODE;
 
 		// Optional subject to subscribe to
 		if (aSubject) {
-			query = query + '&p_subject=' + aSubject;
+			query = query + '&p_subject=' + aSubject + PL._lastSeqQuery();
+		}
+		if (PL.delta) {
+			query = query + '&p_delta=true';
+		}
+		if (PL.acked) {
+			query = query + '&p_acked=true';
 		}
 
 		PL._doRequest('join-listen', query);
@@ -106,7 +132,13 @@ var PL = {
 
 		// Optional subject to subscribe to
 		if (aSubject) {
-			query = query + '&p_subject=' + aSubject;
+			query = query + '&p_subject=' + aSubject + PL._lastSeqQuery();
+		}
+		if (PL.delta) {
+			query = query + '&p_delta=true';
+		}
+		if (PL.acked) {
+			query = query + '&p_acked=true';
 		}
 
 		PL._doRequest('listen', query);
@@ -126,10 +158,13 @@ var PL = {
 /** Subscribe to (comma separated) subject(s). */
 	subscribe: function(aSubject, aLabel) {
 
-		var query = 'p_subject=' + aSubject;
+		var query = 'p_subject=' + aSubject + PL._lastSeqQuery();
 		if (aLabel) {
 			query = query + '&p_label=' + aLabel;
 		}
+		if (PL.acked) {
+			query = query + '&p_acked=true';
+		}
 		PL._doRequest('subscribe', query);
 
 	},
@@ -229,6 +264,12 @@ var PL = {
 			url = url + '&' + aQuery;
 		}
 
+		// Acknowledge events received so far (acked delivery)
+		if ((anEvent == 'refresh' || anEvent == 'hb') && PL._ackSeq > PL._ackSentSeq) {
+			url = url + '&p_ack=' + PL._ackSeq;
+			PL._ackSentSeq = PL._ackSeq;
+		}
+
 		// Optionally attach session id
 		if (PL.sessionId != null) {
 			url = url + '&p_id=' + PL.sessionId;
@@ -245,6 +286,42 @@ var PL = {
 	},
 
 // Get object reference
+	/** Last seen sequence number per subject for replay on (re)listen. */
+	_lastSeqQuery: function() {
+		var pairs = [];
+		for (var subject in PL.lastSeqs) {
+			pairs.push(subject + ':' + PL.lastSeqs[subject]);
+		}
+		if (pairs.length == 0) {
+			return '';
+		}
+		return '&p_last=' + encodeURIComponent(pairs.join(','));
+	},
+
+	/** Merge delta data event (p_delta) with the previous fields of its subject. */
+	_applyDelta: function(event) {
+		var subject = event.getSubject();
+		var previous = PL._deltaFields[subject];
+		var name;
+		if (event.get('p_delta') && previous) {
+			var removed = event.get('p_removed') ? event.get('p_removed').split(',') : [];
+			for (name in previous) {
+				if (event.get(name) === undefined && removed.indexOf(name) < 0) {
+					event.put(name, previous[name]);
+				}
+			}
+		}
+
+		// Remember data fields as base for the next delta
+		var fields = {};
+		for (name in event.arr) {
+			if (name.indexOf('p_') != 0) {
+				fields[name] = event.arr[name];
+			}
+		}
+		PL._deltaFields[subject] = fields;
+	},
+
 	_getObject: function(obj) {
 		if (typeof obj == "string") {
 			return document.getElementById(obj);
@@ -402,8 +479,42 @@ var PL = {
 		var eventType = event.getEvent();
 
 		if (eventType == 'data') {
+			// Skip events sent again after a reconnect (p_aseq is per session)
+			var ackSeq = event.get('p_aseq');
+			if (ackSeq) {
+				ackSeq = parseInt(ackSeq, 10);
+				if (ackSeq <= PL._ackSeq) {
+					return;
+				}
+				PL._ackSeq = ackSeq;
+
+				// Stream mode has no refresh to carry the acknowledgement
+				if (PL._ackSeq - PL._ackSentSeq >= PL.ACK_BATCH) {
+					PL.ack();
+				}
+			}
+
+			// Skip duplicates after a replay (p_sseq is per subject)
+			var seq = event.get('p_sseq');
+			if (seq) {
+				seq = parseInt(seq, 10);
+				var subject = event.getSubject();
+				if (PL.lastSeqs[subject] && seq <= PL.lastSeqs[subject]) {
+					return;
+				}
+				PL.lastSeqs[subject] = seq;
+			}
+			if (PL.delta) {
+				PL._applyDelta(event);
+			}
 			PL._setStatus('data');
 			PL._doCallback(event, window.onData);
+		} else if (eventType == 'resync') {
+			// Missed events are gone: start over for this subject
+			delete PL.lastSeqs[event.get('p_subject')];
+			PL._doCallback(event, window.onResync);
+		} else if (eventType == 'snapshot-end') {
+			PL._doCallback(event, window.onSnapshotEnd);
 		} else if (eventType == 'refresh') {
 			if (PL.state < PL.STATE_LISTENING) {
 				PL._setStatus('not refreshing state=' + PL.STATE_LISTENING);
@@ -423,11 +534,13 @@ var PL = {
 			PL._setStatus('connected');
 			PL._doCallback(event, window.onJoinAck);
 		} else if (eventType == 'join-listen-ack') {
+			PL._deltaFields = {};
 			PL.state = PL.STATE_LISTENING;
 			PL.sessionId = event.get('p_id');
 			PL._setStatus('join-listen-ack');
 			PL._doCallback(event, window.onJoinListenAck);
 		} else if (eventType == 'listen-ack') {
+			PL._deltaFields = {};
 			PL.state = PL.STATE_LISTENING;
 			PL._setStatus('listening');
 			PL._doCallback(event, window.onListenAck);
@@ -441,6 +554,8 @@ var PL = {
 			PL._doCallback(event, window.onLeaveAck);
 		} else if (eventType == 'refresh-ack') {
 			PL._doCallback(event, window.onRefreshAck);
+		} else if (eventType == 'ack-ack') {
+			PL._doCallback(event, window.onAckAck);
 		} else if (eventType == 'subscribe-ack') {
 			PL._setStatus('subscribed to ' + event.get('p_subject'));
 			PL._doCallback(event, window.onSubscribeAck);